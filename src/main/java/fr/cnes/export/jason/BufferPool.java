@@ -0,0 +1,114 @@
+ /******************************************************************************
+ * Copyright 2017 CNES - CENTRE NATIONAL d'ETUDES SPATIALES
+ *
+ * This file is part of Regards.
+ *
+ * Regards is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Regards is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Regards.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package fr.cnes.export.jason;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Pool of the primitive arrays and buffers in which the variables are read.
+ *
+ * The products of a mission have the same shape, so the arrays released by a
+ * file are borrowed again by the next one instead of being allocated. The
+ * arrays are pooled by type and exact length.
+ */
+public class BufferPool {
+
+    /**
+     * Maximum number of idle arrays kept for a type and a length.
+     */
+    private static final int MAX_IDLE = 64;
+
+    private final Map<Class<?>, Map<Integer, Queue<Object>>> idle = new ConcurrentHashMap<>();
+
+    /**
+     * private constructor
+     */
+    private BufferPool() {
+    }
+
+    /**
+     * Holder
+     */
+    private static class BufferPoolHolder {
+
+        private static final BufferPool INSTANCE = new BufferPool();
+    }
+
+    /**
+     * Access to unique INSTANCE of BufferPool
+     *
+     * @return the pool
+     */
+    public static BufferPool getInstance() {
+        return BufferPoolHolder.INSTANCE;
+    }
+
+    /**
+     * Borrows a primitive array. Its content is undefined.
+     *
+     * @param <T> type of the array
+     * @param type type of the array such as double[].class
+     * @param length length of the array
+     * @return the array
+     */
+    public <T> T borrow(final Class<T> type, final int length) {
+        final Object array = getQueue(type, length).poll();
+        return type.cast((array == null)
+                ? java.lang.reflect.Array.newInstance(type.getComponentType(), length) : array);
+    }
+
+    /**
+     * Borrows a big-endian buffer, cleared and limited to the capacity.
+     *
+     * @param capacity capacity of the buffer
+     * @return the buffer
+     */
+    public ByteBuffer borrowBuffer(final int capacity) {
+        final ByteBuffer buffer = (ByteBuffer) getQueue(ByteBuffer.class, capacity).poll();
+        if (buffer == null) {
+            return ByteBuffer.allocate(capacity);
+        }
+        buffer.clear();
+        return buffer.order(ByteOrder.BIG_ENDIAN);
+    }
+
+    /**
+     * Gives back an array or a buffer. It must not be used anymore by the
+     * caller.
+     *
+     * @param array primitive array or buffer
+     */
+    public void release(final Object array) {
+        if (array instanceof ByteBuffer) {
+            getQueue(ByteBuffer.class, ((ByteBuffer) array).capacity()).offer(array);
+        } else if (array != null) {
+            getQueue(array.getClass(), java.lang.reflect.Array.getLength(array)).offer(array);
+        }
+    }
+
+    private Queue<Object> getQueue(final Class<?> type, final int length) {
+        return this.idle.computeIfAbsent(type, key -> new ConcurrentHashMap<>())
+                .computeIfAbsent(length, key -> new ArrayBlockingQueue<>(MAX_IDLE));
+    }
+}
@@ -0,0 +1,474 @@
+ /******************************************************************************
+ * Copyright 2017 CNES - CENTRE NATIONAL d'ETUDES SPATIALES
+ *
+ * This file is part of Regards.
+ *
+ * Regards is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Regards is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Regards.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package fr.cnes.export.jason;
+
+import ucar.ma2.Array;
+import ucar.ma2.DataType;
+import ucar.nc2.Attribute;
+import ucar.nc2.Variable;
+
+/**
+ * Values of a numeric variable, kept in the primitive array of their NetCdf
+ * storage.
+ *
+ * The packed values are not converted when they are extracted : the
+ * scale_factor and add_offset of the variable are applied, and the missing
+ * values replaced by NaN, only when the values are encoded. A packed short is
+ * then kept in 2 bytes instead of the 8 bytes of an enhanced double.
+ *
+ * The values stored as floats, or packed with a float scale_factor and
+ * add_offset, are single precision once unpacked, as in NetCdf : they are
+ * encoded as floats so that their text does not show the decimals of the
+ * widened double.
+ *
+ * As in NetCdf, the valid_min, valid_max and valid_range of a packed variable
+ * are compared with the unpacked values when their type differs from the
+ * storage type, and with the stored values otherwise.
+ */
+public abstract class Column {
+
+    private final int[] shape;
+    private final boolean isUnsigned;
+    private final double scale;
+    private final double offset;
+    private final boolean isPacked;
+    private final boolean isInteger;
+    private final boolean isFloat;
+    private final boolean hasMissing;
+    private final double fillValue;
+    private final double missingValue;
+    private final double validMin;
+    private final double validMax;
+    private final boolean isValidMinUnpacked;
+    private final boolean isValidMaxUnpacked;
+
+    private Column(final int[] shape, final Variable variable, final boolean isInteger, final boolean isFloat) {
+        this.shape = shape;
+        this.isUnsigned = isInteger && variable != null && isTrue(variable.findAttribute("_Unsigned"));
+        this.scale = getNumber(variable, "scale_factor", 1.0);
+        this.offset = getNumber(variable, "add_offset", 0.0);
+        this.isPacked = this.scale != 1.0 || this.offset != 0.0;
+        this.isInteger = isInteger && !this.isPacked;
+        this.isFloat = this.isPacked
+                ? isFloat(variable, "scale_factor") && isFloat(variable, "add_offset")
+                : isFloat;
+        this.fillValue = getNumber(variable, "_FillValue", Double.NaN);
+        this.missingValue = getNumber(variable, "missing_value", Double.NaN);
+        double min = getNumber(variable, "valid_min", Double.NEGATIVE_INFINITY);
+        double max = getNumber(variable, "valid_max", Double.POSITIVE_INFINITY);
+        boolean isMinUnpacked = isUnpacked(variable, "valid_min");
+        boolean isMaxUnpacked = isUnpacked(variable, "valid_max");
+        final Attribute validRange = (variable == null) ? null : variable.findAttribute("valid_range");
+        if (validRange != null && validRange.getLength() == 2 && validRange.getNumericValue() != null) {
+            min = validRange.getNumericValue(0).doubleValue();
+            max = validRange.getNumericValue(1).doubleValue();
+            isMinUnpacked = isUnpacked(variable, "valid_range");
+            isMaxUnpacked = isMinUnpacked;
+        }
+        this.validMin = min;
+        this.validMax = max;
+        this.isValidMinUnpacked = isMinUnpacked;
+        this.isValidMaxUnpacked = isMaxUnpacked;
+        this.hasMissing = !Double.isNaN(this.fillValue) || !Double.isNaN(this.missingValue)
+                || min != Double.NEGATIVE_INFINITY || max != Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * Wraps the values of a variable. The storage of the array is used
+     * without copy when it is contiguous.
+     *
+     * @param values values as stored in the file
+     * @param variable variable of the file, giving the packing and the missing
+     * values, or null
+     * @return the column or null when the values are not numeric
+     */
+    public static Column wrap(final Array values, final Variable variable) {
+        return wrap(values.get1DJavaArray(values.getElementType()), values.getShape(), variable);
+    }
+
+    /**
+     * Wraps a primitive array.
+     *
+     * @param storage values in row-major order
+     * @param shape shape of the values
+     * @param variable variable of the file, giving the packing and the missing
+     * values, or null
+     * @return the column or null when the values are not numeric
+     */
+    public static Column wrap(final Object storage, final int[] shape, final Variable variable) {
+        if (storage instanceof double[]) {
+            return new DoubleColumn((double[]) storage, shape, variable);
+        } else if (storage instanceof float[]) {
+            return new FloatColumn((float[]) storage, shape, variable);
+        } else if (storage instanceof int[]) {
+            return new IntColumn((int[]) storage, shape, variable);
+        } else if (storage instanceof short[]) {
+            return new ShortColumn((short[]) storage, shape, variable);
+        } else if (storage instanceof byte[]) {
+            return new ByteColumn((byte[]) storage, shape, variable);
+        } else if (storage instanceof long[]) {
+            return new LongColumn((long[]) storage, shape, variable);
+        }
+        return null;
+    }
+
+    /**
+     * Returns the number of values.
+     *
+     * @return the number of values
+     */
+    public abstract int size();
+
+    /**
+     * Returns the wrapped primitive array.
+     *
+     * @return the storage
+     */
+    public abstract Object getStorage();
+
+    /**
+     * Returns the primitive type of the stored values.
+     *
+     * @return byte.class, short.class, int.class, long.class, float.class or
+     * double.class
+     */
+    public Class<?> getElementType() {
+        return getStorage().getClass().getComponentType();
+    }
+
+    /**
+     * Returns the shape of the values.
+     *
+     * @return the shape
+     */
+    public int[] getShape() {
+        return this.shape;
+    }
+
+    /**
+     * Tests whether the values have a scale_factor or an add_offset.
+     *
+     * @return True when the values are packed otherwise False
+     */
+    public boolean isPacked() {
+        return this.isPacked;
+    }
+
+    /**
+     * Tests whether the values are encoded as integers, that is stored as
+     * integers and not packed.
+     *
+     * @return True when the values are integers otherwise False
+     */
+    public boolean isInteger() {
+        return this.isInteger;
+    }
+
+    /**
+     * Tests whether the values are single precision floats once unpacked :
+     * stored as floats and not packed, or packed with a float scale_factor
+     * and add_offset.
+     *
+     * @return True when the values are floats otherwise False
+     */
+    public boolean isFloat() {
+        return this.isFloat;
+    }
+
+    /**
+     * Returns a stored value, unsigned when the variable is unsigned.
+     *
+     * @param index index of the value
+     * @return the stored value
+     */
+    public abstract long getLong(int index);
+
+    /**
+     * Returns a stored value as a double, unsigned when the variable is
+     * unsigned.
+     *
+     * @param index index of the value
+     * @return the stored value
+     */
+    protected abstract double getRaw(int index);
+
+    /**
+     * Returns a value, unpacked. A missing value of a packed or floating
+     * variable is NaN. The missing values of the integers are kept, as
+     * NetCdf does.
+     *
+     * @param index index of the value
+     * @return the value
+     */
+    public double getDouble(final int index) {
+        final double raw = getRaw(index);
+        if (this.isInteger) {
+            return raw;
+        }
+        if (this.hasMissing && isMissing(raw)) {
+            return Double.NaN;
+        }
+        return this.isPacked ? raw * this.scale + this.offset : raw;
+    }
+
+    /**
+     * Returns a value of a float column, unpacked. A missing value is NaN.
+     *
+     * @param index index of the value
+     * @return the value
+     */
+    public float getFloat(final int index) {
+        return (float) getDouble(index);
+    }
+
+    private boolean isMissing(final double raw) {
+        if (raw == this.fillValue || raw == this.missingValue) {
+            return true;
+        }
+        final double unpacked = raw * this.scale + this.offset;
+        return (this.isValidMinUnpacked ? unpacked : raw) < this.validMin
+                || (this.isValidMaxUnpacked ? unpacked : raw) > this.validMax;
+    }
+
+    /**
+     * Tests whether the values are unsigned.
+     *
+     * @return True when the variable has _Unsigned = "true" otherwise False
+     */
+    public boolean isUnsigned() {
+        return this.isUnsigned;
+    }
+
+    private static boolean isTrue(final Attribute attribute) {
+        return attribute != null && "true".equalsIgnoreCase(attribute.getStringValue());
+    }
+
+    /**
+     * Tests if a packing attribute is a float or missing.
+     *
+     * @param variable variable
+     * @param name packing attribute
+     * @return True when the attribute is a float or missing
+     */
+    private static boolean isFloat(final Variable variable, final String name) {
+        final Attribute attribute = variable.findAttribute(name);
+        return attribute == null || attribute.getDataType() == DataType.FLOAT;
+    }
+
+    /**
+     * Tests if a valid_min, valid_max or valid_range attribute is given in
+     * unpacked units, that is when the variable is packed and the type of the
+     * attribute differs from the storage type.
+     *
+     * @param variable variable
+     * @param name attribute
+     * @return True when the attribute is compared with the unpacked values
+     */
+    private boolean isUnpacked(final Variable variable, final String name) {
+        final Attribute attribute = (variable == null) ? null : variable.findAttribute(name);
+        return this.isPacked && attribute != null && attribute.getDataType() != variable.getDataType();
+    }
+
+    private static double getNumber(final Variable variable, final String name, final double defaultValue) {
+        final Attribute attribute = (variable == null) ? null : variable.findAttribute(name);
+        return (attribute == null || attribute.getNumericValue() == null)
+                ? defaultValue : attribute.getNumericValue().doubleValue();
+    }
+
+    private static final class ByteColumn extends Column {
+
+        private final byte[] values;
+
+        private ByteColumn(final byte[] values, final int[] shape, final Variable variable) {
+            super(shape, variable, true, false);
+            this.values = values;
+        }
+
+        @Override
+        public int size() {
+            return this.values.length;
+        }
+
+        @Override
+        public Object getStorage() {
+            return this.values;
+        }
+
+        @Override
+        public long getLong(final int index) {
+            return isUnsigned() ? this.values[index] & 0xFFL : this.values[index];
+        }
+
+        @Override
+        protected double getRaw(final int index) {
+            return getLong(index);
+        }
+    }
+
+    private static final class ShortColumn extends Column {
+
+        private final short[] values;
+
+        private ShortColumn(final short[] values, final int[] shape, final Variable variable) {
+            super(shape, variable, true, false);
+            this.values = values;
+        }
+
+        @Override
+        public int size() {
+            return this.values.length;
+        }
+
+        @Override
+        public Object getStorage() {
+            return this.values;
+        }
+
+        @Override
+        public long getLong(final int index) {
+            return isUnsigned() ? this.values[index] & 0xFFFFL : this.values[index];
+        }
+
+        @Override
+        protected double getRaw(final int index) {
+            return getLong(index);
+        }
+    }
+
+    private static final class IntColumn extends Column {
+
+        private final int[] values;
+
+        private IntColumn(final int[] values, final int[] shape, final Variable variable) {
+            super(shape, variable, true, false);
+            this.values = values;
+        }
+
+        @Override
+        public int size() {
+            return this.values.length;
+        }
+
+        @Override
+        public Object getStorage() {
+            return this.values;
+        }
+
+        @Override
+        public long getLong(final int index) {
+            return isUnsigned() ? this.values[index] & 0xFFFFFFFFL : this.values[index];
+        }
+
+        @Override
+        protected double getRaw(final int index) {
+            return getLong(index);
+        }
+    }
+
+    private static final class LongColumn extends Column {
+
+        private final long[] values;
+
+        private LongColumn(final long[] values, final int[] shape, final Variable variable) {
+            super(shape, variable, true, false);
+            this.values = values;
+        }
+
+        @Override
+        public int size() {
+            return this.values.length;
+        }
+
+        @Override
+        public Object getStorage() {
+            return this.values;
+        }
+
+        @Override
+        public long getLong(final int index) {
+            return this.values[index];
+        }
+
+        @Override
+        protected double getRaw(final int index) {
+            final long value = this.values[index];
+            return (isUnsigned() && value < 0) ? value + 0x1p64 : value;
+        }
+    }
+
+    private static final class FloatColumn extends Column {
+
+        private final float[] values;
+
+        private FloatColumn(final float[] values, final int[] shape, final Variable variable) {
+            super(shape, variable, false, true);
+            this.values = values;
+        }
+
+        @Override
+        public int size() {
+            return this.values.length;
+        }
+
+        @Override
+        public Object getStorage() {
+            return this.values;
+        }
+
+        @Override
+        public long getLong(final int index) {
+            return (long) this.values[index];
+        }
+
+        @Override
+        protected double getRaw(final int index) {
+            return this.values[index];
+        }
+    }
+
+    private static final class DoubleColumn extends Column {
+
+        private final double[] values;
+
+        private DoubleColumn(final double[] values, final int[] shape, final Variable variable) {
+            super(shape, variable, false, false);
+            this.values = values;
+        }
+
+        @Override
+        public int size() {
+            return this.values.length;
+        }
+
+        @Override
+        public Object getStorage() {
+            return this.values;
+        }
+
+        @Override
+        public long getLong(final int index) {
+            return (long) this.values[index];
+        }
+
+        @Override
+        protected double getRaw(final int index) {
+            return this.values[index];
+        }
+    }
+}
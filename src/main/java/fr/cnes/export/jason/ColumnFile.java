@@ -0,0 +1,550 @@
+ /******************************************************************************
+ * Copyright 2017 CNES - CENTRE NATIONAL d'ETUDES SPATIALES
+ *
+ * This file is part of Regards.
+ *
+ * Regards is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Regards is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Regards.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package fr.cnes.export.jason;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntToDoubleFunction;
+import java.util.function.IntToLongFunction;
+
+/**
+ * Binary columnar file of a pass, written next to its GeoJSON file so that
+ * the along-track arrays can be loaded without parsing.
+ *
+ * The file is little-endian :
+ * <pre>
+ * magic "JCOL", version (int32), number of columns (int32), size of the header (int32)
+ * for each column :
+ *   name, units, description : length (int32) followed by the UTF-8 bytes
+ *   type (int8), flags (int8, 1 for unsigned integers), 2 bytes of padding
+ *   number of values (int64), offset of the values in the file (int64)
+ * values of each column, starting on a multiple of 8 bytes
+ * </pre>
+ * The file is read by memory-mapping it, each column being a view of the
+ * mapping.
+ */
+public class ColumnFile implements Closeable {
+
+    /**
+     * Extension of the columnar files.
+     */
+    public static final String EXTENSION = ".cols";
+
+    private static final byte[] MAGIC = {'J', 'C', 'O', 'L'};
+    private static final int VERSION = 1;
+    private static final int ALIGNMENT = 8;
+    private static final int FLAG_UNSIGNED = 1;
+
+    /**
+     * Type of the values of a column.
+     */
+    public enum Type {
+        INT8(1, 1), INT16(2, 2), INT32(3, 4), INT64(4, 8), FLOAT32(5, 4), FLOAT64(6, 8);
+
+        private final int code;
+        private final int size;
+
+        Type(final int code, final int size) {
+            this.code = code;
+            this.size = size;
+        }
+
+        /**
+         * Returns the number of bytes of a value.
+         *
+         * @return the size
+         */
+        public int getSize() {
+            return this.size;
+        }
+
+        /**
+         * Returns the type of a primitive type.
+         *
+         * @param type byte.class, short.class, int.class, long.class,
+         * float.class or double.class
+         * @return the type
+         */
+        public static Type of(final Class<?> type) {
+            if (type == byte.class) {
+                return INT8;
+            } else if (type == short.class) {
+                return INT16;
+            } else if (type == int.class) {
+                return INT32;
+            } else if (type == long.class) {
+                return INT64;
+            } else if (type == float.class) {
+                return FLOAT32;
+            }
+            return FLOAT64;
+        }
+
+        private static Type fromCode(final int code) throws IOException {
+            for (final Type type : values()) {
+                if (type.code == code) {
+                    return type;
+                }
+            }
+            throw new IOException("Unknown column type " + code);
+        }
+    }
+
+    private final FileChannel channel;
+    private final MappedByteBuffer mapping;
+    private final Map<String, ColumnInfo> columns;
+
+    private ColumnFile(final FileChannel channel, final MappedByteBuffer mapping,
+            final Map<String, ColumnInfo> columns) {
+        this.channel = channel;
+        this.mapping = mapping;
+        this.columns = columns;
+    }
+
+    /**
+     * Opens a columnar file by memory-mapping it.
+     *
+     * @param file columnar file
+     * @return the opened file
+     * @throws IOException When the file cannot be read or is not a columnar
+     * file
+     */
+    public static ColumnFile open(final File file) throws IOException {
+        final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            final MappedByteBuffer mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            mapping.order(ByteOrder.LITTLE_ENDIAN);
+            final ByteBuffer header = mapping.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+            for (final byte expected : MAGIC) {
+                if (header.get() != expected) {
+                    throw new IOException(file + " is not a columnar file");
+                }
+            }
+            final int version = header.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported version " + version + " of " + file);
+            }
+            final int nbColumns = header.getInt();
+            header.getInt();
+            final Map<String, ColumnInfo> columns = new LinkedHashMap<>();
+            for (int i = 0; i < nbColumns; i++) {
+                final String name = readString(header);
+                final String units = readString(header);
+                final String description = readString(header);
+                final Type type = Type.fromCode(header.get());
+                final boolean isUnsigned = (header.get() & FLAG_UNSIGNED) != 0;
+                header.getShort();
+                final long count = header.getLong();
+                final long offset = header.getLong();
+                if (offset + count * type.getSize() > mapping.capacity()) {
+                    throw new IOException("Truncated column " + name + " of " + file);
+                }
+                columns.put(name, new ColumnInfo(units, description, type, isUnsigned, (int) count, (int) offset));
+            }
+            return new ColumnFile(channel, mapping, columns);
+        } catch (IOException | RuntimeException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Returns the names of the columns, in the order of the file.
+     *
+     * @return the names
+     */
+    public List<String> getNames() {
+        return Collections.unmodifiableList(new ArrayList<>(this.columns.keySet()));
+    }
+
+    /**
+     * Tests whether the file has a column.
+     *
+     * @param name column
+     * @return True when the column exists otherwise False
+     */
+    public boolean contains(final String name) {
+        return this.columns.containsKey(name);
+    }
+
+    /**
+     * Returns the type of the values of a column.
+     *
+     * @param name column
+     * @return the type
+     */
+    public Type getType(final String name) {
+        return getInfo(name).type;
+    }
+
+    /**
+     * Tests whether the integers of a column are unsigned.
+     *
+     * @param name column
+     * @return True when the integers are unsigned otherwise False
+     */
+    public boolean isUnsigned(final String name) {
+        return getInfo(name).isUnsigned;
+    }
+
+    /**
+     * Returns the units of a column.
+     *
+     * @param name column
+     * @return the units, empty when unknown
+     */
+    public String getUnits(final String name) {
+        return getInfo(name).units;
+    }
+
+    /**
+     * Returns the description of a column.
+     *
+     * @param name column
+     * @return the description, empty when unknown
+     */
+    public String getDescription(final String name) {
+        return getInfo(name).description;
+    }
+
+    /**
+     * Returns the number of values of a column.
+     *
+     * @param name column
+     * @return the number of values
+     */
+    public int getCount(final String name) {
+        return getInfo(name).count;
+    }
+
+    /**
+     * Returns the little-endian bytes of the values of a column, as a view of
+     * the mapping.
+     *
+     * @param name column
+     * @return the bytes
+     */
+    public ByteBuffer getBuffer(final String name) {
+        final ColumnInfo info = getInfo(name);
+        final ByteBuffer buffer = this.mapping.duplicate();
+        buffer.position(info.offset).limit(info.offset + info.count * info.type.getSize());
+        return buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Returns the values of an INT16 column.
+     *
+     * @param name column
+     * @return the values, as a view of the mapping
+     */
+    public ShortBuffer getShorts(final String name) {
+        return getBuffer(name, Type.INT16).asShortBuffer();
+    }
+
+    /**
+     * Returns the values of an INT32 column.
+     *
+     * @param name column
+     * @return the values, as a view of the mapping
+     */
+    public IntBuffer getInts(final String name) {
+        return getBuffer(name, Type.INT32).asIntBuffer();
+    }
+
+    /**
+     * Returns the values of an INT64 column.
+     *
+     * @param name column
+     * @return the values, as a view of the mapping
+     */
+    public LongBuffer getLongs(final String name) {
+        return getBuffer(name, Type.INT64).asLongBuffer();
+    }
+
+    /**
+     * Returns the values of a FLOAT32 column.
+     *
+     * @param name column
+     * @return the values, as a view of the mapping
+     */
+    public FloatBuffer getFloats(final String name) {
+        return getBuffer(name, Type.FLOAT32).asFloatBuffer();
+    }
+
+    /**
+     * Returns the values of a FLOAT64 column.
+     *
+     * @param name column
+     * @return the values, as a view of the mapping
+     */
+    public DoubleBuffer getDoubles(final String name) {
+        return getBuffer(name, Type.FLOAT64).asDoubleBuffer();
+    }
+
+    /**
+     * Closes the file. The mapping is released by the garbage collector, so
+     * the buffers stay readable.
+     *
+     * @throws IOException When the file cannot be closed
+     */
+    @Override
+    public void close() throws IOException {
+        this.channel.close();
+    }
+
+    private ByteBuffer getBuffer(final String name, final Type type) {
+        if (getInfo(name).type != type) {
+            throw new IllegalArgumentException("Column " + name + " is " + getInfo(name).type + ", not " + type);
+        }
+        return getBuffer(name);
+    }
+
+    private ColumnInfo getInfo(final String name) {
+        final ColumnInfo info = this.columns.get(name);
+        if (info == null) {
+            throw new IllegalArgumentException("Unknown column " + name);
+        }
+        return info;
+    }
+
+    private static String readString(final ByteBuffer buffer) {
+        final byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Description of a column.
+     */
+    private static class ColumnInfo {
+
+        private final String units;
+        private final String description;
+        private final Type type;
+        private final boolean isUnsigned;
+        private final int count;
+        private final int offset;
+
+        ColumnInfo(final String units, final String description, final Type type, final boolean isUnsigned,
+                final int count, final int offset) {
+            this.units = units;
+            this.description = description;
+            this.type = type;
+            this.isUnsigned = isUnsigned;
+            this.count = count;
+            this.offset = offset;
+        }
+    }
+
+    /**
+     * Writer of a columnar file. The columns are added with a function giving
+     * their values, which are only read when the file is written.
+     */
+    public static class Writer {
+
+        private final List<PendingColumn> pendingColumns = new ArrayList<>();
+        private long size = 0;
+
+        /**
+         * Adds a FLOAT64 column.
+         *
+         * @param name column
+         * @param units units or null
+         * @param description description or null
+         * @param count number of values
+         * @param values value of each index
+         * @return this writer
+         */
+        public Writer addDoubles(final String name, final String units, final String description,
+                final int count, final IntToDoubleFunction values) {
+            this.pendingColumns.add(new PendingColumn(name, units, description, Type.FLOAT64, false, count,
+                    values, null));
+            return this;
+        }
+
+        /**
+         * Adds an integer column.
+         *
+         * @param name column
+         * @param units units or null
+         * @param description description or null
+         * @param type INT8, INT16, INT32 or INT64
+         * @param isUnsigned True when the integers are unsigned
+         * @param count number of values
+         * @param values value of each index, truncated to the type
+         * @return this writer
+         */
+        public Writer addIntegers(final String name, final String units, final String description,
+                final Type type, final boolean isUnsigned, final int count, final IntToLongFunction values) {
+            if (type == Type.FLOAT32 || type == Type.FLOAT64) {
+                throw new IllegalArgumentException(type + " is not an integer type");
+            }
+            this.pendingColumns.add(new PendingColumn(name, units, description, type, isUnsigned, count,
+                    null, values));
+            return this;
+        }
+
+        /**
+         * Writes the file.
+         *
+         * @param channel channel receiving the file
+         * @param buffer buffer in which the file is written before being
+         * flushed, of at least 8 bytes and larger than the header
+         * @throws IOException When the file cannot be written
+         */
+        public void write(final WritableByteChannel channel, final ByteBuffer buffer) throws IOException {
+            buffer.clear();
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            int headerSize = MAGIC.length + 3 * Integer.BYTES;
+            for (final PendingColumn column : this.pendingColumns) {
+                headerSize += 3 * Integer.BYTES + column.name.length + column.units.length
+                        + column.description.length + 4 + 2 * Long.BYTES;
+            }
+            headerSize = align(headerSize);
+            buffer.put(MAGIC).putInt(VERSION).putInt(this.pendingColumns.size()).putInt(headerSize);
+            long offset = headerSize;
+            for (final PendingColumn column : this.pendingColumns) {
+                buffer.putInt(column.name.length).put(column.name);
+                buffer.putInt(column.units.length).put(column.units);
+                buffer.putInt(column.description.length).put(column.description);
+                buffer.put((byte) column.type.code).put((byte) (column.isUnsigned ? FLAG_UNSIGNED : 0)).putShort((short) 0);
+                buffer.putLong(column.count).putLong(offset);
+                offset = align(offset + (long) column.count * column.type.getSize());
+            }
+            pad(buffer, headerSize);
+            long position = 0;
+            for (final PendingColumn column : this.pendingColumns) {
+                for (int i = 0; i < column.count; i++) {
+                    if (buffer.remaining() < Long.BYTES) {
+                        position += flush(channel, buffer);
+                    }
+                    column.put(buffer, i);
+                }
+                final int padding = (int) (align(position + buffer.position()) - position - buffer.position());
+                if (buffer.remaining() < padding) {
+                    position += flush(channel, buffer);
+                }
+                for (int i = 0; i < padding; i++) {
+                    buffer.put((byte) 0);
+                }
+            }
+            position += flush(channel, buffer);
+            this.size = position;
+        }
+
+        /**
+         * Returns the number of bytes of the written file.
+         *
+         * @return the size
+         */
+        public long getSize() {
+            return this.size;
+        }
+
+        private static int flush(final WritableByteChannel channel, final ByteBuffer buffer) throws IOException {
+            buffer.flip();
+            final int count = buffer.remaining();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+            return count;
+        }
+
+        private static void pad(final ByteBuffer buffer, final int size) {
+            while (buffer.position() < size) {
+                buffer.put((byte) 0);
+            }
+        }
+
+        private static int align(final int position) {
+            return (position + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+        }
+
+        private static long align(final long position) {
+            return (position + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+        }
+    }
+
+    /**
+     * Column added to a writer.
+     */
+    private static class PendingColumn {
+
+        private final byte[] name;
+        private final byte[] units;
+        private final byte[] description;
+        private final Type type;
+        private final boolean isUnsigned;
+        private final int count;
+        private final IntToDoubleFunction doubles;
+        private final IntToLongFunction integers;
+
+        PendingColumn(final String name, final String units, final String description, final Type type,
+                final boolean isUnsigned, final int count, final IntToDoubleFunction doubles,
+                final IntToLongFunction integers) {
+            this.name = name.getBytes(StandardCharsets.UTF_8);
+            this.units = (units == null) ? new byte[0] : units.getBytes(StandardCharsets.UTF_8);
+            this.description = (description == null) ? new byte[0] : description.getBytes(StandardCharsets.UTF_8);
+            this.type = type;
+            this.isUnsigned = isUnsigned;
+            this.count = count;
+            this.doubles = doubles;
+            this.integers = integers;
+        }
+
+        void put(final ByteBuffer buffer, final int index) {
+            switch (this.type) {
+                case INT8:
+                    buffer.put((byte) this.integers.applyAsLong(index));
+                    break;
+                case INT16:
+                    buffer.putShort((short) this.integers.applyAsLong(index));
+                    break;
+                case INT32:
+                    buffer.putInt((int) this.integers.applyAsLong(index));
+                    break;
+                case INT64:
+                    buffer.putLong(this.integers.applyAsLong(index));
+                    break;
+                default:
+                    buffer.putDouble(this.doubles.applyAsDouble(index));
+                    break;
+            }
+        }
+    }
+}
@@ -0,0 +1,293 @@
+ /******************************************************************************
+ * Copyright 2017 CNES - CENTRE NATIONAL d'ETUDES SPATIALES
+ *
+ * This file is part of Regards.
+ *
+ * Regards is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Regards is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Regards.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package fr.cnes.export.jason;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Checksum;
+import org.apache.log4j.Logger;
+
+/**
+ * Encoded document held in memory, in chunks borrowed from the
+ * {@link BufferPool}, up to a memory limit.
+ *
+ * The encode stage writes the document in the buffer and the write stage
+ * copies it to the target of the sink, so that the storage never delays the
+ * encoding. A document growing beyond the memory limit is spilled to a
+ * temporary file of the spool directory, never to the output, so that the
+ * memory held by a document is bounded whatever the size of the file. The
+ * chunks and the temporary file are given back by {@link #release()}.
+ */
+public class DocumentBuffer implements WritableByteChannel {
+
+    /**
+     * Capacity of a chunk.
+     */
+    private static final int CHUNK_SIZE = 262144;
+
+    /**
+     * Suffix of a file while it is written.
+     */
+    private static final String PART_SUFFIX = ".part";
+
+    /**
+     * Prefix of the temporary files of the spilled documents.
+     */
+    private static final String SPILL_PREFIX = "document";
+
+    private static final Logger LOGGER = Logger.getLogger(DocumentBuffer.class.getName());
+
+    private final List<ByteBuffer> chunks = new ArrayList<>();
+    private final File spillDirectory;
+    private final long memoryLimit;
+    private File spillFile = null;
+    private FileChannel spill = null;
+    private long size = 0;
+    private boolean isReleased = false;
+
+    /**
+     * Creates a buffer kept in memory whatever its size.
+     */
+    public DocumentBuffer() {
+        this(null, Long.MAX_VALUE);
+    }
+
+    /**
+     * Creates a buffer spilled to a temporary file beyond a memory limit.
+     *
+     * @param spillDirectory directory of the temporary file
+     * @param memoryLimit number of bytes kept in memory
+     */
+    public DocumentBuffer(final File spillDirectory, final long memoryLimit) {
+        this.spillDirectory = spillDirectory;
+        this.memoryLimit = memoryLimit;
+    }
+
+    @Override
+    public int write(final ByteBuffer src) throws IOException {
+        if (this.isReleased) {
+            throw new ClosedChannelException();
+        }
+        final int count = src.remaining();
+        if (this.spill == null && this.size + count > this.memoryLimit) {
+            spill();
+        }
+        if (this.spill != null) {
+            while (src.hasRemaining()) {
+                this.spill.write(src);
+            }
+            this.size += count;
+            return count;
+        }
+        while (src.hasRemaining()) {
+            ByteBuffer chunk = this.chunks.isEmpty() ? null : this.chunks.get(this.chunks.size() - 1);
+            if (chunk == null || !chunk.hasRemaining()) {
+                chunk = BufferPool.getInstance().borrowBuffer(CHUNK_SIZE);
+                this.chunks.add(chunk);
+            }
+            final int length = Math.min(chunk.remaining(), src.remaining());
+            final ByteBuffer slice = src.duplicate();
+            slice.limit(slice.position() + length);
+            chunk.put(slice);
+            src.position(src.position() + length);
+        }
+        this.size += count;
+        return count;
+    }
+
+    /**
+     * Returns the number of bytes of the document.
+     *
+     * @return the size
+     */
+    public long size() {
+        return this.size;
+    }
+
+    /**
+     * Writes the whole document to a channel. The document can be written
+     * several times.
+     *
+     * @param channel target
+     * @throws IOException When the channel cannot be written
+     */
+    public void writeTo(final WritableByteChannel channel) throws IOException {
+        if (this.spill != null) {
+            long position = 0;
+            while (position < this.size) {
+                position += this.spill.transferTo(position, this.size - position, channel);
+            }
+            return;
+        }
+        for (final ByteBuffer chunk : this.chunks) {
+            final ByteBuffer content = chunk.duplicate();
+            content.flip();
+            while (content.hasRemaining()) {
+                channel.write(content);
+            }
+        }
+    }
+
+    /**
+     * Updates a checksum with the bytes of the document.
+     *
+     * @param checksum checksum
+     * @throws IOException When the spilled document cannot be read
+     */
+    public void updateChecksum(final Checksum checksum) throws IOException {
+        if (this.spill != null) {
+            final BufferPool pool = BufferPool.getInstance();
+            final ByteBuffer buffer = pool.borrowBuffer(CHUNK_SIZE);
+            try {
+                long position = 0;
+                int count;
+                while (position < this.size && (count = this.spill.read(buffer, position)) > 0) {
+                    checksum.update(buffer.array(), buffer.arrayOffset(), count);
+                    position += count;
+                    buffer.clear();
+                }
+            } finally {
+                pool.release(buffer);
+            }
+            return;
+        }
+        for (final ByteBuffer chunk : this.chunks) {
+            checksum.update(chunk.array(), chunk.arrayOffset(), chunk.position());
+        }
+    }
+
+    /**
+     * Writes the document to a temporary file next to the file, then renames
+     * it to the file, so that the file is always complete. A spilled document
+     * is moved to the file when the spool directory is on the same file
+     * system, and cannot be written again afterwards.
+     *
+     * @param file target file
+     * @throws IOException When the file cannot be written
+     */
+    public void writeFile(final File file) throws IOException {
+        if (this.spill != null) {
+            this.spill.close();
+            try {
+                Files.move(this.spillFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+                this.spill = null;
+                this.spillFile = null;
+                this.size = 0;
+                return;
+            } catch (AtomicMoveNotSupportedException ex) {
+                this.spill = FileChannel.open(this.spillFile.toPath(), StandardOpenOption.READ);
+            }
+        }
+        final File part = new File(file.getPath() + PART_SUFFIX);
+        try (FileChannel channel = FileChannel.open(part.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeTo(channel);
+        } catch (IOException | RuntimeException ex) {
+            Files.deleteIfExists(part.toPath());
+            throw ex;
+        }
+        Files.move(part.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Gives back the chunks to the pool and deletes the temporary file. The
+     * buffer must not be used anymore.
+     */
+    public void release() {
+        this.isReleased = true;
+        final BufferPool pool = BufferPool.getInstance();
+        this.chunks.stream().forEach(pool::release);
+        this.chunks.clear();
+        if (this.spillFile != null) {
+            try {
+                if (this.spill != null) {
+                    this.spill.close();
+                }
+                Files.deleteIfExists(this.spillFile.toPath());
+            } catch (IOException ex) {
+                LOGGER.warn("Cannot delete " + this.spillFile + ", it is deleted by the next run", ex);
+            }
+            this.spill = null;
+            this.spillFile = null;
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !this.isReleased;
+    }
+
+    /**
+     * Does nothing : the document stays readable until it is released.
+     */
+    @Override
+    public void close() {
+        // the chunks are given back by release()
+    }
+
+    /**
+     * Deletes the temporary files left in the spool directory by an
+     * interrupted run.
+     *
+     * @param spillDirectory directory of the temporary files
+     */
+    public static void deleteSpilledFiles(final File spillDirectory) {
+        final File[] files = spillDirectory.listFiles((dir, name) -> name.startsWith(SPILL_PREFIX)
+                && name.endsWith(PART_SUFFIX));
+        if (files == null) {
+            return;
+        }
+        for (final File file : files) {
+            if (!file.delete()) {
+                LOGGER.warn("Cannot delete " + file);
+            }
+        }
+    }
+
+    /**
+     * Moves the document from the memory to a temporary file of the spool
+     * directory and gives back its chunks.
+     *
+     * @throws IOException When the temporary file cannot be written
+     */
+    private void spill() throws IOException {
+        this.spillFile = File.createTempFile(SPILL_PREFIX, PART_SUFFIX, this.spillDirectory);
+        this.spill = FileChannel.open(this.spillFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        final BufferPool pool = BufferPool.getInstance();
+        for (final ByteBuffer chunk : this.chunks) {
+            chunk.flip();
+            while (chunk.hasRemaining()) {
+                this.spill.write(chunk);
+            }
+            pool.release(chunk);
+        }
+        this.chunks.clear();
+    }
+}
@@ -0,0 +1,186 @@
+ /******************************************************************************
+ * Copyright 2017 CNES - CENTRE NATIONAL d'ETUDES SPATIALES
+ *
+ * This file is part of Regards.
+ *
+ * Regards is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Regards is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Regards.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package fr.cnes.export.jason;
+
+/**
+ * Formats the doubles and the floats in JSON with the shortest decimal text
+ * that is parsed back to the same double or float, without creating a String.
+ *
+ * The value is written as an integer m with d decimals, for the smallest d
+ * such that m / 10^d is the value. Both m and 10^d are exact doubles, so the
+ * division is the double nearest to the decimal text, which is what a parser
+ * returns. A float is compared with this double rounded to a float, so that
+ * 0.1f is written 0.1 and not as the decimals of the widened double. The
+ * values needing more than 17 decimals or 15 integer digits are formatted by
+ * {@link Double#toString} or {@link Float#toString}.
+ */
+public final class DoubleFormatter {
+
+    /**
+     * Maximum number of bytes written for a value.
+     */
+    public static final int MAX_LENGTH = 32;
+
+    private static final int MAX_DECIMALS = 17;
+
+    /**
+     * Largest integer below which all the integers are exact doubles.
+     */
+    private static final double MAX_EXACT = 9007199254740992.0;
+
+    private static final double[] POWERS_OF_TEN = new double[MAX_DECIMALS + 1];
+
+    private static final byte[] NULL = {'n', 'u', 'l', 'l'};
+
+    static {
+        double power = 1;
+        for (int i = 0; i <= MAX_DECIMALS; i++) {
+            POWERS_OF_TEN[i] = power;
+            power *= 10;
+        }
+    }
+
+    private DoubleFormatter() {
+    }
+
+    /**
+     * Writes a value. NaN and infinities, which are not JSON numbers, are
+     * written as null.
+     *
+     * @param value value
+     * @param dest destination, with at least {@link #MAX_LENGTH} bytes from
+     * the offset
+     * @param offset position of the first byte
+     * @return the position after the last byte
+     */
+    public static int format(final double value, final byte[] dest, final int offset) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            System.arraycopy(NULL, 0, dest, offset, NULL.length);
+            return offset + NULL.length;
+        }
+        int position = offset;
+        if (value < 0 || value == 0 && 1 / value < 0) {
+            dest[position++] = '-';
+        }
+        final double abs = Math.abs(value);
+        for (int decimals = 0; decimals <= MAX_DECIMALS; decimals++) {
+            final double scaled = abs * POWERS_OF_TEN[decimals];
+            if (scaled >= MAX_EXACT) {
+                break;
+            }
+            final double mantissa = Math.rint(scaled);
+            if (mantissa / POWERS_OF_TEN[decimals] == abs) {
+                return writeDecimal((long) mantissa, decimals, dest, position);
+            }
+        }
+        final String text = Double.toString(abs);
+        for (int i = 0; i < text.length(); i++) {
+            dest[position++] = (byte) text.charAt(i);
+        }
+        return position;
+    }
+
+    /**
+     * Writes a float with the shortest decimal text parsed back to the same
+     * float. NaN and infinities, which are not JSON numbers, are written as
+     * null.
+     *
+     * @param value value
+     * @param dest destination, with at least {@link #MAX_LENGTH} bytes from
+     * the offset
+     * @param offset position of the first byte
+     * @return the position after the last byte
+     */
+    public static int format(final float value, final byte[] dest, final int offset) {
+        if (Float.isNaN(value) || Float.isInfinite(value)) {
+            System.arraycopy(NULL, 0, dest, offset, NULL.length);
+            return offset + NULL.length;
+        }
+        int position = offset;
+        if (value < 0 || value == 0 && 1 / value < 0) {
+            dest[position++] = '-';
+        }
+        final float abs = Math.abs(value);
+        for (int decimals = 0; decimals <= MAX_DECIMALS; decimals++) {
+            final double scaled = abs * POWERS_OF_TEN[decimals];
+            if (scaled >= MAX_EXACT) {
+                break;
+            }
+            final double mantissa = Math.rint(scaled);
+            if ((float) (mantissa / POWERS_OF_TEN[decimals]) == abs) {
+                return writeDecimal((long) mantissa, decimals, dest, position);
+            }
+        }
+        final String text = Float.toString(abs);
+        for (int i = 0; i < text.length(); i++) {
+            dest[position++] = (byte) text.charAt(i);
+        }
+        return position;
+    }
+
+    /**
+     * Writes a long.
+     *
+     * @param value value
+     * @param dest destination, with at least {@link #MAX_LENGTH} bytes from
+     * the offset
+     * @param offset position of the first byte
+     * @return the position after the last byte
+     */
+    public static int format(final long value, final byte[] dest, final int offset) {
+        int position = offset;
+        if (value < 0) {
+            dest[position++] = '-';
+        }
+        int nbDigits = 1;
+        for (long rest = value / 10; rest != 0; rest /= 10) {
+            nbDigits++;
+        }
+        long rest = value;
+        for (int i = position + nbDigits - 1; i >= position; i--) {
+            dest[i] = (byte) ('0' + Math.abs(rest % 10));
+            rest /= 10;
+        }
+        return position + nbDigits;
+    }
+
+    private static int writeDecimal(final long mantissa, final int decimals, final byte[] dest, final int offset) {
+        int nbDigits = 1;
+        for (long rest = mantissa / 10; rest > 0; rest /= 10) {
+            nbDigits++;
+        }
+        final int nbIntegerDigits = Math.max(1, nbDigits - decimals);
+        final int length = nbIntegerDigits + 1 + Math.max(1, decimals);
+        int position = offset + length - 1;
+        long rest = mantissa;
+        if (decimals == 0) {
+            dest[position--] = '0';
+        }
+        for (int i = 0; i < decimals; i++) {
+            dest[position--] = (byte) ('0' + rest % 10);
+            rest /= 10;
+        }
+        dest[position--] = '.';
+        for (int i = 0; i < nbIntegerDigits; i++) {
+            dest[position--] = (byte) ('0' + rest % 10);
+            rest /= 10;
+        }
+        return offset + length;
+    }
+}
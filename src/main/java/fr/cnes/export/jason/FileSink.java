@@ -0,0 +1,137 @@
+ /******************************************************************************
+ * Copyright 2017 CNES - CENTRE NATIONAL d'ETUDES SPATIALES
+ *
+ * This file is part of Regards.
+ *
+ * Regards is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Regards is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Regards.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package fr.cnes.export.jason;
+
+import fr.cnes.geojson.GeoJsonParser;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+import org.apache.log4j.Logger;
+
+/**
+ * Sink writing a GeoJSON file per file : the encoded document is written to a
+ * temporary file renamed to the output file, so that an output file is always
+ * complete, and recorded in the journal.
+ */
+public class FileSink implements OutputSink {
+
+    /**
+     * Logger.
+     */
+    private static final Logger LOGGER = Logger.getLogger(FileSink.class.getName());
+
+    /**
+     * Journal of the processed files or null.
+     */
+    private final ProcessedJournal journal;
+
+    /**
+     * True when the GeoJSON files are compressed in gzip.
+     */
+    private final boolean isCompressed;
+
+    /**
+     * GeoJSON parser of each writer thread.
+     */
+    private final ThreadLocal<GeoJsonParser> parsers = ThreadLocal.withInitial(GeoJsonParser::new);
+
+    /**
+     * Creates the sink.
+     *
+     * @param journal journal of the processed files or null to check the output files
+     * @param isCompressed True when the GeoJSON files are compressed in gzip
+     */
+    public FileSink(final ProcessedJournal journal, final boolean isCompressed) {
+        this.journal = journal;
+        this.isCompressed = isCompressed;
+    }
+
+    @Override
+    public boolean isLineDelimited() {
+        return false;
+    }
+
+    /**
+     * Tests if the GeoJSON file of a file exists and is valid. It is parsed,
+     * or decompressed when it is compressed, and added to the journal when it
+     * is valid.
+     *
+     * @param uri file
+     * @return True when the GeoJSON file is valid otherwise False
+     */
+    @Override
+    public boolean contains(final String uri) {
+        final File file = Processor.getFilenameUriAsGeoJson(uri);
+        boolean result = file.exists();
+        LOGGER.trace("File " + file.getName() + " exists ? " + result);
+        if (result) {
+            try {
+                if (this.isCompressed) {
+                    checkGzip(file);
+                } else {
+                    this.parsers.get().parse(file);
+                }
+            } catch (IOException ex) {
+                LOGGER.info(file.getName() + " is corrupted, process it again", ex);
+                result = false;
+            }
+        }
+        if (result && this.journal != null) {
+            try {
+                this.journal.recordExisting(uri, file);
+            } catch (IOException ex) {
+                LOGGER.error("Cannot add " + file.getName() + " in the journal", ex);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void write(final String uri, final DocumentBuffer document, final long size, final long checksum)
+            throws IOException {
+        final File output = Processor.getFilenameUriAsGeoJson(uri);
+        document.writeFile(output);
+        if (this.journal != null) {
+            this.journal.record(uri, output, size, checksum);
+        }
+    }
+
+    @Override
+    public void close() {
+        // each file is complete once renamed
+    }
+
+    /**
+     * Checks a compressed GeoJson file by decompressing it, the gzip stream
+     * ending with the CRC32 and the size of the document.
+     *
+     * @param file compressed GeoJson file
+     * @throws IOException When the file is truncated or corrupted
+     */
+    private static void checkGzip(final File file) throws IOException {
+        final byte[] buffer = new byte[65536];
+        try (InputStream is = new GZIPInputStream(new FileInputStream(file), buffer.length)) {
+            while (is.read(buffer) != -1) {
+                // the CRC32 and the size are checked at the end of the stream
+            }
+        }
+    }
+}
@@ -22,23 +22,26 @@ package fr.cnes.export.jason;
 
 import fr.cnes.export.settings.Consts;
 import fr.cnes.export.settings.Settings;
+import fr.cnes.export.source.CrawlFilter;
+import fr.cnes.export.source.FileSizeIndex;
 import fr.cnes.export.source.Files;
 import fr.cnes.export.source.IFiles;
+import fr.cnes.export.source.ListingManifest;
+import fr.cnes.export.source.ParallelFiles;
+import fr.cnes.export.source.Shard;
 import gnu.getopt.Getopt;
 import gnu.getopt.LongOpt;
 import java.io.File;
 import java.io.IOException;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 import org.apache.log4j.PropertyConfigurator;
@@ -104,11 +107,6 @@ public class JASON {
         }
     };
 
-    /**
-     * Number of maximum threads to download data : {@value #THREAD_COUNT}
-     */
-    private static final int THREAD_COUNT = 8;
-
     /**
      * Logger.
      */
@@ -125,15 +123,23 @@ public class JASON {
     private final long startTime = System.currentTimeMillis();
 
     /**
-     * Queue that contains the list of files to download.
+     * Queue that contains the list of files to download. The indexation waits
+     * for room in the queue and ends it by {@link Pipeline#END_OF_FILES}.
      */
-    private final Queue<String> dataQueue = new ConcurrentLinkedQueue<>();
+    private final BlockingQueue<String> dataQueue = Pipeline.createFilesQueue(
+            "largest_first".equalsIgnoreCase(Settings.getInstance().getString(Consts.SCHEDULING, "crawl")),
+            Settings.getInstance().getInt(Consts.FILE_QUEUE_SIZE, "1000"));
 
     /**
      * Settings.
      */
     private final Settings settings = Settings.getInstance();
 
+    /**
+     * Directory listings of the incremental crawl or null to crawl everything.
+     */
+    private ListingManifest manifest = null;
+
     /**
      * Constructor. The Ftp directory is initialized by the configuration file.
      */
@@ -166,6 +172,18 @@ public class JASON {
         LOGGER.info("Data will be saved in " + outputString);
     }    
 
+    /**
+     * Creates the directory where the large documents are spilled and deletes
+     * the documents left by an interrupted run.
+     */
+    private void createSpillDirectoryIfNeeded() {
+        final File spillDirectory = Processor.getSpillDirectory();
+        if (!spillDirectory.exists() && !spillDirectory.mkdirs()) {
+            LOGGER.error("Cannot create the spool directory " + spillDirectory);
+        }
+        DocumentBuffer.deleteSpilledFiles(spillDirectory);
+    }
+
     /**
      * Processes the process to transform a part of the NETCDF to GeoJSon.
      */
@@ -173,18 +191,240 @@ public class JASON {
         LOGGER.trace("Entering in processConvertion");
         LOGGER.trace(String.format("FTP_DIRECTORY : %s", this.ftpDirectory));        
         createOutputDirectoryIfNeeded();
+        createSpillDirectoryIfNeeded();
+        ProcessedJournal journal = null;
+        OutputSink sink = null;
         try {
-            IFiles fileIterator = Files.openDirectory(this.ftpDirectory);
+            journal = openJournal();
+            // opened before the indexation, whose progress is printed on the
+            // standard output until the stdout sink redirects it
+            sink = openSink(journal);
+            final Thread verification = startJournalVerification(journal);
+            IFiles fileIterator = openFileIterator();
             final Map<String, Object> attributes = initProcessingAttributes();
             countFilesToProcess(fileIterator, attributes, dataQueue);
-            waitDataQueueContainsOneRecord(dataQueue);
-            processFilesInQueue(startTime, dataQueue, attributes);
+            processFilesInQueue(startTime, dataQueue, attributes, journal, sink);
+            if (verification != null) {
+                // the records left are the files not listed by this run
+                verification.interrupt();
+                verification.join();
+            }
         } catch (Exception ex) {
             LOGGER.error(String.format("Cannot process %s", this.ftpDirectory), ex);
+        } finally {
+            if (sink != null) {
+                try {
+                    sink.close();
+                } catch (IOException ex) {
+                    LOGGER.error("Cannot close the output", ex);
+                }
+            }
+            if (journal != null) {
+                journal.close();
+            }
         }
         LOGGER.trace("exiting in processConvertion");
     }
 
+    /**
+     * Opens the journal of the processed files.
+     *
+     * @return the journal or null when no journal is configured
+     * @throws IOException
+     */
+    private ProcessedJournal openJournal() throws IOException {
+        if (!this.settings.hasValue(Consts.JOURNAL)) {
+            return null;
+        }
+        final File journalFile = getNodeFile(Consts.JOURNAL);
+        LOGGER.info("Processed files are recorded in " + journalFile);
+        return new ProcessedJournal(journalFile, isJournalVerified());
+    }
+
+    /**
+     * Opens the sink of the output mode : a GeoJSON file per file, rolling
+     * files named after the shard of this node when the processing is
+     * sharded, the standard output or a socket. The columnar files are
+     * written next to the GeoJSON files and are only allowed in the files
+     * mode.
+     *
+     * @param journal journal of the processed files or null
+     * @return the sink
+     * @throws IOException When the sink cannot be opened
+     */
+    private OutputSink openSink(final ProcessedJournal journal) throws IOException {
+        final String mode = this.settings.getString(Consts.OUTPUT_MODE, "files");
+        if (Boolean.parseBoolean(this.settings.getString(Consts.COLUMNAR_SIDECAR, "false"))
+                && !"files".equalsIgnoreCase(mode)) {
+            throw new IllegalArgumentException("The columnar files are written next to the GeoJSON files,"
+                    + " they cannot be used with the output mode " + mode);
+        }
+        switch (mode.toLowerCase()) {
+            case "files":
+                return new FileSink(journal, Processor.isCompressedOutput());
+            case "sequence":
+                final String prefix = this.settings.hasValue(Consts.SHARD)
+                        ? SequenceOutput.PREFIX + Shard.parse(this.settings.getString(Consts.SHARD)).getSuffix()
+                        : SequenceOutput.PREFIX;
+                return new SequenceOutput(new File(this.settings.getString(Consts.OUTPUT)), prefix,
+                        this.settings.getLong(Consts.SEQUENCE_MAX_BYTES, "268435456"),
+                        this.settings.getInt(Consts.SEQUENCE_MAX_FEATURES, "10000"), journal);
+            case "stdout":
+                return StreamSink.toStandardOutput();
+            case "socket":
+                return StreamSink.connect(this.settings.getString(Consts.SINK_ADDRESS));
+            default:
+                throw new IllegalArgumentException("Unknown output mode " + mode
+                        + ", expected files, sequence, stdout or socket");
+        }
+    }
+
+    /**
+     * Starts a thread logging the depth of the queues of the pipeline at a
+     * regular interval, until it is interrupted.
+     *
+     * @param pipeline pipeline
+     * @return the thread or null when no interval is configured
+     */
+    private Thread startQueueMonitor(final Pipeline pipeline) {
+        final long interval = this.settings.getLong(Consts.QUEUE_REPORT_INTERVAL, "0");
+        if (interval <= 0) {
+            return null;
+        }
+        final Thread monitor = new Thread(() -> {
+            try {
+                while (true) {
+                    Thread.sleep(interval * 1000);
+                    LOGGER.info("Queue depths : " + pipeline.getQueueDepths());
+                }
+            } catch (InterruptedException ex) {
+                // the pipeline is over
+            }
+        }, "queue-monitor");
+        monitor.setDaemon(true);
+        monitor.start();
+        return monitor;
+    }
+
+    /**
+     * Tests whether the output files of the journal are verified.
+     *
+     * @return True when the journal is verified otherwise False
+     */
+    private boolean isJournalVerified() {
+        return Boolean.parseBoolean(this.settings.getString(Consts.JOURNAL_VERIFY, "false"));
+    }
+
+    /**
+     * Starts the verification of the output files of the journal while the
+     * files are indexed and processed. A file is not skipped before its
+     * record is verified.
+     *
+     * @param journal journal of the processed files
+     * @return the verification thread or null when no verification is done
+     */
+    private Thread startJournalVerification(final ProcessedJournal journal) {
+        if (journal == null || !isJournalVerified()) {
+            return null;
+        }
+        final Thread verification = new Thread(journal::verify, "journal-verification");
+        verification.setDaemon(true);
+        verification.start();
+        return verification;
+    }
+
+    /**
+     * Returns the file of a setting, suffixed by the shard of this node when
+     * the processing is sharded, so that each node writes its own file.
+     *
+     * @param key setting of the file
+     * @return the file of this node
+     */
+    private File getNodeFile(final String key) {
+        final String path = this.settings.getString(key);
+        return this.settings.hasValue(Consts.SHARD)
+                ? new File(path + Shard.parse(this.settings.getString(Consts.SHARD)).getSuffix())
+                : new File(path);
+    }
+
+    /**
+     * Merges the journals and the listing manifests written by the nodes of a
+     * sharded processing in the configured journal and listing manifest.
+     *
+     * @param count number of shards
+     * @throws IOException When a file cannot be read or written
+     */
+    private static void mergeShards(final int count) throws IOException {
+        final Settings settings = Settings.getInstance();
+        if (settings.hasValue(Consts.JOURNAL)) {
+            final List<File> journals = getShardFiles(settings.getString(Consts.JOURNAL), count);
+            final ProcessedJournal journal = new ProcessedJournal(new File(settings.getString(Consts.JOURNAL)));
+            try {
+                LOGGER.info(journal.merge(journals) + " records merged in the journal");
+            } finally {
+                journal.close();
+            }
+        }
+        if (settings.hasValue(Consts.LISTING_MANIFEST)) {
+            final List<File> manifests = getShardFiles(settings.getString(Consts.LISTING_MANIFEST), count);
+            new ListingManifest(new File(settings.getString(Consts.LISTING_MANIFEST))).merge(manifests);
+        }
+    }
+
+    /**
+     * Returns the existing files written by the nodes of a sharded processing.
+     *
+     * @param path configured path of the file
+     * @param count number of shards
+     * @return the files of the shards
+     */
+    private static List<File> getShardFiles(final String path, final int count) {
+        final List<File> files = new ArrayList<>();
+        for (int i = 1; i <= count; i++) {
+            final File file = new File(path + Shard.getSuffix(i, count));
+            if (file.exists()) {
+                files.add(file);
+            } else {
+                LOGGER.warn(file + " does not exist, the shard " + i + "/" + count + " is not merged");
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Opens the file iterator on the FTP directory. The tree is crawled in
+     * parallel when more than one concurrent listing is configured or
+     * incrementally when a listing manifest is configured. The directories and
+     * files rejected by the crawl filter are skipped during the crawl.
+     *
+     * @return the file iterator
+     * @throws Exception
+     */
+    private IFiles openFileIterator() throws Exception {
+        final int crawlerThreads = this.settings.getInt(Consts.CRAWLER_THREADS, "1");
+        LOGGER.info("Crawling with " + crawlerThreads + " concurrent listing(s)");
+        final CrawlFilter filter = CrawlFilter.createFromSettings();
+        if (filter.isActive()) {
+            LOGGER.info("Crawling the files selected by the filter_* options");
+        }
+        if (filter.getShard() != null) {
+            LOGGER.info("Processing the shard " + filter.getShard() + " of the files");
+        }
+        final IFiles fileIterator;
+        if (this.settings.hasValue(Consts.LISTING_MANIFEST)) {
+            final File manifestFile = getNodeFile(Consts.LISTING_MANIFEST);
+            this.manifest = new ListingManifest(manifestFile,
+                    this.settings.getInt(Consts.LISTING_FULL_RESCAN, "10"));
+            LOGGER.info("Incremental crawl based on " + manifestFile);
+            fileIterator = ParallelFiles.openDirectory(this.ftpDirectory, Math.max(1, crawlerThreads), this.manifest, filter);
+        } else if (crawlerThreads > 1) {
+            fileIterator = ParallelFiles.openDirectory(this.ftpDirectory, crawlerThreads, null, filter);
+        } else {
+            fileIterator = Files.openDirectory(this.ftpDirectory, filter);
+        }
+        return fileIterator;
+    }
+
     /**
      * Starts the conversion.
      */
@@ -226,6 +466,15 @@ public class JASON {
         help.append("  -d                           : Displays the configuration file\n");
         help.append("  -f <path>                    : Loads the configuation file\n");
         help.append("  -u <ftppath>                 : Specify the root URL to proceed\n");
+        help.append("  -c|--cycles <ranges>         : Cycles to process (100-120,130 or 300-)\n");
+        help.append("  -p|--passes <ranges>         : Passes to process (1,3,10-20)\n");
+        help.append("  -s|--start <date>            : Start of the time window (yyyy-MM-dd or yyyy-MM-ddTHH:mm:ss)\n");
+        help.append("  -e|--end <date>              : End of the time window (yyyy-MM-dd or yyyy-MM-ddTHH:mm:ss)\n");
+        help.append("  -n|--name <glob>             : Glob on the file names, or regex:<expression>\n");
+        help.append("  -i|--io-threads <n>          : Number of concurrent downloads (fetch stage)\n");
+        help.append("  -t|--cpu-threads <n>         : Number of threads decoding and encoding the files\n");
+        help.append("  -k|--shard <i/N>             : Processes the part i (1 to N) of the files\n");
+        help.append("  -m|--merge-shards <N>        : Merges the journals and listing manifests of N shards\n");
         help.append("  -v|--version                 : DOI server version\n");
         help.append("\n");
         help.append("\n");
@@ -265,12 +514,32 @@ public class JASON {
          */
         String customDirectoryURL = null;
         
-        LongOpt[] longopts = new LongOpt[2];
+        /**
+         * The settings given on the command line, applied once the
+         * configuration file is loaded.
+         */
+        final Map<String, String> optionSettings = new HashMap<>();
+
+        /**
+         * Number of shards to merge or 0.
+         */
+        int mergedShards = 0;
+
+        LongOpt[] longopts = new LongOpt[11];
         longopts[0] = new LongOpt("help", LongOpt.NO_ARGUMENT, null, 'h');
         longopts[1] = new LongOpt("version", LongOpt.NO_ARGUMENT, null, 'v');
+        longopts[2] = new LongOpt("cycles", LongOpt.REQUIRED_ARGUMENT, null, 'c');
+        longopts[3] = new LongOpt("passes", LongOpt.REQUIRED_ARGUMENT, null, 'p');
+        longopts[4] = new LongOpt("start", LongOpt.REQUIRED_ARGUMENT, null, 's');
+        longopts[5] = new LongOpt("end", LongOpt.REQUIRED_ARGUMENT, null, 'e');
+        longopts[6] = new LongOpt("name", LongOpt.REQUIRED_ARGUMENT, null, 'n');
+        longopts[7] = new LongOpt("io-threads", LongOpt.REQUIRED_ARGUMENT, null, 'i');
+        longopts[8] = new LongOpt("cpu-threads", LongOpt.REQUIRED_ARGUMENT, null, 't');
+        longopts[9] = new LongOpt("shard", LongOpt.REQUIRED_ARGUMENT, null, 'k');
+        longopts[10] = new LongOpt("merge-shards", LongOpt.REQUIRED_ARGUMENT, null, 'm');
 
         //options
-        Getopt g = new Getopt(progName, argv, "hvdfu:", longopts);
+        Getopt g = new Getopt(progName, argv, "hvdfu:c:p:s:e:n:i:t:k:m:", longopts);
         //        
         while ((c = g.getopt()) != -1) {
             switch (c) {
@@ -294,6 +563,33 @@ public class JASON {
                     customDirectoryURL = g.getOptarg();
                     hasCustomDirectoryURI = true;
                     break;
+                case 'c':
+                    optionSettings.put(Consts.FILTER_CYCLES, g.getOptarg());
+                    break;
+                case 'p':
+                    optionSettings.put(Consts.FILTER_PASSES, g.getOptarg());
+                    break;
+                case 's':
+                    optionSettings.put(Consts.FILTER_START, g.getOptarg());
+                    break;
+                case 'e':
+                    optionSettings.put(Consts.FILTER_END, g.getOptarg());
+                    break;
+                case 'n':
+                    optionSettings.put(Consts.FILTER_NAME, g.getOptarg());
+                    break;
+                case 'i':
+                    optionSettings.put(Consts.FETCH_THREADS, g.getOptarg());
+                    break;
+                case 't':
+                    optionSettings.put(Consts.CPU_THREADS, g.getOptarg());
+                    break;
+                case 'k':
+                    optionSettings.put(Consts.SHARD, g.getOptarg());
+                    break;
+                case 'm':
+                    mergedShards = Integer.parseInt(g.getOptarg());
+                    break;
                 case 'v':
                     displayVersion();
                     break;
@@ -309,11 +605,15 @@ public class JASON {
             System.err.println(String.format("Non option argv element: {0}\n", argv[i]));
         }
 
+        optionSettings.forEach(settings::setValue);
+
         final JASON jason;
-        if (hasCustomDirectoryURI) {
+        if (mergedShards > 0) {
+            mergeShards(mergedShards);
+        } else if (hasCustomDirectoryURI) {
             jason = new JASON(customDirectoryURL);
             jason.start();
-        } else if (argv.length == 0 || hasOwnProperties) {
+        } else if (argv.length == 0 || hasOwnProperties || !optionSettings.isEmpty()) {
             jason = new JASON();
             jason.start();
         } else {
@@ -327,8 +627,10 @@ public class JASON {
      * processing. The stored attributes are :
      * <ul>
      * <li>isCounted</li>
-     * <li>nbFiles</li>
+     * <li>nbFiles : number of the written, skipped or failed files</li>
      * <li>nbTotalFiles</li>
+     * <li>nbDoneBytes : size of the written, skipped or failed files</li>
+     * <li>nbTotalBytes : size of the indexed files</li>
      * </ul>
      *
      * @return map to monitor the processing
@@ -339,6 +641,8 @@ public class JASON {
         attributes.put("isCounted", false);
         attributes.put("nbFiles", 0);
         attributes.put("nbTotalFiles", 0);
+        attributes.put("nbDoneBytes", new AtomicLong(0));
+        attributes.put("nbTotalBytes", new AtomicLong(0));
         LOGGER.debug(attributes);
         LOGGER.trace("Exiting in initProcessingAttributes");
         return attributes;
@@ -352,23 +656,31 @@ public class JASON {
      * @param dataQueue Files to processConversion queue
      */
     private void countFilesToProcess(final IFiles fileIterator, 
-            final Map<String, Object> attributes, final Queue<String> dataQueue) {
+            final Map<String, Object> attributes, final BlockingQueue<String> dataQueue) {
         LOGGER.trace("Entering in countFilesToProcess");
         final Thread t = new Thread() {
             @Override
             public void run() {
                 String file;
                 int i = 0;
-                while ((file = fileIterator.nextFile()) != null) {
-                    dataQueue.add(file);
-                    i++;
-                    displayMessage(i);
+                try {
+                    final AtomicLong totalBytes = (AtomicLong) attributes.get("nbTotalBytes");
+                    while ((file = fileIterator.nextFile()) != null) {
+                        totalBytes.addAndGet(Math.max(0, FileSizeIndex.getInstance().getSize(file)));
+                        dataQueue.put(file);
+                        i++;
+                        displayMessage(i);
+                    }
+                    System.out.print("\n");
+                    attributes.put("isCounted", true);
+                    attributes.put("nbTotalFiles", i);
+                    LOGGER.debug(attributes);
+                    LOGGER.info(i + " files to process");
+                } catch (InterruptedException ex) {
+                    LOGGER.warn("Indexation interrupted after " + i + " files");
+                } finally {
+                    signalEndOfFiles(dataQueue);
                 }
-                System.out.print("\n");
-                attributes.put("isCounted", true);
-                attributes.put("nbTotalFiles", i);
-                LOGGER.debug(attributes);
-                LOGGER.info(i + " files to process");
             }
 
             private void displayMessage(int i) {
@@ -379,6 +691,7 @@ public class JASON {
             LOGGER.log(Level.ERROR, "A not recoverable error has been detected during the indexation, the program is shutting down", ex);
             System.err.println("A not recoverable error has been detected during the indexation, the program is shutting down. Please look at the log file");
             dataQueue.clear();
+            signalEndOfFiles(dataQueue);
             Thread.currentThread().interrupt();
         });
         t.start();
@@ -386,44 +699,94 @@ public class JASON {
     }
 
     /**
-     * Waits the files queue starts to be filled.
+     * Ends the files queue so that the pipeline stops once the queued files
+     * are processed.
      *
      * @param dataQueue files queue
-     * @throws InterruptedException
      */
-    private void waitDataQueueContainsOneRecord(final Queue<String> dataQueue) 
-            throws InterruptedException {
-        LOGGER.trace("Entering in waitDataQueueContainsOneRecord");
-        while (dataQueue.isEmpty()) {
-            // Wait for the thread to start writing into the queue
-            LOGGER.debug("Waiting 10 ms");
-            Thread.sleep(10);
+    private static void signalEndOfFiles(final BlockingQueue<String> dataQueue) {
+        try {
+            dataQueue.put(Pipeline.END_OF_FILES);
+        } catch (InterruptedException ex) {
+            LOGGER.error("Cannot signal the end of the indexation", ex);
+            Thread.currentThread().interrupt();
         }
-        LOGGER.trace("Exiting in waitDataQueueContainsOneRecord");
     }
 
     /**
-     * Process files from the queue
+     * Process files from the queue through the stages of the pipeline.
      *
      * @param startTime start time of the program
      * @param dataQueue files queue
      * @param attributes attributes for processing
-     * @return a thread pool that reuses a fixed number of threads operating off
-     * a shared unbounded queue
+     * @param journal journal of the processed files or null to check the output files
+     * @param sink target of the write stage
      * @throws InterruptedException
      */
-    private ExecutorService processFilesInQueue(long startTime, 
-            final Queue<String> dataQueue, final Map<String, Object> attributes) 
-            throws InterruptedException {
+    private void processFilesInQueue(long startTime, 
+            final BlockingQueue<String> dataQueue, final Map<String, Object> attributes,
+            final ProcessedJournal journal, final OutputSink sink) throws InterruptedException {
         LOGGER.trace("Entering in processFilesInQueue");
-        final ExecutorService es = Executors.newFixedThreadPool(THREAD_COUNT);
-        for (int i = 0; i < THREAD_COUNT; i++) {
-            es.execute(new Processor(startTime, attributes, dataQueue));
+        // the CPU threads are shared by the extract and encode stages unless they are set
+        final int cpuThreads = this.settings.hasValue(Consts.CPU_THREADS)
+                ? this.settings.getInt(Consts.CPU_THREADS)
+                : Runtime.getRuntime().availableProcessors();
+        final int encodeThreads = this.settings.hasValue(Consts.ENCODE_THREADS)
+                ? this.settings.getInt(Consts.ENCODE_THREADS)
+                : Math.max(1, cpuThreads / 3);
+        final int extractThreads = this.settings.hasValue(Consts.EXTRACT_THREADS)
+                ? this.settings.getInt(Consts.EXTRACT_THREADS)
+                : Math.max(1, cpuThreads - encodeThreads);
+        final Pipeline pipeline = new Pipeline(startTime, attributes, dataQueue,
+                Metadata.createDownloaderFromSettings(KEYWORDS_TO_EXTRACT), journal, sink,
+                new RetryScheduler(this.settings.getInt(Consts.RETRY_MAX_ATTEMPTS, "5"),
+                        this.settings.getLong(Consts.RETRY_INITIAL_DELAY, "10000"),
+                        this.settings.getLong(Consts.RETRY_MAX_DELAY, "300000")),
+                this.settings.getInt(Consts.FETCH_THREADS, "8"),
+                this.settings.getInt(Consts.VIRTUAL_FETCHES, "0"),
+                extractThreads,
+                encodeThreads,
+                this.settings.getInt(Consts.WRITE_THREADS, "1"),
+                this.settings.getInt(Consts.STAGE_QUEUE_SIZE, "16"));
+        pipeline.start();
+        final Thread monitor = startQueueMonitor(pipeline);
+        try {
+            pipeline.awaitTermination();
+        } finally {
+            if (monitor != null) {
+                monitor.interrupt();
+            }
         }
-        es.shutdown();
-        es.awaitTermination(1, TimeUnit.MINUTES);
+        pipeline.logStatistics();
+        final List<String> unprocessedFiles = pipeline.getFailedFiles();
+        dataQueue.stream().filter((file) -> file != Pipeline.END_OF_FILES).forEach(unprocessedFiles::add);
+        saveManifest(unprocessedFiles, attributes);
         LOGGER.trace("Exiting in processFilesInQueue");
-        return es;
+    }
+
+    /**
+     * Saves the listings of the incremental crawl. The files that have not
+     * been processed are forgotten so that the next run queues them again.
+     *
+     * @param failedFiles files that have not been processed
+     * @param attributes attributes for processing
+     */
+    private void saveManifest(final List<String> failedFiles, final Map<String, Object> attributes) {
+        if (this.manifest == null) {
+            return;
+        }
+        if (!(boolean) attributes.get("isCounted")) {
+            LOGGER.warn("The indexation is not finished, the listing manifest is not saved");
+            return;
+        }
+        failedFiles.stream().forEach((failedFile) -> {
+            this.manifest.forget(failedFile);
+        });
+        try {
+            this.manifest.save();
+        } catch (IOException ex) {
+            LOGGER.error("Cannot save the listing manifest", ex);
+        }
     }
 
 }
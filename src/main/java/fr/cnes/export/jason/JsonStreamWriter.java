@@ -0,0 +1,407 @@
+ /******************************************************************************
+ * Copyright 2017 CNES - CENTRE NATIONAL d'ETUDES SPATIALES
+ *
+ * This file is part of Regards.
+ *
+ * Regards is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Regards is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Regards.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package fr.cnes.export.jason;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Writes a JSON document in a buffer flushed to a channel, without building
+ * the document in memory.
+ *
+ * The size and the CRC32 of the written bytes are computed while the buffer
+ * is flushed. In pretty mode, the members of the objects and the elements of
+ * the arrays are written on their own lines, except the elements of the
+ * arrays begun inline.
+ */
+public class JsonStreamWriter {
+
+    private static final int MAX_DEPTH = 64;
+
+    private static final byte[] HEX = "0123456789abcdef".getBytes(java.nio.charset.StandardCharsets.US_ASCII);
+
+    private final WritableByteChannel channel;
+    private final ByteBuffer buffer;
+    private final boolean isPretty;
+    private final byte[] scratch = new byte[DoubleFormatter.MAX_LENGTH];
+    private final CRC32 checksum = new CRC32();
+    private final boolean[] isFirst = new boolean[MAX_DEPTH];
+    private final boolean[] isInline = new boolean[MAX_DEPTH];
+    private int depth = 0;
+    private boolean isAfterName = false;
+    private long size = 0;
+
+    /**
+     * Creates a writer.
+     *
+     * @param channel channel receiving the document
+     * @param buffer buffer in which the document is written before being
+     * flushed, of at least {@link DoubleFormatter#MAX_LENGTH} bytes
+     * @param isPretty True to indent the document
+     */
+    public JsonStreamWriter(final WritableByteChannel channel, final ByteBuffer buffer, final boolean isPretty) {
+        this.channel = channel;
+        this.buffer = buffer;
+        this.isPretty = isPretty;
+        this.buffer.clear();
+    }
+
+    /**
+     * Begins an object.
+     *
+     * @return this writer
+     * @throws IOException When the channel cannot be written
+     */
+    public JsonStreamWriter beginObject() throws IOException {
+        return begin('{', false);
+    }
+
+    /**
+     * Ends an object.
+     *
+     * @return this writer
+     * @throws IOException When the channel cannot be written
+     */
+    public JsonStreamWriter endObject() throws IOException {
+        return end('}');
+    }
+
+    /**
+     * Begins an array whose elements are written on their own lines in pretty
+     * mode.
+     *
+     * @return this writer
+     * @throws IOException When the channel cannot be written
+     */
+    public JsonStreamWriter beginArray() throws IOException {
+        return begin('[', false);
+    }
+
+    /**
+     * Begins an array whose elements are written on a same line.
+     *
+     * @return this writer
+     * @throws IOException When the channel cannot be written
+     */
+    public JsonStreamWriter beginInlineArray() throws IOException {
+        return begin('[', true);
+    }
+
+    /**
+     * Ends an array.
+     *
+     * @return this writer
+     * @throws IOException When the channel cannot be written
+     */
+    public JsonStreamWriter endArray() throws IOException {
+        return end(']');
+    }
+
+    /**
+     * Writes the name of a member of an object.
+     *
+     * @param name name
+     * @return this writer
+     * @throws IOException When the channel cannot be written
+     */
+    public JsonStreamWriter name(final String name) throws IOException {
+        separate();
+        writeString(name);
+        writeByte(':');
+        if (this.isPretty) {
+            writeByte(' ');
+        }
+        this.isAfterName = true;
+        return this;
+    }
+
+    /**
+     * Writes a string.
+     *
+     * @param value value or null
+     * @return this writer
+     * @throws IOException When the channel cannot be written
+     */
+    public JsonStreamWriter value(final String value) throws IOException {
+        separate();
+        if (value == null) {
+            writeNull();
+        } else {
+            writeString(value);
+        }
+        return this;
+    }
+
+    /**
+     * Writes a double, null when it is NaN or infinite.
+     *
+     * @param value value
+     * @return this writer
+     * @throws IOException When the channel cannot be written
+     */
+    public JsonStreamWriter value(final double value) throws IOException {
+        separate();
+        ensure(DoubleFormatter.MAX_LENGTH);
+        final int length = DoubleFormatter.format(value, this.scratch, 0);
+        this.buffer.put(this.scratch, 0, length);
+        return this;
+    }
+
+    /**
+     * Writes a float, null when it is NaN or infinite.
+     *
+     * @param value value
+     * @return this writer
+     * @throws IOException When the channel cannot be written
+     */
+    public JsonStreamWriter value(final float value) throws IOException {
+        separate();
+        ensure(DoubleFormatter.MAX_LENGTH);
+        final int length = DoubleFormatter.format(value, this.scratch, 0);
+        this.buffer.put(this.scratch, 0, length);
+        return this;
+    }
+
+    /**
+     * Writes a long.
+     *
+     * @param value value
+     * @return this writer
+     * @throws IOException When the channel cannot be written
+     */
+    public JsonStreamWriter value(final long value) throws IOException {
+        separate();
+        ensure(DoubleFormatter.MAX_LENGTH);
+        final int length = DoubleFormatter.format(value, this.scratch, 0);
+        this.buffer.put(this.scratch, 0, length);
+        return this;
+    }
+
+    /**
+     * Writes a value : null, a string, a number, a boolean, a map whose keys
+     * are the names of the members, an array of strings or a primitive array
+     * of numbers. The other values are written as their string.
+     *
+     * @param value value
+     * @return this writer
+     * @throws IOException When the channel cannot be written
+     */
+    public JsonStreamWriter value(final Object value) throws IOException {
+        if (value == null) {
+            separate();
+            writeNull();
+        } else if (value instanceof String) {
+            value((String) value);
+        } else if (value instanceof Float) {
+            value(((Float) value).floatValue());
+        } else if (value instanceof Double) {
+            value(((Number) value).doubleValue());
+        } else if (value instanceof Number) {
+            value(((Number) value).longValue());
+        } else if (value instanceof Boolean) {
+            separate();
+            writeAscii(value.toString());
+        } else if (value instanceof Map) {
+            beginObject();
+            for (final Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                name(String.valueOf(entry.getKey()));
+                value(entry.getValue());
+            }
+            endObject();
+        } else if (value instanceof double[]) {
+            beginInlineArray();
+            for (final double element : (double[]) value) {
+                value(element);
+            }
+            endArray();
+        } else if (value instanceof int[]) {
+            beginInlineArray();
+            for (final int element : (int[]) value) {
+                value(element);
+            }
+            endArray();
+        } else if (value instanceof long[]) {
+            beginInlineArray();
+            for (final long element : (long[]) value) {
+                value(element);
+            }
+            endArray();
+        } else if (value instanceof Object[]) {
+            beginInlineArray();
+            for (final Object element : (Object[]) value) {
+                value(element);
+            }
+            endArray();
+        } else {
+            value(value.toString());
+        }
+        return this;
+    }
+
+    /**
+     * Ends the line of a document, such as a record of a newline-delimited
+     * sequence of documents written in compact mode.
+     *
+     * @return this writer
+     * @throws IOException When the channel cannot be written
+     */
+    public JsonStreamWriter endLine() throws IOException {
+        writeByte('\n');
+        return this;
+    }
+
+    /**
+     * Writes the buffered bytes to the channel.
+     *
+     * @throws IOException When the channel cannot be written
+     */
+    public void flush() throws IOException {
+        this.buffer.flip();
+        this.checksum.update(this.buffer.duplicate());
+        this.size += this.buffer.remaining();
+        while (this.buffer.hasRemaining()) {
+            this.channel.write(this.buffer);
+        }
+        this.buffer.clear();
+    }
+
+    /**
+     * Returns the number of bytes flushed to the channel.
+     *
+     * @return the size
+     */
+    public long getSize() {
+        return this.size;
+    }
+
+    /**
+     * Returns the CRC32 of the bytes flushed to the channel.
+     *
+     * @return the checksum
+     */
+    public long getChecksum() {
+        return this.checksum.getValue();
+    }
+
+    private JsonStreamWriter begin(final char bracket, final boolean inline) throws IOException {
+        separate();
+        writeByte(bracket);
+        this.depth++;
+        this.isFirst[this.depth] = true;
+        this.isInline[this.depth] = inline;
+        return this;
+    }
+
+    private JsonStreamWriter end(final char bracket) throws IOException {
+        final boolean isEmpty = this.isFirst[this.depth];
+        final boolean inline = this.isInline[this.depth];
+        this.depth--;
+        if (this.isPretty && !inline && !isEmpty) {
+            newLine();
+        }
+        writeByte(bracket);
+        return this;
+    }
+
+    /**
+     * Writes the separator before a value or a member name.
+     */
+    private void separate() throws IOException {
+        if (this.isAfterName) {
+            this.isAfterName = false;
+            return;
+        }
+        if (this.depth == 0) {
+            return;
+        }
+        if (!this.isFirst[this.depth]) {
+            writeByte(',');
+            if (this.isPretty && this.isInline[this.depth]) {
+                writeByte(' ');
+            }
+        }
+        this.isFirst[this.depth] = false;
+        if (this.isPretty && !this.isInline[this.depth]) {
+            newLine();
+        }
+    }
+
+    private void newLine() throws IOException {
+        ensure(1 + 2 * this.depth);
+        this.buffer.put((byte) '\n');
+        for (int i = 0; i < this.depth; i++) {
+            this.buffer.put((byte) ' ').put((byte) ' ');
+        }
+    }
+
+    private void writeNull() throws IOException {
+        writeAscii("null");
+    }
+
+    private void writeAscii(final String text) throws IOException {
+        ensure(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            this.buffer.put((byte) text.charAt(i));
+        }
+    }
+
+    private void writeByte(final char value) throws IOException {
+        ensure(1);
+        this.buffer.put((byte) value);
+    }
+
+    /**
+     * Writes a string quoted and escaped, encoded in UTF-8.
+     */
+    private void writeString(final String value) throws IOException {
+        writeByte('"');
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            ensure(6);
+            if (c == '"' || c == '\\') {
+                this.buffer.put((byte) '\\').put((byte) c);
+            } else if (c < 0x20) {
+                this.buffer.put((byte) '\\').put((byte) 'u').put((byte) '0').put((byte) '0')
+                        .put(HEX[c >> 4]).put(HEX[c & 0xF]);
+            } else if (c < 0x80) {
+                this.buffer.put((byte) c);
+            } else if (c < 0x800) {
+                this.buffer.put((byte) (0xC0 | c >> 6)).put((byte) (0x80 | c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                final int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                this.buffer.put((byte) (0xF0 | codePoint >> 18)).put((byte) (0x80 | codePoint >> 12 & 0x3F))
+                        .put((byte) (0x80 | codePoint >> 6 & 0x3F)).put((byte) (0x80 | codePoint & 0x3F));
+            } else {
+                this.buffer.put((byte) (0xE0 | c >> 12)).put((byte) (0x80 | c >> 6 & 0x3F))
+                        .put((byte) (0x80 | c & 0x3F));
+            }
+        }
+        writeByte('"');
+    }
+
+    private void ensure(final int length) throws IOException {
+        if (this.buffer.remaining() < length) {
+            flush();
+        }
+    }
+}
@@ -18,16 +18,28 @@
  ******************************************************************************/
 package fr.cnes.export.jason;
 
+import fr.cnes.export.settings.Consts;
+import fr.cnes.export.settings.Settings;
+import fr.cnes.export.source.FtpConnection;
+import fr.cnes.export.source.FtpConnectionPool;
+import fr.cnes.export.source.Netcdf3Header;
+import fr.cnes.export.source.RangeDownloader;
+import fr.cnes.export.source.SpoolDownloader;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Formatter;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import org.apache.log4j.Level;
-import ucar.ma2.Array;
 import ucar.ma2.DataType;
 import ucar.nc2.Attribute;
 import ucar.nc2.NetcdfFile;
@@ -38,19 +50,41 @@ import ucar.nc2.dataset.VariableDS;
 import ucar.nc2.time.CalendarDate;
 
 /**
+ * Extraction context of a NetCdf file.
+ *
+ * The dataset is closed as soon as the variables are extracted. The values of
+ * the variables are kept packed in {@link Column}s. In spool mode, the
+ * variables of a NetCDF-3 file are read from the disk in primitive arrays
+ * borrowed from the {@link BufferPool}, which are given back by
+ * {@link #close} once the file is encoded.
  *
  * @author Jean-Christophe Malapert <jean-christophe.malapert@cnes.fr>
  */
-public class Metadata {
+public class Metadata implements Closeable {
     
     private NetcdfDataset ncfile = null;
+    private NetcdfFile rawFile = null;
+    private Netcdf3Header header = null;
+    private FileChannel channel = null;
+    private final List<Attribute> globalAttributes = new ArrayList<>();
+    private final List<Object> borrowedArrays = new ArrayList<>();
+    private TimeDecoder timeDecoder = null;
+    private Column timeValues = null;
+    private Column timeSeconds = null;
     private String uri;
     private final List<String> keywordsToExtract;
     private final Map<String, Object> data = new HashMap<>();
     private final Map<String, String> units = new HashMap<>();
     private final Map<String, String> description = new HashMap<>();
     private final Map<String, Map<Integer, String>> mappings = new HashMap<>();
+    private final SpoolDownloader downloader;
+    private final boolean isEpochTime;
     private static final org.apache.log4j.Logger LOGGER = org.apache.log4j.Logger.getLogger(JASON.class.getName());    
+
+    /**
+     * Units of the time in the epoch time format.
+     */
+    public static final String EPOCH_SECONDS = "seconds since 1970-01-01T00:00:00Z";
     
 
     /**
@@ -58,12 +92,43 @@ public class Metadata {
      * @param keywordsToExtract variables to extract from NetCdf
      */
     public Metadata(final List<String> keywordsToExtract) {
+        this(keywordsToExtract, createDownloaderFromSettings(keywordsToExtract));
+    }
+
+    /**
+     * Creates a Metedata thats contains the whished variables from a NetCdf file
+     * @param keywordsToExtract variables to extract from NetCdf
+     * @param downloader downloader of the spool mode or null to load the files in memory
+     */
+    public Metadata(final List<String> keywordsToExtract, final SpoolDownloader downloader) {
         LOGGER.trace("Entering in Metadata");                                
         LOGGER.debug(keywordsToExtract);
         this.keywordsToExtract = keywordsToExtract;
+        this.downloader = downloader;
+        this.isEpochTime = "epoch".equalsIgnoreCase(Settings.getInstance().getString(Consts.TIME_FORMAT, "iso"));
         LOGGER.trace("Exiting in Metadata");        
     }
 
+    /**
+     * Creates the downloader according to the download mode of the configuration file.
+     * @param keywordsToExtract variables to download in ranges mode
+     * @return the downloader or null when the files are loaded in memory
+     */
+    public static SpoolDownloader createDownloaderFromSettings(final List<String> keywordsToExtract) {
+        final Settings settings = Settings.getInstance();
+        final String mode = settings.getString(Consts.DOWNLOAD_MODE, "spool");
+        if ("memory".equalsIgnoreCase(mode)) {
+            return null;
+        }
+        final File spoolDirectory = new File(settings.getString(Consts.SPOOL_DIRECTORY, "spool"));
+        final boolean keepFiles = Boolean.parseBoolean(settings.getString(Consts.SPOOL_KEEP_FILES, "false"));
+        if ("ranges".equalsIgnoreCase(mode)) {
+            return new RangeDownloader(spoolDirectory, keepFiles, FtpConnectionPool.getInstance(),
+                    keywordsToExtract, settings.getInt(Consts.RANGE_MERGE_GAP, "65536"));
+        }
+        return new SpoolDownloader(spoolDirectory, keepFiles, FtpConnectionPool.getInstance());
+    }
+
     /**
      * Adds semantic meanings for converting some variable values to human understandable value 
      * @param keyword variable
@@ -78,31 +143,170 @@ public class Metadata {
 
     /**
      * Process NetCdf file.
+     * The file is loaded once : the retries are scheduled by the caller, see {@link RetryScheduler}.
      * @param uri location of the file
      * @throws URISyntaxException 
-     * @throws java.lang.InterruptedException 
+     * @throws IOException When the file cannot be loaded
      */
-    public void process(final String uri) throws URISyntaxException, InterruptedException {
+    public void process(final String uri) throws URISyntaxException, IOException {
         LOGGER.trace("Entering in process");        
         LOGGER.debug("Processing "+uri);        
+        extract(uri, fetch(uri));
+        LOGGER.trace("Exiting in process");                
+    }
+
+    /**
+     * Fetches the NetCdf file. In spool mode, the file is downloaded in the spool
+     * directory and read from the disk, so that it is not loaded in memory.
+     * @param uri location of the file
+     * @return the opened NetCdf file
+     * @throws URISyntaxException
+     * @throws IOException 
+     */
+    public NetcdfFile fetch(final String uri) throws URISyntaxException, IOException {
+        LOGGER.debug("Fetching "+uri);        
+        if (this.downloader == null) {
+            return openInMemory(uri);
+        }
+        final File spoolFile = this.downloader.download(uri);
+        try {
+            return NetcdfFile.open(spoolFile.getPath());
+        } catch (IOException|RuntimeException ex) {
+            this.downloader.release(spoolFile);
+            throw ex;
+        }
+    }
+
+    /**
+     * Extracts the variables from a fetched NetCdf file.
+     * The dataset is closed and its spool copy released once the variables are extracted.
+     * @param uri location of the file
+     * @param file file returned by {@link #fetch}
+     * @throws IOException 
+     */
+    public void extract(final String uri, final NetcdfFile file) throws IOException {
+        LOGGER.debug("Extracting "+uri);        
         this.uri = uri;
         try {
-            NetcdfFile file = NetcdfFile.openInMemory(new URI(uri));
+            this.rawFile = file;
+            if (this.downloader != null) {
+                openRawValues(file.getLocation());
+            }
             ncfile = new NetcdfDataset(file);
+            this.globalAttributes.addAll(ncfile.getGlobalAttributes());
             extractVariablesFromNetCdf(keywordsToExtract, ncfile, data, units, description);
-        } catch (IOException|RuntimeException ioe) {
-            LOGGER.log(Level.INFO, String.format("Problem when loading %s", uri));
-            LOGGER.log(Level.INFO, "Try to reload the file in 10s");            
-            Thread.sleep(10000);
-            process(uri);
+        } finally {
+            closeRawValues();
+            if (ncfile == null) {
+                file.close();
+            } else {
+                ncfile.close();
+                ncfile = null;
+            }
+            this.rawFile = null;
+            if (this.downloader != null) {
+                this.downloader.release(new File(file.getLocation()));
+            }
         }
-        LOGGER.trace("Exiting in process");                
+    }
+
+    /**
+     * Gives back the arrays of the extracted variables to the pool. The values
+     * returned by {@link #getData} must not be used anymore.
+     */
+    @Override
+    public void close() {
+        final BufferPool pool = BufferPool.getInstance();
+        this.borrowedArrays.forEach(pool::release);
+        this.borrowedArrays.clear();
+        this.data.clear();
+        this.units.clear();
+        this.description.clear();
+        this.globalAttributes.clear();
+        this.timeDecoder = null;
+        this.timeValues = null;
+        this.timeSeconds = null;
+    }
+
+    /**
+     * Returns the time in seconds since 1970-01-01T00:00:00Z, whatever the
+     * time format.
+     * @return the time or null when the time is not extracted
+     */
+    public Column getTimeInSeconds() {
+        if (this.timeSeconds == null && this.timeDecoder != null) {
+            final double[] seconds = BufferPool.getInstance().borrow(double[].class, this.timeValues.size());
+            this.borrowedArrays.add(seconds);
+            this.timeDecoder.toEpochSeconds(this.timeValues, seconds);
+            this.timeSeconds = Column.wrap(seconds, this.timeValues.getShape(), null);
+        }
+        return this.timeSeconds;
+    }
+
+    /**
+     * Opens the spooled file to read the values of the variables without
+     * NetCdf, when it is a NetCDF-3 file.
+     * @param location spooled file
+     */
+    private void openRawValues(final String location) {
+        try {
+            this.channel = FileChannel.open(new File(location).toPath(), StandardOpenOption.READ);
+            this.header = Netcdf3Header.read(this.channel);
+        } catch (IOException ex) {
+            LOGGER.debug("Values of "+location+" read by NetCdf: "+ex.getMessage());
+            closeRawValues();
+        }
+    }
+
+    /**
+     * Closes the spooled file opened by {@link #openRawValues}.
+     */
+    private void closeRawValues() {
+        this.header = null;
+        if (this.channel != null) {
+            try {
+                this.channel.close();
+            } catch (IOException ex) {
+                LOGGER.debug("Unable to close "+this.uri, ex);
+            }
+            this.channel = null;
+        }
+    }
+
+    /**
+     * Loads the NetCdf file in memory. FTP files are downloaded with a pooled
+     * connection so that the login is not done for each file.
+     * @param uri location of the file
+     * @return the NetCdf file
+     * @throws URISyntaxException
+     * @throws IOException 
+     */
+    private NetcdfFile openInMemory(final String uri) throws URISyntaxException, IOException {
+        final URI location = new URI(uri);
+        if (!"ftp".equalsIgnoreCase(location.getScheme())) {
+            return NetcdfFile.openInMemory(location);
+        }
+        final FtpConnectionPool pool = FtpConnectionPool.getInstance();
+        final FtpConnection connection = pool.borrow(location);
+        final ByteArrayOutputStream content = new ByteArrayOutputStream();
+        try (InputStream is = connection.retrieve(location.getPath(), 0)) {
+            final byte[] buffer = new byte[65536];
+            int count;
+            while ((count = is.read(buffer)) != -1) {
+                content.write(buffer, 0, count);
+            }
+        } catch (IOException ex) {
+            pool.invalidate(location, connection);
+            throw ex;
+        }
+        pool.release(location, connection);
+        return NetcdfFile.openInMemory(uri, content.toByteArray());
     }
 
     /**
      * Returns the values of the variable.
      * Null is returned whether the variable is not found
-     * @param <T> String[] or Array
+     * @param <T> String[] or Column
      * @param keyword variable to get
      * @return the values
      */
@@ -155,8 +359,7 @@ public class Metadata {
     public Map<String, Object> getGlobalMetadata() {
         LOGGER.trace("Entering in getGlobalMetadata");                
         Map metadata = new HashMap<>();
-        List<Attribute> attributes = this.ncfile.getGlobalAttributes();
-        attributes.stream().forEach((attribute) -> {
+        this.globalAttributes.stream().forEach((attribute) -> {
             String keyword = attribute.getShortName();
             Object value = (attribute.getNumericValue() == null)
                     ? attribute.getStringValue() : attribute.getNumericValue();
@@ -168,7 +371,10 @@ public class Metadata {
     }
 
     /**
-     * Extacts time variable and converts the value as a date.
+     * Extacts time variable and converts the value as a date, or as seconds
+     * since 1970-01-01T00:00:00Z when the epoch time format is set.
+     * The units of the variable are decoded by {@link TimeDecoder} unless they
+     * are not supported by it.
      * @param keywords variable
      * @param data stored result
      */
@@ -177,14 +383,22 @@ public class Metadata {
         if (keywords.contains("time")) {
             try {
                 Variable time = ncfile.findVariable("time");
-                CoordinateAxis1DTime axis = CoordinateAxis1DTime.factory(ncfile, (VariableDS) time, new Formatter());
-                int length = time.getDimensions().get(0).getLength();
-                String[] times = new String[length];
-                for (int i = 0; i < length; i++) {
-                    CalendarDate date = axis.getCalendarDate(i);
-                    times[i] = date.toString();
+                final Attribute unitsAttribute = time.findAttributeIgnoreCase("units");
+                final Attribute calendarAttribute = time.findAttributeIgnoreCase("calendar");
+                final TimeDecoder decoder = (unitsAttribute == null) ? null : TimeDecoder.create(
+                        unitsAttribute.getStringValue(),
+                        (calendarAttribute == null) ? null : calendarAttribute.getStringValue());
+                final Column values = (decoder == null) ? null : getDataFromVariable("time");
+                if (values == null) {
+                    extractTimeFromAxis(time, data);
+                } else {
+                    this.timeDecoder = decoder;
+                    this.timeValues = values;
+                    data.put("time", this.isEpochTime ? getTimeInSeconds() : decoder.toIsoStrings(values));
+                }
+                if (this.isEpochTime) {
+                    units.put("time", EPOCH_SECONDS);
                 }
-                data.put("time", times);
             } catch (IOException ex) {
                 LOGGER.debug("Unable to extract time", ex);                                        
             }
@@ -192,6 +406,29 @@ public class Metadata {
         LOGGER.trace("Exiting in extractTime");                                
     }
 
+    /**
+     * Converts the time variable with the calendar of NetCdf, when its units
+     * are not supported by {@link TimeDecoder}.
+     * @param time time variable
+     * @param data stored result
+     * @throws IOException 
+     */
+    private void extractTimeFromAxis(final Variable time, final Map<String, Object> data) throws IOException {
+        CoordinateAxis1DTime axis = CoordinateAxis1DTime.factory(ncfile, (VariableDS) time, new Formatter());
+        int length = time.getDimensions().get(0).getLength();
+        final double[] seconds = new double[length];
+        String[] times = this.isEpochTime ? null : new String[length];
+        for (int i = 0; i < length; i++) {
+            CalendarDate date = axis.getCalendarDate(i);
+            seconds[i] = date.getMillis() / 1000.0;
+            if (times != null) {
+                times[i] = date.toString();
+            }
+        }
+        this.timeSeconds = Column.wrap(seconds, new int[]{length}, null);
+        data.put("time", this.isEpochTime ? this.timeSeconds : times);
+    }
+
     /**
      * Extracts a variable.
      * @param keyword variable
@@ -204,7 +441,7 @@ public class Metadata {
         LOGGER.debug("Extracting variable "+keyword);
         Variable variable = getVariable(keyword);
         if (variable != null) {
-            Array values = this.getDataFromVariable(keyword);
+            Column values = this.getDataFromVariable(keyword);
             dataVariables.put(keyword, values);
 
             Attribute unitsAttribute = variable.findAttributeIgnoreCase("units");
@@ -251,15 +488,19 @@ public class Metadata {
     }
 
     /**
-     * Returns the values of the variable
+     * Returns the values of the variable, as they are stored in the file.
+     * They are unpacked by the column when they are encoded.
      * @param name variable name
      * @return the values
      */
-    protected Array getDataFromVariable(final String name) {
+    protected Column getDataFromVariable(final String name) {
         LOGGER.trace("Entering in getDataFromVariable");                                                
-        Array result;
+        Column result;
         try {
-            result = getVariable(name).read();
+            final Variable variable = this.rawFile.findVariable(name);
+            final Object storage = readRawValues(variable, name);
+            result = (storage == null)
+                    ? Column.wrap(variable.read(), variable) : Column.wrap(storage, variable.getShape(), variable);
         } catch (IOException ex) {
             LOGGER.error("Unable to read the variable "+name);                                                            
             result = null;
@@ -268,6 +509,75 @@ public class Metadata {
         return result;
     }
 
+    /**
+     * Reads the values of the variable from the spooled NetCDF-3 file in a
+     * pooled array.
+     * @param variable variable of the file
+     * @param name variable name
+     * @return the primitive array of the values or null when the variable
+     * must be read by NetCdf
+     * @throws IOException When the file cannot be read
+     */
+    private Object readRawValues(final Variable variable, final String name) throws IOException {
+        if (this.header == null || !this.header.contains(name)) {
+            return null;
+        }
+        final DataType type = variable.getDataType();
+        final long byteSize = this.header.getByteSize(name);
+        final long size = variable.getSize();
+        if (byteSize > Integer.MAX_VALUE || byteSize != size * type.getSize()) {
+            return null;
+        }
+
+        final BufferPool pool = BufferPool.getInstance();
+        final Object values;
+        switch (type) {
+            case BYTE:
+                values = pool.borrow(byte[].class, (int) size);
+                break;
+            case SHORT:
+                values = pool.borrow(short[].class, (int) size);
+                break;
+            case INT:
+                values = pool.borrow(int[].class, (int) size);
+                break;
+            case FLOAT:
+                values = pool.borrow(float[].class, (int) size);
+                break;
+            case DOUBLE:
+                values = pool.borrow(double[].class, (int) size);
+                break;
+            default:
+                return null;
+        }
+        this.borrowedArrays.add(values);
+        final ByteBuffer buffer = pool.borrowBuffer((int) byteSize);
+        try {
+            this.header.readValues(this.channel, name, buffer);
+            buffer.flip();
+            switch (type) {
+                case BYTE:
+                    buffer.get((byte[]) values);
+                    break;
+                case SHORT:
+                    buffer.asShortBuffer().get((short[]) values);
+                    break;
+                case INT:
+                    buffer.asIntBuffer().get((int[]) values);
+                    break;
+                case FLOAT:
+                    buffer.asFloatBuffer().get((float[]) values);
+                    break;
+                default:
+                    buffer.asDoubleBuffer().get((double[]) values);
+                    break;
+            }
+        } finally {
+            pool.release(buffer);
+        }
+        return values;
+    }
+
     /**
      * Returns the data type of the variable
      * @param name variable
@@ -0,0 +1,66 @@
+ /******************************************************************************
+ * Copyright 2017 CNES - CENTRE NATIONAL d'ETUDES SPATIALES
+ *
+ * This file is part of Regards.
+ *
+ * Regards is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Regards is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Regards.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package fr.cnes.export.jason;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Target of the write stage, receiving the documents encoded by the encode
+ * stage.
+ *
+ * The encode stage encodes the documents in memory, or in the spool directory
+ * beyond a memory limit, and the write stage takes them from a bounded queue
+ * on its own threads, so that a slow target delays the extraction only once
+ * the queue is full. The sinks are shared by the
+ * writer threads.
+ */
+public interface OutputSink extends Closeable {
+
+    /**
+     * Tests whether the documents are encoded as a single feature line ended
+     * by a newline, neither indented nor compressed, instead of a GeoJSON
+     * file.
+     *
+     * @return True for a newline-delimited sink otherwise False
+     */
+    boolean isLineDelimited();
+
+    /**
+     * Tests if the document of a file is already in the sink, for the files
+     * that are not in the journal.
+     *
+     * @param uri file
+     * @return True when the document is in the sink and valid otherwise False
+     */
+    boolean contains(String uri);
+
+    /**
+     * Writes the encoded document of a file. It is called by the threads of
+     * the write stage only, which are the only ones writing to the target.
+     * The document is released by the caller.
+     *
+     * @param uri file
+     * @param document encoded document
+     * @param size size of the document
+     * @param checksum CRC32 of the document
+     * @throws IOException When the document cannot be written
+     */
+    void write(String uri, DocumentBuffer document, long size, long checksum) throws IOException;
+}
@@ -0,0 +1,281 @@
+ /******************************************************************************
+ * Copyright 2017 CNES - CENTRE NATIONAL d'ETUDES SPATIALES
+ *
+ * This file is part of Regards.
+ *
+ * Regards is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Regards is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Regards.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package fr.cnes.export.jason;
+
+import fr.cnes.export.settings.Consts;
+import fr.cnes.export.settings.Settings;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Channel compressing the written bytes in a gzip stream, the blocks of the
+ * stream being compressed in parallel as pigz does.
+ *
+ * The bytes are cut in blocks compressed as independent deflate blocks, each
+ * ended by a sync flush so that they are aligned on a byte, the last one
+ * ending the deflate stream. Each block is compressed with the last 32 KB of
+ * the previous block as dictionary, so that the compression ratio is close
+ * to a sequential compression. The concatenated blocks are a single valid
+ * gzip stream. A document of one block is compressed by the calling thread.
+ */
+public class ParallelGzipChannel implements WritableByteChannel {
+
+    private static final int BLOCK_SIZE = 131072;
+    private static final int DICTIONARY_SIZE = 32768;
+    private static final byte[] HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    private static final ThreadLocal<Deflater> DEFLATERS = ThreadLocal.withInitial(
+            () -> new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+
+    private final WritableByteChannel channel;
+    private final ExecutorService executor;
+    private final int maxPendingBlocks;
+    private final Deque<Future<byte[]>> pendingBlocks = new ArrayDeque<>();
+    private final CRC32 dataChecksum = new CRC32();
+    private final CRC32 checksum = new CRC32();
+    private byte[] block = new byte[BLOCK_SIZE];
+    private int blockLength = 0;
+    private byte[] dictionary = null;
+    private long dataSize = 0;
+    private long size = 0;
+    private boolean isFinished = false;
+    private boolean isOpen = true;
+
+    /**
+     * Creates a channel compressing the blocks in the shared compression
+     * pool.
+     *
+     * @param channel channel receiving the gzip stream
+     * @throws IOException When the gzip header cannot be written
+     */
+    public ParallelGzipChannel(final WritableByteChannel channel) throws IOException {
+        this(channel, CompressionPoolHolder.INSTANCE, 2 * CompressionPoolHolder.THREADS);
+    }
+
+    /**
+     * Creates a channel.
+     *
+     * @param channel channel receiving the gzip stream
+     * @param executor pool compressing the blocks
+     * @param maxPendingBlocks maximum number of blocks compressed at the same
+     * time, which bounds the memory
+     * @throws IOException When the gzip header cannot be written
+     */
+    public ParallelGzipChannel(final WritableByteChannel channel, final ExecutorService executor,
+            final int maxPendingBlocks) throws IOException {
+        this.channel = channel;
+        this.executor = executor;
+        this.maxPendingBlocks = Math.max(1, maxPendingBlocks);
+        writeOutput(HEADER);
+    }
+
+    /**
+     * Holder of the pool shared by the compressed outputs.
+     */
+    private static class CompressionPoolHolder {
+
+        private static final int THREADS = Settings.getInstance().hasValue(Consts.COMPRESSION_THREADS)
+                ? Settings.getInstance().getInt(Consts.COMPRESSION_THREADS)
+                : Runtime.getRuntime().availableProcessors();
+
+        private static final ExecutorService INSTANCE = createPool();
+
+        private static ExecutorService createPool() {
+            final AtomicInteger threadNumber = new AtomicInteger();
+            return Executors.newFixedThreadPool(THREADS, (Runnable r) -> {
+                final Thread t = new Thread(r, "gzip-" + threadNumber.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    @Override
+    public int write(final ByteBuffer src) throws IOException {
+        if (this.isFinished) {
+            throw new ClosedChannelException();
+        }
+        final int length = src.remaining();
+        while (src.hasRemaining()) {
+            final int count = Math.min(src.remaining(), BLOCK_SIZE - this.blockLength);
+            src.get(this.block, this.blockLength, count);
+            this.dataChecksum.update(this.block, this.blockLength, count);
+            this.blockLength += count;
+            if (this.blockLength == BLOCK_SIZE) {
+                submitBlock();
+            }
+        }
+        this.dataSize += length;
+        return length;
+    }
+
+    /**
+     * Compresses the last block and writes the end of the gzip stream. The
+     * underlying channel is not closed.
+     *
+     * @throws IOException When the stream cannot be written
+     */
+    public void finish() throws IOException {
+        if (this.isFinished) {
+            return;
+        }
+        this.isFinished = true;
+        if (this.pendingBlocks.isEmpty() && this.dictionary == null) {
+            writeOutput(compress(this.block, this.blockLength, null, true));
+        } else {
+            final byte[] lastBlock = this.block;
+            final int lastLength = this.blockLength;
+            final byte[] lastDictionary = this.dictionary;
+            this.pendingBlocks.add(this.executor.submit(() -> compress(lastBlock, lastLength, lastDictionary, true)));
+            while (!this.pendingBlocks.isEmpty()) {
+                writeOutput(takeBlock());
+            }
+        }
+        this.block = null;
+        final ByteBuffer trailer = ByteBuffer.allocate(8).order(java.nio.ByteOrder.LITTLE_ENDIAN);
+        trailer.putInt((int) this.dataChecksum.getValue()).putInt((int) this.dataSize);
+        writeOutput(trailer.array());
+    }
+
+    /**
+     * Returns the number of compressed bytes written to the channel.
+     *
+     * @return the size
+     */
+    public long getSize() {
+        return this.size;
+    }
+
+    /**
+     * Returns the CRC32 of the compressed bytes written to the channel.
+     *
+     * @return the checksum
+     */
+    public long getChecksum() {
+        return this.checksum.getValue();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return this.isOpen;
+    }
+
+    /**
+     * Finishes the gzip stream and closes the underlying channel.
+     *
+     * @throws IOException When the stream cannot be written
+     */
+    @Override
+    public void close() throws IOException {
+        if (this.isOpen) {
+            this.isOpen = false;
+            try {
+                finish();
+            } finally {
+                this.pendingBlocks.forEach((pending) -> pending.cancel(false));
+                this.channel.close();
+            }
+        }
+    }
+
+    /**
+     * Submits the full block and writes the compressed blocks that are ready,
+     * waiting for the oldest one when too many blocks are pending.
+     */
+    private void submitBlock() throws IOException {
+        final byte[] fullBlock = this.block;
+        final byte[] blockDictionary = this.dictionary;
+        this.pendingBlocks.add(this.executor.submit(() -> compress(fullBlock, BLOCK_SIZE, blockDictionary, false)));
+        this.dictionary = Arrays.copyOfRange(fullBlock, BLOCK_SIZE - DICTIONARY_SIZE, BLOCK_SIZE);
+        this.block = new byte[BLOCK_SIZE];
+        this.blockLength = 0;
+        while (!this.pendingBlocks.isEmpty()
+                && (this.pendingBlocks.size() >= this.maxPendingBlocks || this.pendingBlocks.peek().isDone())) {
+            writeOutput(takeBlock());
+        }
+    }
+
+    private byte[] takeBlock() throws IOException {
+        try {
+            return this.pendingBlocks.poll().get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Compression interrupted");
+        } catch (ExecutionException ex) {
+            throw new IOException("Compression failed", ex.getCause());
+        }
+    }
+
+    private void writeOutput(final byte[] bytes) throws IOException {
+        this.checksum.update(bytes);
+        this.size += bytes.length;
+        final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            this.channel.write(buffer);
+        }
+    }
+
+    /**
+     * Compresses a block as raw deflate data.
+     *
+     * @param data bytes of the block
+     * @param length number of bytes of the block
+     * @param dictionary end of the previous block or null
+     * @param isLast True to end the deflate stream, otherwise the block is
+     * ended by a sync flush
+     * @return the compressed block
+     */
+    private static byte[] compress(final byte[] data, final int length, final byte[] dictionary,
+            final boolean isLast) {
+        final Deflater deflater = DEFLATERS.get();
+        deflater.reset();
+        if (dictionary != null) {
+            deflater.setDictionary(dictionary);
+        }
+        deflater.setInput(data, 0, length);
+        if (isLast) {
+            deflater.finish();
+        }
+        final ByteArrayOutputStream compressed = new ByteArrayOutputStream(length / 4 + 64);
+        final byte[] chunk = new byte[16384];
+        while (true) {
+            final int count = deflater.deflate(chunk, 0, chunk.length,
+                    isLast ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+            compressed.write(chunk, 0, count);
+            if (isLast ? deflater.finished() : count < chunk.length) {
+                break;
+            }
+        }
+        return compressed.toByteArray();
+    }
+}
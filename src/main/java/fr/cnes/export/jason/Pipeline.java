@@ -0,0 +1,613 @@
+/**
+ * ****************************************************************************
+ * Copyright 2017 CNES - CENTRE NATIONAL d'ETUDES SPATIALES
+ *
+ * This file is part of Regards.
+ *
+ * Regards is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Regards is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Regards.  If not, see <http://www.gnu.org/licenses/>.
+ * ****************************************************************************
+ */
+package fr.cnes.export.jason;
+
+import fr.cnes.export.source.FileSizeIndex;
+import fr.cnes.export.source.SpoolDownloader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.log4j.Logger;
+
+/**
+ * Runs the stages of the {@link Processor} (fetch, extract, encode and write)
+ * in two thread pools : the I/O pool runs the workers of the fetch and write
+ * stages, which mostly wait for the network and the disk, and the CPU pool
+ * runs the workers of the extract and encode stages, which decode the NetCDF
+ * files and encode the GeoJSON documents. The I/O pool can then be enlarged to
+ * saturate the network without oversubscribing the cores.
+ *
+ * On JDK 21 and later, the fetch stage can run each download on its own
+ * virtual thread, the number of downloads in flight being capped by a
+ * semaphore : thousands of slow transfers then wait on the network without
+ * the memory cost of as many platform threads.
+ *
+ * The stages are linked by bounded queues : a stage that is faster than the
+ * next one waits for room in the queue, so that the network transfers and the
+ * CPU work overlap without accumulating files in memory.
+ */
+public class Pipeline {
+
+    /**
+     * Marker put in the files queue by the indexation once all the files are
+     * queued. It is compared by reference.
+     */
+    public static final String END_OF_FILES = new String("END_OF_FILES");
+
+    /**
+     * Marker sent to the next stage when all the workers of a stage are done.
+     */
+    private static final ProcessingItem END_OF_STREAM = new ProcessingItem(null);
+
+    /**
+     * Maximum time (in ms) a fetch worker waits for a new file before checking
+     * the files waiting for a retry.
+     */
+    private static final long RETRY_CHECK_INTERVAL = 1000;
+
+    /**
+     * Logger.
+     */
+    private static final Logger LOGGER = Logger.getLogger(Pipeline.class.getName());
+
+    /**
+     * Start time of the global process.
+     */
+    private final long startTime;
+
+    /**
+     * Attributes for the processing.
+     */
+    private final Map<String, Object> attributes;
+
+    /**
+     * Queue that contains the list of files to download.
+     */
+    private final BlockingQueue<String> dataQueue;
+
+    /**
+     * Downloader of the spool mode or null when the files are loaded in memory.
+     */
+    private final SpoolDownloader downloader;
+
+    /**
+     * Journal of the processed files or null to check the output files.
+     */
+    private final ProcessedJournal journal;
+
+    /**
+     * Target of the write stage.
+     */
+    private final OutputSink sink;
+
+    /**
+     * Files that could not be processed.
+     */
+    private final Queue<String> failedFiles = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Files waiting to be fetched again.
+     */
+    private final RetryScheduler retries;
+
+    /**
+     * Number of files being fetched, which may be scheduled for a retry.
+     */
+    private final AtomicInteger fetchingItems = new AtomicInteger(0);
+
+    /**
+     * True once the end of the files queue has been read.
+     */
+    private volatile boolean isEndOfFiles = false;
+
+    /**
+     * Stages in the processing order.
+     */
+    private final List<Stage> stages = new ArrayList<>();
+
+    /**
+     * Pool running the workers of the fetch and write stages.
+     */
+    private ExecutorService ioExecutor;
+
+    /**
+     * Pool running the workers of the extract and encode stages.
+     */
+    private ExecutorService cpuExecutor;
+
+    /**
+     * Executor of the virtual threads of the fetch stage or null.
+     */
+    private ExecutorService virtualExecutor;
+
+    /**
+     * Start time of the pipeline.
+     */
+    private long pipelineStart;
+
+    /**
+     * Creates the pipeline.
+     *
+     * @param startTime start time of the program
+     * @param attributes attributes for processing
+     * @param dataQueue files queue, ended by {@link #END_OF_FILES}
+     * @param downloader downloader of the spool mode or null to load the files in memory
+     * @param journal journal of the processed files or null to check the output files
+     * @param sink target of the write stage
+     * @param retries scheduler of the files that could not be fetched
+     * @param fetchThreads number of threads of the fetch stage
+     * @param virtualFetches maximum number of downloads in flight on virtual
+     * threads, or 0 to run the fetch stage on fetchThreads platform threads.
+     * The platform threads are used when the JDK has no virtual threads
+     * @param extractThreads number of threads of the extract stage
+     * @param encodeThreads number of threads of the encode stage
+     * @param writeThreads number of threads of the write stage
+     * @param queueSize capacity of the queues between the stages
+     */
+    public Pipeline(final long startTime, final Map<String, Object> attributes,
+            final BlockingQueue<String> dataQueue, final SpoolDownloader downloader,
+            final ProcessedJournal journal, final OutputSink sink, final RetryScheduler retries,
+            final int fetchThreads, final int virtualFetches, final int extractThreads,
+            final int encodeThreads, final int writeThreads, final int queueSize) {
+        this.startTime = startTime;
+        this.attributes = attributes;
+        this.dataQueue = dataQueue;
+        this.downloader = downloader;
+        this.journal = journal;
+        this.sink = sink;
+        this.retries = retries;
+        final BlockingQueue<ProcessingItem> fetched = new ArrayBlockingQueue<>(queueSize);
+        final BlockingQueue<ProcessingItem> extracted = new ArrayBlockingQueue<>(queueSize);
+        final BlockingQueue<ProcessingItem> encoded = new ArrayBlockingQueue<>(queueSize);
+        final boolean isVirtual = virtualFetches > 0 && VirtualThreads.isAvailable();
+        if (virtualFetches > 0 && !isVirtual) {
+            LOGGER.warn("Virtual threads require JDK 21 or later, the fetch stage uses "
+                    + fetchThreads + " platform thread(s)");
+        }
+        this.stages.add(new Stage("fetch", isVirtual ? virtualFetches : fetchThreads, false, isVirtual,
+                null, fetched, (processor, item) -> processor.fetch(item)));
+        this.stages.add(new Stage("extract", extractThreads, true, false, fetched, extracted,
+                (processor, item) -> processor.extract(item)));
+        this.stages.add(new Stage("encode", encodeThreads, true, false, extracted, encoded,
+                (processor, item) -> processor.encode(item)));
+        this.stages.add(new Stage("write", writeThreads, false, false, encoded, null,
+                (processor, item) -> {
+                    processor.write(item);
+                    return null;
+                }));
+    }
+
+    /**
+     * Creates the files queue between the indexation and the pipeline.
+     *
+     * In the crawl order, the queue is bounded and the indexation waits for
+     * room in it. In the largest-first order, the files are fetched by
+     * decreasing size, as given by the listings, so that the largest files do
+     * not delay the end of the processing. The queue must then hold all the
+     * files waiting to be fetched to sort them, so it is not bounded.
+     *
+     * @param isLargestFirst True to fetch the largest files first, False to
+     * fetch the files in the crawl order
+     * @param capacity capacity of the queue in the crawl order
+     * @return the queue
+     */
+    public static BlockingQueue<String> createFilesQueue(final boolean isLargestFirst, final int capacity) {
+        if (!isLargestFirst) {
+            return new LinkedBlockingQueue<>(capacity);
+        }
+        final FileSizeIndex sizes = FileSizeIndex.getInstance();
+        return new PriorityBlockingQueue<>(capacity, (file1, file2) -> {
+            if (file1 == END_OF_FILES || file2 == END_OF_FILES) {
+                // the end of the files stays behind the files
+                return (file1 == file2) ? 0 : (file1 == END_OF_FILES) ? 1 : -1;
+            }
+            return Long.compare(sizes.getSize(file2), sizes.getSize(file1));
+        });
+    }
+
+    /**
+     * Starts the workers of all the stages.
+     */
+    public void start() {
+        LOGGER.trace("Entering in start");
+        this.pipelineStart = System.currentTimeMillis();
+        this.ioExecutor = createExecutor("io", false);
+        this.cpuExecutor = createExecutor("cpu", true);
+        this.stages.stream().forEach((stage) -> {
+            if (stage.isVirtual) {
+                this.virtualExecutor = VirtualThreads.newThreadPerTaskExecutor(stage.name);
+                LOGGER.info(String.format("%s stage : up to %s virtual thread(s)", stage.name, stage.threads));
+                stage.startVirtual(this.virtualExecutor);
+            } else {
+                stage.start(stage.isCpuBound ? this.cpuExecutor : this.ioExecutor);
+            }
+        });
+        this.ioExecutor.shutdown();
+        this.cpuExecutor.shutdown();
+        LOGGER.trace("Exiting in start");
+    }
+
+    /**
+     * Waits the last stage has processed all the files.
+     *
+     * @throws InterruptedException
+     */
+    public void awaitTermination() throws InterruptedException {
+        if (this.virtualExecutor != null) {
+            this.virtualExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+        this.ioExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        this.cpuExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Creates the pool running the workers of the I/O or CPU stages.
+     *
+     * @param name prefix of the thread names
+     * @param isCpuBound True for the pool of the CPU stages otherwise False
+     * @return the pool
+     */
+    private ExecutorService createExecutor(final String name, final boolean isCpuBound) {
+        final int threads = this.stages.stream()
+                .filter((stage) -> stage.isCpuBound == isCpuBound && !stage.isVirtual)
+                .mapToInt((stage) -> stage.threads)
+                .sum();
+        LOGGER.info(String.format("%s pool : %s thread(s)", name, threads));
+        final AtomicInteger threadNumber = new AtomicInteger(0);
+        return Executors.newFixedThreadPool(threads, (Runnable r) -> {
+            return new Thread(r, name + "-" + threadNumber.incrementAndGet());
+        });
+    }
+
+    /**
+     * Returns the files that could not be processed, including the files still
+     * waiting for a retry when the pipeline was interrupted.
+     *
+     * @return the failed files
+     */
+    public List<String> getFailedFiles() {
+        final List<String> files = new ArrayList<>(this.failedFiles);
+        files.addAll(this.retries.getPendingFiles());
+        return files;
+    }
+
+    /**
+     * Returns the number of items waiting in the input queue of each stage
+     * reading a queue. The depth of the write queue grows when the sink is
+     * slower than the encoding.
+     *
+     * @return the queue depths by stage name
+     */
+    public Map<String, Integer> getQueueDepths() {
+        final Map<String, Integer> depths = new LinkedHashMap<>();
+        this.stages.stream().filter((stage) -> stage.input != null).forEach((stage) -> {
+            depths.put(stage.name, stage.input.size());
+        });
+        return depths;
+    }
+
+    /**
+     * Logs the throughput of each stage. The busy ratio is the time spent in
+     * the stage divided by the time available to its threads. The queue peak
+     * is the largest number of items found waiting in the input queue.
+     */
+    public void logStatistics() {
+        final long elapsed = Math.max(1, System.currentTimeMillis() - this.pipelineStart);
+        this.stages.stream().forEach((stage) -> {
+            final long processed = stage.processedItems.get();
+            final double busyRatio = stage.busyTime.get() / 1e6 / (elapsed * stage.threads);
+            final String queuePeak = (stage.input == null) ? ""
+                    : String.format(", queue peak %s/%s", stage.maxQueueDepth.get(),
+                            stage.input.size() + stage.input.remainingCapacity());
+            LOGGER.info(String.format("Stage %s : %s thread(s), %s files, %.2f files/s, %.0f %% busy%s",
+                    stage.name, stage.threads, processed, processed * 1000.0 / elapsed, busyRatio * 100,
+                    queuePeak));
+        });
+        final List<String> deadLetters = this.retries.getDeadLetters();
+        if (!deadLetters.isEmpty()) {
+            LOGGER.warn(String.format("%s file(s) could not be fetched : %s", deadLetters.size(), deadLetters));
+        }
+    }
+
+    /**
+     * Work done by a stage on a file.
+     */
+    private interface StageTask {
+
+        /**
+         * Processes a file.
+         *
+         * @param processor processor of the worker
+         * @param item file
+         * @return the item for the next stage or null when the file goes no
+         * further
+         * @throws Exception
+         */
+        ProcessingItem process(Processor processor, ProcessingItem item) throws Exception;
+    }
+
+    /**
+     * Stage of the pipeline.
+     */
+    private class Stage {
+
+        private final String name;
+        private final int threads;
+        private final boolean isCpuBound;
+        private final boolean isVirtual;
+        private final BlockingQueue<ProcessingItem> input;
+        private final BlockingQueue<ProcessingItem> output;
+        private final StageTask task;
+        private final AtomicInteger runningWorkers;
+        private final AtomicLong processedItems = new AtomicLong(0);
+        private final AtomicLong busyTime = new AtomicLong(0);
+        private final AtomicInteger maxQueueDepth = new AtomicInteger(0);
+
+        /**
+         * Creates a stage.
+         *
+         * @param name stage name
+         * @param threads number of workers, or maximum number of items in
+         * flight on virtual threads
+         * @param isCpuBound True to run the workers in the CPU pool, False in
+         * the I/O pool
+         * @param isVirtual True to process each item on its own virtual thread
+         * @param input items to process or null to read the files queue
+         * @param output items for the next stage or null for the last stage
+         * @param task work done on each item
+         */
+        Stage(final String name, final int threads, final boolean isCpuBound, final boolean isVirtual,
+                final BlockingQueue<ProcessingItem> input,
+                final BlockingQueue<ProcessingItem> output, final StageTask task) {
+            if (threads < 1) {
+                throw new IllegalArgumentException("The " + name + " stage must have at least one thread");
+            }
+            this.name = name;
+            this.threads = threads;
+            this.isCpuBound = isCpuBound;
+            this.isVirtual = isVirtual;
+            this.input = input;
+            this.output = output;
+            this.task = task;
+            // in virtual mode, the only worker is the thread dispatching the items
+            this.runningWorkers = new AtomicInteger(isVirtual ? 1 : threads);
+        }
+
+        /**
+         * Starts the workers.
+         *
+         * @param executor pool running the workers
+         */
+        void start(final ExecutorService executor) {
+            for (int i = 0; i < this.threads; i++) {
+                executor.execute(this::work);
+            }
+        }
+
+        /**
+         * Starts the thread dispatching the items on virtual threads.
+         *
+         * @param executor executor of the virtual threads, shut down once the
+         * stream is over
+         */
+        void startVirtual(final ExecutorService executor) {
+            executor.execute(() -> dispatch(executor));
+        }
+
+        /**
+         * Processes the items until the end of the stream. The last worker
+         * signals the end of the stream to the next stage.
+         */
+        private void work() {
+            final Processor processor = new Processor(startTime, attributes, downloader, journal, sink);
+            try {
+                ProcessingItem item;
+                while ((item = nextItem()) != null) {
+                    process(processor, item);
+                }
+            } catch (InterruptedException ex) {
+                LOGGER.info("Stage " + this.name + " interrupted");
+                Thread.currentThread().interrupt();
+            } finally {
+                if (this.runningWorkers.decrementAndGet() == 0 && this.output != null) {
+                    signalEndOfStream();
+                }
+            }
+        }
+
+        /**
+         * Starts a virtual thread for each item until the end of the stream.
+         * A semaphore caps the number of items in flight. Each virtual thread
+         * has its own processor, a processor being used by one thread at a
+         * time. The end of the stream is signaled once the last item is
+         * processed.
+         *
+         * @param executor executor of the virtual threads
+         */
+        private void dispatch(final ExecutorService executor) {
+            final Semaphore inFlight = new Semaphore(this.threads);
+            try {
+                ProcessingItem item;
+                while ((item = nextItem()) != null) {
+                    inFlight.acquire();
+                    final ProcessingItem current = item;
+                    executor.execute(() -> {
+                        try {
+                            process(new Processor(startTime, attributes, downloader, journal, sink), current);
+                        } catch (InterruptedException ex) {
+                            LOGGER.info("Stage " + this.name + " interrupted");
+                        } finally {
+                            inFlight.release();
+                        }
+                    });
+                }
+                inFlight.acquire(this.threads);
+            } catch (InterruptedException ex) {
+                LOGGER.info("Stage " + this.name + " interrupted");
+                Thread.currentThread().interrupt();
+            } finally {
+                executor.shutdown();
+                if (this.runningWorkers.decrementAndGet() == 0 && this.output != null) {
+                    signalEndOfStream();
+                }
+            }
+        }
+
+        /**
+         * Processes an item and passes the result to the next stage. A file
+         * that cannot be fetched is scheduled for a retry.
+         *
+         * @param processor processor of the worker
+         * @param item item to process
+         * @throws InterruptedException
+         */
+        private void process(final Processor processor, final ProcessingItem item) throws InterruptedException {
+            final long start = System.nanoTime();
+            try {
+                final ProcessingItem result = this.task.process(processor, item);
+                if (result != null && this.output != null) {
+                    this.output.put(result);
+                }
+            } catch (InterruptedException ex) {
+                processor.discard(item);
+                throw ex;
+            } catch (Exception ex) {
+                processor.discard(item);
+                if (this.input != null) {
+                    LOGGER.error(String.format("Unable to %s the file %s", this.name, item.getUri()), ex);
+                    failedFiles.add(item.getUri());
+                    processor.countDone(item.getUri());
+                } else if (!retries.schedule(item, ex)) {
+                    failedFiles.add(item.getUri());
+                    processor.countDone(item.getUri());
+                }
+            } finally {
+                if (this.input == null) {
+                    fetchingItems.decrementAndGet();
+                }
+                this.busyTime.addAndGet(System.nanoTime() - start);
+                this.processedItems.incrementAndGet();
+            }
+        }
+
+        /**
+         * Returns the next item to process.
+         *
+         * @return the next item or null at the end of the stream
+         * @throws InterruptedException
+         */
+        private ProcessingItem nextItem() throws InterruptedException {
+            if (this.input == null) {
+                return nextFile();
+            }
+            this.maxQueueDepth.accumulateAndGet(this.input.size(), Math::max);
+            final ProcessingItem item = this.input.take();
+            if (item == END_OF_STREAM) {
+                // let the other workers of the stage see the end of the stream
+                this.input.put(END_OF_STREAM);
+                return null;
+            }
+            return item;
+        }
+
+        /**
+         * Returns the next file to fetch : a file whose retry delay has
+         * elapsed or else a new file of the queue. Once the queue is over, the
+         * workers wait for the files still scheduled for a retry.
+         *
+         * @return the next file or null when all the files have been fetched
+         * @throws InterruptedException
+         */
+        private ProcessingItem nextFile() throws InterruptedException {
+            while (true) {
+                ProcessingItem item = pollRetry(0);
+                if (item != null) {
+                    return item;
+                }
+                if (!isEndOfFiles) {
+                    final String uri = dataQueue.poll(RETRY_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+                    if (uri == END_OF_FILES) {
+                        // let the other fetch workers see the end of the indexation
+                        dataQueue.put(END_OF_FILES);
+                        isEndOfFiles = true;
+                    } else if (uri != null) {
+                        fetchingItems.incrementAndGet();
+                        return new ProcessingItem(uri);
+                    }
+                } else if (retries.isEmpty() && fetchingItems.get() == 0) {
+                    return null;
+                } else {
+                    item = pollRetry(RETRY_CHECK_INTERVAL);
+                    if (item != null) {
+                        return item;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Returns a file whose retry delay has elapsed. The file is counted as
+         * being fetched before leaving the scheduler, so that the other workers
+         * do not stop while it is between the scheduler and its worker.
+         *
+         * @param timeout maximum time to wait in ms
+         * @return the file or null
+         * @throws InterruptedException
+         */
+        private ProcessingItem pollRetry(final long timeout) throws InterruptedException {
+            fetchingItems.incrementAndGet();
+            ProcessingItem item = null;
+            try {
+                item = retries.poll(timeout, TimeUnit.MILLISECONDS);
+                return item;
+            } finally {
+                if (item == null) {
+                    fetchingItems.decrementAndGet();
+                }
+            }
+        }
+
+        /**
+         * Sends the end of the stream to the next stage.
+         */
+        private void signalEndOfStream() {
+            try {
+                this.output.put(END_OF_STREAM);
+            } catch (InterruptedException ex) {
+                LOGGER.error("Cannot signal the end of the " + this.name + " stage", ex);
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,482 @@
+/**
+ * ****************************************************************************
+ * Copyright 2017 CNES - CENTRE NATIONAL d'ETUDES SPATIALES
+ *
+ * This file is part of Regards.
+ *
+ * Regards is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Regards is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Regards.  If not, see <http://www.gnu.org/licenses/>.
+ * ****************************************************************************
+ */
+package fr.cnes.export.jason;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import org.apache.log4j.Logger;
+
+/**
+ * Append-only journal of the processed files.
+ *
+ * Each line records the URI of a processed file, its output file, the size and
+ * the CRC32 of the output, followed by the CRC32 of the line itself. A line is
+ * forced to the disk once written, and a line truncated by a crash is removed
+ * when the journal is opened, so that the next record starts on a new line.
+ *
+ * At startup, the URIs are loaded as 64-bit fingerprints in an open addressing
+ * set, so that testing if a file has already been processed costs neither I/O
+ * nor parsing.
+ *
+ * When the journal is verified, the records are kept until their output file
+ * is checked, either by {@link #verify()} running in the background or by
+ * {@link #contains(String)} before the file is skipped, so that the processing
+ * does not wait for the verification.
+ */
+public class ProcessedJournal {
+
+    private static final char SEPARATOR = '\t';
+
+    /**
+     * Logger.
+     */
+    private static final Logger LOGGER = Logger.getLogger(ProcessedJournal.class.getName());
+
+    /**
+     * Journal file.
+     */
+    private final File file;
+
+    /**
+     * Fingerprints of the processed URIs.
+     */
+    private final FingerprintSet processed = new FingerprintSet();
+
+    /**
+     * Channel used to append the records.
+     */
+    private final FileChannel channel;
+
+    /**
+     * Records whose output file is not checked yet, by fingerprint, or null
+     * when the journal is not verified.
+     */
+    private final Map<Long, Record> unverified;
+
+    /**
+     * CRC32 of the checked output files, an output file of the sequence mode
+     * being shared by several records.
+     */
+    private final Map<String, Long> checksums = new ConcurrentHashMap<>();
+
+    /**
+     * Number of invalid output files.
+     */
+    private final AtomicInteger nbInvalid = new AtomicInteger();
+
+    /**
+     * Opens the journal and loads the processed URIs.
+     *
+     * @param file journal file
+     * @throws IOException When the journal cannot be read or opened
+     */
+    public ProcessedJournal(final File file) throws IOException {
+        this(file, false);
+    }
+
+    /**
+     * Opens the journal and loads the processed URIs.
+     *
+     * @param file journal file
+     * @param isVerified True to check the output files of the records
+     * @throws IOException When the journal cannot be read or opened
+     */
+    public ProcessedJournal(final File file, final boolean isVerified) throws IOException {
+        this.file = file;
+        this.unverified = isVerified ? new ConcurrentHashMap<>() : null;
+        if (file.exists()) {
+            truncateTornLine(file);
+            final Map<String, Record> records = load(file);
+            records.entrySet().stream().forEach((entry) -> {
+                final long fingerprint = fingerprint(entry.getKey());
+                this.processed.add(fingerprint);
+                if (this.unverified != null) {
+                    this.unverified.put(fingerprint, entry.getValue());
+                }
+            });
+            LOGGER.info(records.size() + " processed files loaded from the journal " + file);
+        }
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Tests if a file has already been processed. When the journal is
+     * verified, the output file of the record is checked first if it has not
+     * been yet.
+     *
+     * @param uri file
+     * @return True when the file is in the journal otherwise False
+     */
+    public boolean contains(final String uri) {
+        final long fingerprint = fingerprint(uri);
+        if (this.unverified != null) {
+            final Record record = this.unverified.get(fingerprint);
+            if (record != null) {
+                check(fingerprint, record);
+            }
+        }
+        return this.processed.contains(fingerprint);
+    }
+
+    /**
+     * Records a processed file.
+     *
+     * @param uri file
+     * @param output output file
+     * @param size size of the output file
+     * @param checksum CRC32 of the output file
+     * @throws IOException When the record cannot be written
+     */
+    public void record(final String uri, final File output, final long size, final long checksum) throws IOException {
+        final StringBuilder line = new StringBuilder();
+        line.append(uri).append(SEPARATOR)
+                .append(output.getPath()).append(SEPARATOR)
+                .append(size).append(SEPARATOR)
+                .append(Long.toHexString(checksum));
+        final CRC32 lineChecksum = new CRC32();
+        lineChecksum.update(line.toString().getBytes(StandardCharsets.UTF_8));
+        line.append(SEPARATOR).append(Long.toHexString(lineChecksum.getValue())).append('\n');
+        final ByteBuffer buffer = ByteBuffer.wrap(line.toString().getBytes(StandardCharsets.UTF_8));
+        synchronized (this.channel) {
+            while (buffer.hasRemaining()) {
+                this.channel.write(buffer);
+            }
+            this.channel.force(false);
+        }
+        final long fingerprint = fingerprint(uri);
+        if (this.unverified != null) {
+            // the new record supersedes the loaded one
+            this.unverified.remove(fingerprint);
+        }
+        this.processed.add(fingerprint);
+    }
+
+    /**
+     * Records a file processed before the journal was used.
+     *
+     * @param uri file
+     * @param output existing output file
+     * @throws IOException When the record cannot be written
+     */
+    public void recordExisting(final String uri, final File output) throws IOException {
+        record(uri, output, output.length(), checksum(output));
+    }
+
+    /**
+     * Checks that the output files of the journal still exist with the
+     * recorded size and checksum. The files that do not match are removed from
+     * the processed files so that they are processed again. The records
+     * already checked by {@link #contains(String)} are not checked again. The
+     * verification stops when the thread is interrupted, the remaining records
+     * being checked before their file is skipped.
+     *
+     * @return the number of invalid output files
+     */
+    public int verify() {
+        if (this.unverified == null) {
+            throw new IllegalStateException("The journal " + this.file + " is not opened for a verification");
+        }
+        LOGGER.info("Verifying the output files of the journal " + this.file);
+        for (final Map.Entry<Long, Record> entry : this.unverified.entrySet()) {
+            if (Thread.currentThread().isInterrupted()) {
+                LOGGER.info("Journal verification stopped : " + this.unverified.size()
+                        + " record(s) not verified");
+                return this.nbInvalid.get();
+            }
+            check(entry.getKey(), entry.getValue());
+        }
+        this.checksums.clear();
+        LOGGER.info("Journal verified : " + this.nbInvalid.get() + " invalid output file(s)");
+        return this.nbInvalid.get();
+    }
+
+    /**
+     * Checks the output file of a record once. The record stays unverified
+     * until it is checked, so that a concurrent check of the same record waits
+     * for its result.
+     *
+     * @param fingerprint fingerprint of the URI
+     * @param record record
+     */
+    private void check(final long fingerprint, final Record record) {
+        synchronized (record) {
+            if (this.unverified.get(fingerprint) != record) {
+                // checked or superseded in the meantime
+                return;
+            }
+            final File output = new File(record.output);
+            final boolean isValid = output.length() == record.size
+                    && this.checksums.computeIfAbsent(record.output, (path) -> checksum(output)) == record.checksum;
+            if (!isValid) {
+                LOGGER.info(output.getName() + " is missing or corrupted, it will be processed again");
+                this.processed.remove(fingerprint);
+                this.nbInvalid.incrementAndGet();
+            }
+            this.unverified.remove(fingerprint);
+        }
+    }
+
+    /**
+     * Closes the journal.
+     */
+    public void close() {
+        try {
+            this.channel.close();
+        } catch (IOException ex) {
+            LOGGER.error("Cannot close the journal " + this.file, ex);
+        }
+    }
+
+    /**
+     * Computes the CRC32 of a file.
+     *
+     * @param file file
+     * @return the CRC32 or -1 when the file cannot be read
+     */
+    private static long checksum(final File file) {
+        final CRC32 crc = new CRC32();
+        try (InputStream is = java.nio.file.Files.newInputStream(file.toPath())) {
+            final byte[] buffer = new byte[65536];
+            int count;
+            while ((count = is.read(buffer)) != -1) {
+                crc.update(buffer, 0, count);
+            }
+        } catch (IOException ex) {
+            LOGGER.debug("Cannot read " + file, ex);
+            return -1;
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Appends the records of the journals written by the nodes of a sharded
+     * processing. The records of the files already in this journal are
+     * skipped.
+     *
+     * @param shardJournals journals of the shards
+     * @return the number of appended records
+     * @throws IOException When a journal cannot be read or this journal written
+     */
+    public int merge(final List<File> shardJournals) throws IOException {
+        int nbMerged = 0;
+        for (final File shardJournal : shardJournals) {
+            for (final Map.Entry<String, Record> entry : load(shardJournal).entrySet()) {
+                if (!contains(entry.getKey())) {
+                    final Record record = entry.getValue();
+                    record(entry.getKey(), new File(record.output), record.size, record.checksum);
+                    nbMerged++;
+                }
+            }
+            LOGGER.info("Journal " + shardJournal + " merged in " + this.file);
+        }
+        return nbMerged;
+    }
+
+    /**
+     * Loads the valid records of a journal. The last record of an URI wins.
+     *
+     * @param file journal file
+     * @return the records by URI
+     * @throws IOException When the journal cannot be read
+     */
+    private static Map<String, Record> load(final File file) throws IOException {
+        final Map<String, Record> records = new LinkedHashMap<>();
+        try (BufferedReader reader = java.nio.file.Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final int lastSeparator = line.lastIndexOf(SEPARATOR);
+                final String[] fields = line.split(String.valueOf(SEPARATOR), -1);
+                if (lastSeparator == -1 || fields.length != 5) {
+                    LOGGER.warn("Ignoring the truncated journal line " + line);
+                    continue;
+                }
+                final CRC32 lineChecksum = new CRC32();
+                lineChecksum.update(line.substring(0, lastSeparator).getBytes(StandardCharsets.UTF_8));
+                if (!Long.toHexString(lineChecksum.getValue()).equals(fields[4])) {
+                    LOGGER.warn("Ignoring the corrupted journal line " + line);
+                    continue;
+                }
+                records.put(fields[0], new Record(fields[1], Long.parseLong(fields[2]), Long.parseLong(fields[3], 16)));
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Truncates the journal after its last newline, removing the end of a
+     * line torn by a crash.
+     *
+     * @param file journal file
+     * @throws IOException When the journal cannot be read or truncated
+     */
+    private static void truncateTornLine(final File file) throws IOException {
+        try (FileChannel journal = FileChannel.open(file.toPath(), StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            final ByteBuffer buffer = ByteBuffer.allocate(4096);
+            long end = journal.size();
+            while (end > 0) {
+                final long start = Math.max(0, end - buffer.capacity());
+                buffer.clear().limit((int) (end - start));
+                while (buffer.hasRemaining() && journal.read(buffer, start + buffer.position()) != -1) {
+                    // reads the block before end
+                }
+                for (int i = buffer.position() - 1; i >= 0; i--) {
+                    if (buffer.get(i) == '\n') {
+                        truncate(journal, file, start + i + 1);
+                        return;
+                    }
+                }
+                end = start;
+            }
+            truncate(journal, file, 0);
+        }
+    }
+
+    private static void truncate(final FileChannel journal, final File file, final long size) throws IOException {
+        if (size < journal.size()) {
+            LOGGER.warn("Removing the torn last line of the journal " + file + " (" + (journal.size() - size) + " bytes)");
+            journal.truncate(size);
+            journal.force(false);
+        }
+    }
+
+    /**
+     * Computes a 64-bit FNV-1a fingerprint of an URI.
+     *
+     * @param uri URI
+     * @return the fingerprint
+     */
+    private static long fingerprint(final String uri) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < uri.length(); i++) {
+            hash ^= uri.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * Record of the journal.
+     */
+    private static class Record {
+
+        private final String output;
+        private final long size;
+        private final long checksum;
+
+        Record(final String output, final long size, final long checksum) {
+            this.output = output;
+            this.size = size;
+            this.checksum = checksum;
+        }
+    }
+
+    /**
+     * Synchronized open addressing set of fingerprints.
+     */
+    private static class FingerprintSet {
+
+        private static final long FREE = 0;
+        private static final long REMOVED = 1;
+
+        private long[] slots = new long[1024];
+        private int used = 0;
+
+        synchronized boolean contains(final long fingerprint) {
+            final long key = normalize(fingerprint);
+            int i = index(key, this.slots.length);
+            while (this.slots[i] != FREE) {
+                if (this.slots[i] == key) {
+                    return true;
+                }
+                i = (i + 1) & (this.slots.length - 1);
+            }
+            return false;
+        }
+
+        synchronized void add(final long fingerprint) {
+            if (contains(fingerprint)) {
+                return;
+            }
+            if ((this.used + 1) * 2 > this.slots.length) {
+                rehash(this.slots.length * 2);
+            }
+            insert(this.slots, normalize(fingerprint));
+            this.used++;
+        }
+
+        synchronized void remove(final long fingerprint) {
+            final long key = normalize(fingerprint);
+            int i = index(key, this.slots.length);
+            while (this.slots[i] != FREE) {
+                if (this.slots[i] == key) {
+                    // the slot stays occupied so that the probe sequences are not broken
+                    this.slots[i] = REMOVED;
+                    return;
+                }
+                i = (i + 1) & (this.slots.length - 1);
+            }
+        }
+
+        private void rehash(final int capacity) {
+            final long[] newSlots = new long[capacity];
+            int count = 0;
+            for (final long key : this.slots) {
+                if (key != FREE && key != REMOVED) {
+                    insert(newSlots, key);
+                    count++;
+                }
+            }
+            this.slots = newSlots;
+            this.used = count;
+        }
+
+        private static void insert(final long[] slots, final long key) {
+            int i = index(key, slots.length);
+            while (slots[i] != FREE) {
+                i = (i + 1) & (slots.length - 1);
+            }
+            slots[i] = key;
+        }
+
+        private static long normalize(final long fingerprint) {
+            // FREE and REMOVED are reserved values
+            return (fingerprint == FREE || fingerprint == REMOVED) ? fingerprint + 2 : fingerprint;
+        }
+
+        private static int index(final long key, final int length) {
+            return (int) ((key ^ (key >>> 32)) * 0x9E3779B9L) & (length - 1);
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/**
+ * ****************************************************************************
+ * Copyright 2017 CNES - CENTRE NATIONAL d'ETUDES SPATIALES
+ *
+ * This file is part of Regards.
+ *
+ * Regards is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Regards is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Regards.  If not, see <http://www.gnu.org/licenses/>.
+ * ****************************************************************************
+ */
+package fr.cnes.export.jason;
+
+import ucar.nc2.NetcdfFile;
+
+/**
+ * File going through the stages of the {@link Pipeline}.
+ */
+public class ProcessingItem {
+
+    private final String uri;
+    private final long startProcessing = System.currentTimeMillis();
+    private Metadata metadata;
+    private NetcdfFile file;
+    private DocumentBuffer document;
+    private long documentSize;
+    private long documentChecksum;
+    private DocumentBuffer columns;
+    private int attempts;
+
+    /**
+     * Creates an item.
+     *
+     * @param uri location of the file
+     */
+    public ProcessingItem(final String uri) {
+        this.uri = uri;
+    }
+
+    /**
+     * @return the location of the file
+     */
+    public String getUri() {
+        return uri;
+    }
+
+    /**
+     * @return the time when the processing of the file started
+     */
+    public long getStartProcessing() {
+        return startProcessing;
+    }
+
+    /**
+     * @return the metadata
+     */
+    public Metadata getMetadata() {
+        return metadata;
+    }
+
+    /**
+     * @param metadata the metadata to set
+     */
+    public void setMetadata(final Metadata metadata) {
+        this.metadata = metadata;
+    }
+
+    /**
+     * @return the fetched NetCdf file, null once extracted
+     */
+    public NetcdfFile getFile() {
+        return file;
+    }
+
+    /**
+     * @param file the fetched NetCdf file to set
+     */
+    public void setFile(final NetcdfFile file) {
+        this.file = file;
+    }
+
+    /**
+     * @return the encoded document, null once written
+     */
+    public DocumentBuffer getDocument() {
+        return document;
+    }
+
+    /**
+     * @return the size of the encoded document
+     */
+    public long getDocumentSize() {
+        return documentSize;
+    }
+
+    /**
+     * @return the CRC32 of the encoded document
+     */
+    public long getDocumentChecksum() {
+        return documentChecksum;
+    }
+
+    /**
+     * @param document the encoded document to set
+     * @param size size of the document
+     * @param checksum CRC32 of the document
+     */
+    public void setDocument(final DocumentBuffer document, final long size, final long checksum) {
+        this.document = document;
+        this.documentSize = size;
+        this.documentChecksum = checksum;
+    }
+
+    /**
+     * @return the encoded columnar file, null once written or when not
+     * produced
+     */
+    public DocumentBuffer getColumns() {
+        return columns;
+    }
+
+    /**
+     * @param columns the encoded columnar file to set
+     */
+    public void setColumns(final DocumentBuffer columns) {
+        this.columns = columns;
+    }
+
+    /**
+     * @return the number of failed attempts to fetch the file
+     */
+    public int getAttempts() {
+        return attempts;
+    }
+
+    /**
+     * Counts a failed attempt to fetch the file.
+     *
+     * @return the number of failed attempts
+     */
+    public int incrementAttempts() {
+        return ++attempts;
+    }
+}
@@ -21,34 +21,33 @@
 package fr.cnes.export.jason;
 
 import java.util.Map;
-import java.util.Queue;
-import ucar.ma2.Array;
+import ucar.nc2.NetcdfFile;
 import static fr.cnes.export.jason.JASON.KEYWORDS_TO_EXTRACT;
 import static fr.cnes.export.jason.JASON.SURFACE_TYPE_MAPPING;
 import fr.cnes.export.settings.Consts;
 import fr.cnes.export.settings.Settings;
-import fr.cnes.geojson.GeoJsonParser;
-import fr.cnes.geojson.GeoJsonWriter;
-import fr.cnes.geojson.geometry.LineString;
-import fr.cnes.geojson.object.Feature;
-import fr.cnes.geojson.object.FeatureCollection;
-import fr.cnes.geojson.object.Geometry;
+import fr.cnes.export.source.FileSizeIndex;
+import fr.cnes.export.source.SpoolDownloader;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.util.HashMap;
 import java.util.List;
-import java.util.logging.Level;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import org.apache.log4j.Logger;
 
 /**
- * Process a file.
+ * Process a file. The processing is split in four stages (fetch, extract,
+ * encode and write), which are run by the {@link Pipeline}. A processor is
+ * used by one thread at a time.
  *
  * @author Jean-Christophe Malapert <jean-christophe.malapert@cnes.fr>
  */
-public class Processor implements Runnable {
+public class Processor {
 
     /**
      * Logger.
@@ -56,19 +55,19 @@ public class Processor implements Runnable {
     private static final Logger LOGGER = Logger.getLogger(Processor.class.getName());
 
     /**
-     * List of URI to process.
+     * List of variables to extract.
      */
-    private final Queue<String> dataQueue;
+    private final Map<String, Object> attributes;
 
     /**
-     * List of variables to extract.
+     * Downloader of the spool mode or null when the files are loaded in memory.
      */
-    private final Map<String, Object> attributes;
+    private final SpoolDownloader downloader;
 
     /**
-     * Extracted metadata from the NetCDF file.
+     * Journal of the processed files or null to check the output files.
      */
-    private final Metadata metadata;
+    private final ProcessedJournal journal;
 
     /**
      * Start time of the global process.
@@ -76,49 +75,257 @@ public class Processor implements Runnable {
     private final long startTime;
 
     /**
-     * Init the GeoJson writer library.
+     * Size of the buffer in which the GeoJson is encoded before being copied
+     * to the document.
+     */
+    private static final int ENCODE_BUFFER_SIZE = 65536;
+
+    /**
+     * True when the GeoJson is indented.
+     */
+    private final boolean isPrettyDisplay;
+
+    /**
+     * True when the GeoJson files are compressed in gzip.
+     */
+    private final boolean isCompressed;
+
+    /**
+     * Target of the encoded documents.
+     */
+    private final OutputSink sink;
+
+    /**
+     * Directory where the documents larger than the memory limit are spilled.
+     */
+    private final File spillDirectory;
+
+    /**
+     * Number of bytes of a document kept in memory.
      */
-    private final GeoJsonWriter writer = new GeoJsonWriter();
+    private final long documentMemoryLimit;
 
     /**
-     * Init the GeoJson parser library.
+     * True when a columnar file is written next to each GeoJson file.
      */
-    private final GeoJsonParser parser = new GeoJsonParser();
+    private final boolean isColumnar;
+
+    /**
+     * True when the variables having a mapping are written as their codes
+     * followed by a lookup table, otherwise as their semantic meanings.
+     */
+    private final boolean isDictionaryEncoding;
+
+    /**
+     * Lookup tables of the variables having a mapping, as written in the
+     * GeoJson.
+     */
+    private final Map<String, Map<String, String>> lookupTables = new ConcurrentHashMap<>();
 
     /**
      * Constructs the global process.
      *
      * @param startTime start time
      * @param attributes attributes to extract
-     * @param dataQueue List of files to process
+     * @param downloader downloader of the spool mode or null to load the files in memory
+     * @param journal journal of the processed files or null to check the output files
+     * @param sink target of the encoded documents
      */
     public Processor(final long startTime, final Map<String, Object> attributes,
-            final Queue<String> dataQueue) {
+            final SpoolDownloader downloader, final ProcessedJournal journal, final OutputSink sink) {
         final Settings settings = Settings.getInstance();
         this.startTime = startTime;
         this.attributes = attributes;
-        this.dataQueue = dataQueue;
-        this.metadata = new Metadata(KEYWORDS_TO_EXTRACT);
-        this.metadata.addMapping("surface_type", SURFACE_TYPE_MAPPING);
-        this.writer.getOptions().put(GeoJsonWriter.FIX_LONGITUDE, true);
+        this.downloader = downloader;
+        this.journal = journal;
+        this.sink = sink;
         final String prettyDisp = settings.getString(Consts.PRETTY_DISPLAY, "false");                
         LOGGER.trace("Set pretty display to "+prettyDisp);        
-        this.writer.getOptions().put(GeoJsonWriter.PRETTY_DISPLAY, Boolean.parseBoolean(prettyDisp));
+        // a feature line is neither indented nor compressed
+        this.isPrettyDisplay = !sink.isLineDelimited() && Boolean.parseBoolean(prettyDisp);
+        this.isCompressed = !sink.isLineDelimited() && isCompressedOutput();
+        this.isColumnar = Boolean.parseBoolean(settings.getString(Consts.COLUMNAR_SIDECAR, "false"));
+        this.spillDirectory = getSpillDirectory();
+        this.documentMemoryLimit = settings.getLong(Consts.DOCUMENT_MEMORY_LIMIT, "1048576");
+        this.isDictionaryEncoding = "dictionary".equalsIgnoreCase(settings.getString(Consts.CATEGORICAL_ENCODING, "strings"));
     }
 
     /**
-     * Extracts the metadata from the file and transforms it to GeoJson.
+     * Fetch stage : downloads the file unless it has already been processed.
      *
-     * @param uri file
+     * @param item file to process
+     * @return the item to extract or null when the file is skipped
      * @throws URISyntaxException
      * @throws InterruptedException
      * @throws IOException
      */
-    private void process(final String uri) throws URISyntaxException, InterruptedException, IOException {
-        LOGGER.trace("Entering in process with argument " + uri);        
-        this.metadata.process(uri);
-        save(this.metadata, uri);
-        LOGGER.trace("Exiting in process");                
+    public ProcessingItem fetch(final ProcessingItem item) throws URISyntaxException, InterruptedException, IOException {
+        final String uri = item.getUri();
+        LOGGER.info(String.format("Starting the processing of %s", uri));
+        if (isUriAlreadyProcessedAndValid(uri)) {
+            LOGGER.info(String.format("Skip existing uri %s on disk", uri));
+            countDone(uri);
+            return null;
+        }
+        final Metadata metadata = new Metadata(KEYWORDS_TO_EXTRACT, this.downloader);
+        metadata.addMapping("surface_type", SURFACE_TYPE_MAPPING);
+        item.setMetadata(metadata);
+        item.setFile(metadata.fetch(uri));
+        return item;
+    }
+
+    /**
+     * Extract stage : extracts the variables from the fetched file.
+     *
+     * @param item fetched file
+     * @return the item to encode
+     * @throws IOException
+     */
+    public ProcessingItem extract(final ProcessingItem item) throws IOException {
+        final NetcdfFile file = item.getFile();
+        item.setFile(null);
+        item.getMetadata().extract(item.getUri(), file);
+        return item;
+    }
+
+    /**
+     * Encode stage : encodes the extracted variables in memory as GeoJson,
+     * compressed in gzip when the output compression is set, or as a feature
+     * line for a newline-delimited sink, followed by the columnar file when it
+     * is set, and gives back their arrays. Nothing is written to the output :
+     * the documents are written by the write stage, the documents larger than
+     * the memory limit being spilled to the spool directory.
+     *
+     * @param item extracted file
+     * @return the item to write
+     * @throws IOException When the GeoJson cannot be encoded
+     */
+    public ProcessingItem encode(final ProcessingItem item) throws IOException {
+        final DocumentBuffer document = new DocumentBuffer(this.spillDirectory, this.documentMemoryLimit);
+        final DocumentBuffer columns = this.isColumnar
+                ? new DocumentBuffer(this.spillDirectory, this.documentMemoryLimit) : null;
+        final BufferPool pool = BufferPool.getInstance();
+        final ByteBuffer buffer = pool.borrowBuffer(ENCODE_BUFFER_SIZE);
+        try (Metadata metadata = item.getMetadata()) {
+            final ParallelGzipChannel gzip = this.isCompressed ? new ParallelGzipChannel(document) : null;
+            final JsonStreamWriter json = new JsonStreamWriter((gzip == null) ? document : gzip, buffer,
+                    this.isPrettyDisplay);
+            if (this.sink.isLineDelimited()) {
+                writeFeature(metadata, item.getUri(), json);
+                json.endLine();
+            } else {
+                writeGeoJson(metadata, item.getUri(), json);
+            }
+            json.flush();
+            if (gzip == null) {
+                item.setDocument(document, json.getSize(), json.getChecksum());
+            } else {
+                gzip.finish();
+                item.setDocument(document, gzip.getSize(), gzip.getChecksum());
+            }
+            if (columns != null) {
+                item.setColumns(columns);
+                writeColumns(metadata, columns, buffer);
+            }
+        } catch (IOException | RuntimeException ex) {
+            document.release();
+            if (columns != null) {
+                columns.release();
+            }
+            item.setDocument(null, 0, 0);
+            item.setColumns(null);
+            throw ex;
+        } finally {
+            pool.release(buffer);
+            item.setMetadata(null);
+        }
+        return item;
+    }
+
+    /**
+     * Write stage : gives the encoded document to the sink, releases it and
+     * updates the progress. The columnar file is written before, so that it
+     * exists when the document is written.
+     *
+     * @param item encoded file
+     * @throws IOException
+     */
+    public void write(final ProcessingItem item) throws IOException {
+        final DocumentBuffer columns = item.getColumns();
+        if (columns != null) {
+            columns.writeFile(getFilenameUriAsColumns(item.getUri()));
+            item.setColumns(null);
+            columns.release();
+        }
+        final DocumentBuffer document = item.getDocument();
+        this.sink.write(item.getUri(), document, item.getDocumentSize(), item.getDocumentChecksum());
+        item.setDocument(null, 0, 0);
+        document.release();
+        countDone(item.getUri());
+        final long endProcessing = System.currentTimeMillis();
+        final float timeProcessing = (float) ((endProcessing - item.getStartProcessing()) / 1000.0f);
+        LOGGER.info("processed file in " + timeProcessing + " s");
+    }
+
+    /**
+     * Counts a file as done, whether it is written, skipped or failed, and
+     * updates the progress. The number of files and their size are updated
+     * together so that the progress is consistent.
+     *
+     * @param uri file
+     */
+    public void countDone(final String uri) {
+        final int nbFiles;
+        final long doneBytes;
+        synchronized (this.attributes) {
+            nbFiles = (Integer) this.attributes.get("nbFiles") + 1;
+            this.attributes.put("nbFiles", nbFiles);
+            doneBytes = ((AtomicLong) this.attributes.get("nbDoneBytes")).addAndGet(getIndexedSize(uri));
+        }
+        progressPercentage(this.startTime, (boolean) this.attributes.get("isCounted"), nbFiles, (int) this.attributes.get("nbTotalFiles"),
+                doneBytes, ((AtomicLong) this.attributes.get("nbTotalBytes")).get());
+    }
+
+    /**
+     * Releases the resources of an item that cannot be processed.
+     *
+     * @param item item
+     */
+    public void discard(final ProcessingItem item) {
+        final Metadata metadata = item.getMetadata();
+        if (metadata != null) {
+            item.setMetadata(null);
+            metadata.close();
+        }
+        for (final DocumentBuffer document : new DocumentBuffer[]{item.getDocument(), item.getColumns()}) {
+            if (document != null) {
+                document.release();
+            }
+        }
+        item.setDocument(null, 0, 0);
+        item.setColumns(null);
+        final NetcdfFile file = item.getFile();
+        if (file != null) {
+            item.setFile(null);
+            try {
+                file.close();
+            } catch (IOException ex) {
+                LOGGER.debug("Cannot close " + item.getUri(), ex);
+            }
+            if (this.downloader != null) {
+                this.downloader.release(new File(file.getLocation()));
+            }
+        }
+    }
+
+    /**
+     * Returns the directory where the documents larger than the memory limit
+     * are spilled : the spool directory.
+     *
+     * @return the spill directory
+     */
+    static File getSpillDirectory() {
+        return new File(Settings.getInstance().getString(Consts.SPOOL_DIRECTORY, "spool"));
     }
 
     /**
@@ -127,136 +334,157 @@ public class Processor implements Runnable {
      * @param uri file
      * @return GeoJson filename
      */
-    private static File getFilenameUriAsGeoJson(final String uri) {
+    static File getFilenameUriAsGeoJson(final String uri) {
         LOGGER.trace("Entering in getFilenameUriAsGeoJson with argument " + uri);
+        final File file = new File(getOutputPrefix(uri) + (isCompressedOutput() ? ".geojson.gz" : ".geojson"));
+        LOGGER.trace("Exiting in getFilenameUriAsGeoJson with result " + file);
+        return file;
+    }
+
+    /**
+     * Gets the columnar filename on the disk based on the URI of the file
+     *
+     * @param uri file
+     * @return columnar filename
+     */
+    private static File getFilenameUriAsColumns(final String uri) {
+        return new File(getOutputPrefix(uri) + ColumnFile.EXTENSION);
+    }
+
+    /**
+     * Returns the output directory followed by the name of the file without
+     * its extension.
+     *
+     * @param uri file
+     * @return the prefix of the output files
+     */
+    private static String getOutputPrefix(final String uri) {
         final String fileName = uri.substring(uri.lastIndexOf('/') + 1, uri.length());
         final String fileNameWithoutExtension = fileName.substring(0, fileName.lastIndexOf('.'));
         final String outputDir = Settings.getInstance().getString(Consts.OUTPUT);
         final StringBuilder fileBuilder = new StringBuilder();
         fileBuilder.append(outputDir);
         fileBuilder.append(fileNameWithoutExtension);
-        fileBuilder.append(".geojson");
-        LOGGER.trace("Exiting in getFilenameUriAsGeoJson with result " + fileBuilder.toString());
-        return new File(fileBuilder.toString());
+        return fileBuilder.toString();
     }
 
     /**
      * Tests if the file has already been processed and not corrupted.
+     * The columnar file, only written in the files mode, must exist. The
+     * journal is checked next. Without journal record, the output file is
+     * checked by the sink.
      *
      * @param uri file
      * @return True when the uri has already been processed otherwise False
      */
     private boolean isUriAlreadyProcessedAndValid(final String uri) {
         LOGGER.trace("Entering in isUriAlreadyProcessedAndValid with argument " + uri);
-        boolean result;
-        final File file = getFilenameUriAsGeoJson(uri);
-        result = file.exists();
-        LOGGER.trace("File "+file.getName()+" exists ? "+result);
-        if (result) {
-            try {
-                this.parser.parse(file);               
-            } catch (IOException ex) {
-                LOGGER.info(file.getName() + " is corrupted, add it in the queue", ex);
-                boolean added = this.dataQueue.add(uri);
-                if (!added) {
-                    LOGGER.error("Cannot add the corrupted file " + file.getName() + " in the queue");
-                }
-                result = false;
-            }
+        if (this.isColumnar && !getFilenameUriAsColumns(uri).exists()) {
+            LOGGER.trace("Exiting in isUriAlreadyProcessedAndValid with result false (no columnar file)");
+            return false;
+        }
+        if (this.journal != null && this.journal.contains(uri)) {
+            LOGGER.trace("Exiting in isUriAlreadyProcessedAndValid with result true (journal)");
+            return true;
         }
+        final boolean result = this.sink.contains(uri);
         LOGGER.trace("Exiting in isUriAlreadyProcessedAndValid with result " + result);
         return result;
     }
 
-    @Override
-    public void run() {
-        while (!this.dataQueue.isEmpty()) {
-            String uri = this.dataQueue.poll();
+    /**
+     * Tests whether the GeoJson files are compressed in gzip.
+     *
+     * @return True when the output compression is gzip otherwise False
+     */
+    static boolean isCompressedOutput() {
+        return "gzip".equalsIgnoreCase(Settings.getInstance().getString(Consts.OUTPUT_COMPRESSION, "none"));
+    }
 
-            final long startProcessing = System.currentTimeMillis();
-            LOGGER.info(String.format("Starting the processing of %s", uri));
-            try {
-                if (isUriAlreadyProcessedAndValid(uri)) {
-                    LOGGER.info(String.format("Skip existing uri %s on disk", uri));
-                    Thread.sleep(100);
-                    continue;
-                }
-                process(uri);
-                synchronized (this.attributes) {
-                    int nbFiles = (Integer) this.attributes.get("nbFiles");
-                    nbFiles++;
-                    this.attributes.put("nbFiles", nbFiles);
+    /**
+     * Writes the variables to extract.
+     *
+     * @param metadata extracted metadata from the file
+     * @param keywords keywords to extract
+     * @param categories stored lookup tables of the dictionary encoding
+     * @param json GeoJson being written
+     * @throws IOException When the GeoJson cannot be written
+     */
+    private void writeVariables(final Metadata metadata, final List<String> keywords,
+            final Map<String, Object> categories, final JsonStreamWriter json) throws IOException {
+        json.beginObject();
+        for (final String keyword : keywords) {
+            if (!(keyword.equals("lon") || keyword.equals("lat"))) {
+                writeVariable(metadata, metadata.getData(keyword), keyword, json);
+                if (this.isDictionaryEncoding && metadata.getData(keyword) instanceof Column
+                        && metadata.hasMapping(keyword)) {
+                    categories.put(keyword, getLookupTable(keyword, metadata.getMapping(keyword)));
                 }
-
-                progressPercentage(this.startTime, (boolean) this.attributes.get("isCounted"), (int) this.attributes.get("nbFiles"), (int) this.attributes.get("nbTotalFiles"));
-                final long endProcessing = System.currentTimeMillis();
-                final float timeProcessing = (float) ((endProcessing - startProcessing) / 1000.0f);
-                LOGGER.info("processed file in " + timeProcessing + " s");
-            } catch (URISyntaxException | InterruptedException | IOException ex) {
-                final long endProcessing = System.currentTimeMillis();
-                final float timeProcessing = (float) ((endProcessing - startProcessing) / 1000.0f);
-                LOGGER.error(String.format("Unable to process the file %s - %s s", uri, timeProcessing), ex);
             }
         }
+        json.endObject();
     }
 
     /**
-     * Process the variable to extract.
+     * Returns the lookup table of a variable, giving the semantic meaning of
+     * each code.
      *
-     * @param metadata extracted metadata from the file
-     * @param keywords keywords to extract
-     * @return GeoJSon node
+     * @param keyword variable
+     * @param mapping mapping value/human understandable value
+     * @return the lookup table
      */
-    private Map<String, Object> getVariables(Metadata metadata, List<String> keywords) {
-        final Map<String, Object> variables = new HashMap<>();
-        keywords.stream().filter((keyword) -> !(keyword.equals("lon") || keyword.equals("lat"))).forEach((keyword) -> {
-            storeVariable(metadata.getData(keyword), variables, keyword);
+    private Map<String, String> getLookupTable(final String keyword, final Map<Integer, String> mapping) {
+        return this.lookupTables.computeIfAbsent(keyword, (key) -> {
+            final Map<String, String> table = new TreeMap<>();
+            mapping.forEach((code, desc) -> table.put(String.valueOf(code), desc));
+            return table;
         });
-        return variables;
     }
 
     /**
-     * Stores the variable as an array according to its datatype.
+     * Writes the variable as an array according to its datatype. The packed
+     * values are unpacked here. The bytes are written as their semantic
+     * meanings when the variable has a mapping, unless the codes of the
+     * variables having a mapping are written with the dictionary encoding.
      *
+     * @param metadata extracted metadata from the file
      * @param valueObj value of the variable
-     * @param variables list of variables to transform to GeoJson
      * @param keyword keyword of the variable
+     * @param json GeoJson being written
+     * @throws IOException When the GeoJson cannot be written
      */
-    private void storeVariable(Object valueObj, Map<String, Object> variables, String keyword) {
-        if (valueObj == null) {
-            return;
-        }
-        if (valueObj instanceof Array) {
-            final Array val = (Array) valueObj;
-            final String datatype = val.getElementType().getCanonicalName();
-            switch (datatype) {
-                case "double":
-                    final double[] doubleValues = (double[]) val.copyTo1DJavaArray();
-                    variables.put(keyword, doubleValues);
-                    break;
-                case "byte":
-                    final byte[] byteValues = (byte[]) val.copyTo1DJavaArray();
-                    final String[] values = new String[byteValues.length];
-                    final Map<Integer, String> mapping = metadata.getMapping(keyword);
-                    for (int i = 0; i < byteValues.length; i++) {
-                        final Byte byteVal = byteValues[i];
-                        final int valInt = byteVal.intValue();
-                        final String desc;
-                        if (mapping == null) {
-                            desc = String.valueOf(valInt);
-                        } else {
-                            desc = mapping.get(valInt);
-                        }
-                        values[i] = desc;
-                    }
-                    variables.put(keyword, values);
-                    break;
-                default:
-                    break;
+    private void writeVariable(final Metadata metadata, final Object valueObj, final String keyword,
+            final JsonStreamWriter json) throws IOException {
+        if (valueObj instanceof Column) {
+            final Column column = (Column) valueObj;
+            json.name(keyword).beginInlineArray();
+            final int size = column.size();
+            if (this.isDictionaryEncoding && column.isInteger() && metadata.hasMapping(keyword)) {
+                for (int i = 0; i < size; i++) {
+                    json.value(column.getLong(i));
+                }
+            } else if (column.isInteger() && column.getElementType() == byte.class) {
+                final Map<Integer, String> mapping = metadata.getMapping(keyword);
+                for (int i = 0; i < size; i++) {
+                    final int valInt = (int) column.getLong(i);
+                    json.value((mapping == null) ? String.valueOf(valInt) : mapping.get(valInt));
+                }
+            } else if (column.isInteger()) {
+                for (int i = 0; i < size; i++) {
+                    json.value(column.getLong(i));
+                }
+            } else if (column.isFloat()) {
+                for (int i = 0; i < size; i++) {
+                    json.value(column.getFloat(i));
+                }
+            } else {
+                for (int i = 0; i < size; i++) {
+                    json.value(column.getDouble(i));
+                }
             }
+            json.endArray();
         } else if (valueObj instanceof String[]) {
-            final String[] times = (String[]) valueObj;
-            variables.put(keyword, times);
+            json.name(keyword).value(valueObj);
         }
     }
 
@@ -277,63 +505,152 @@ public class Processor implements Runnable {
     }
 
     /**
-     * Saves the file as a GeoJson file.
+     * Writes the extracted variables as a GeoJson document.
      *
      * @param metadata extracted variables
      * @param uri file
-     * @throws URISyntaxException
-     * @throws FileNotFoundException
-     * @throws IOException
+     * @param json GeoJson being written
+     * @throws IOException When the GeoJson cannot be written
+     */
+    private void writeGeoJson(final Metadata metadata, final String uri, final JsonStreamWriter json)
+            throws IOException {
+        json.beginObject();
+        json.name("type").value("FeatureCollection");
+        json.name("features").beginArray();
+        writeFeature(metadata, uri, json);
+        json.endArray();
+        json.endObject();
+    }
+
+    /**
+     * Writes the extracted variables as a GeoJson feature.
+     *
+     * @param metadata extracted variables
+     * @param uri file
+     * @param json GeoJson being written
+     * @throws IOException When the GeoJson cannot be written
      */
-    private void save(final Metadata metadata, final String uri) throws URISyntaxException, FileNotFoundException, IOException {
+    private void writeFeature(final Metadata metadata, final String uri, final JsonStreamWriter json)
+            throws IOException {
         final String fileName = uri.substring(uri.lastIndexOf('/') + 1, uri.length());
-        final Feature feature = writer.createFeature();
-        feature.setId(fileName);
-        feature.setGeometry(createGeometry(metadata));
-        feature.getProperties().putAll(metadata.getGlobalMetadata());
-        feature.getProperties().put("variables", getVariables(metadata, KEYWORDS_TO_EXTRACT));
-        feature.getForeignMembers().put("services", getServices(uri));
-        final FeatureCollection fc = writer.createFeatureCollection();
-        fc.getFeatures().add(feature);
-
-        try (final FileOutputStream fos = new FileOutputStream(getFilenameUriAsGeoJson(uri))) {
-            final String result = writer.toJson(fc);
-            fos.write(result.getBytes());
+        json.beginObject();
+        json.name("type").value("Feature");
+        json.name("id").value(fileName);
+        json.name("geometry");
+        writeGeometry(metadata, json);
+        json.name("properties").beginObject();
+        for (final Map.Entry<String, Object> attribute : metadata.getGlobalMetadata().entrySet()) {
+            json.name(attribute.getKey()).value(attribute.getValue());
         }
+        final Map<String, Object> categories = new HashMap<>();
+        json.name("variables");
+        writeVariables(metadata, KEYWORDS_TO_EXTRACT, categories, json);
+        if (!categories.isEmpty()) {
+            json.name("categories").value(categories);
+        }
+        json.endObject();
+        json.name("services").value(getServices(uri));
+        json.endObject();
     }
 
     /**
-     * Create the GeoJson geometry
+     * Writes the columnar file : longitude, latitude and time in seconds
+     * since 1970-01-01T00:00:00Z as doubles, then the variables, the integers
+     * in their type and the other values unpacked in doubles.
+     *
+     * @param metadata extracted variables
+     * @param channel channel receiving the columnar file
+     * @param buffer buffer in which the file is written before being flushed
+     * @throws IOException When the file cannot be written
+     */
+    private void writeColumns(final Metadata metadata, final WritableByteChannel channel, final ByteBuffer buffer)
+            throws IOException {
+        final ColumnFile.Writer writer = new ColumnFile.Writer();
+        final Column longitudes = metadata.getData("lon");
+        final Column latitudes = metadata.getData("lat");
+        writer.addDoubles("lon", metadata.getUnit("lon"), metadata.getDescription("lon"), longitudes.size(), (i) -> {
+            final double longitude = longitudes.getDouble(i);
+            return (longitude > 180) ? longitude - 360 : longitude;
+        });
+        writer.addDoubles("lat", metadata.getUnit("lat"), metadata.getDescription("lat"), latitudes.size(),
+                latitudes::getDouble);
+        final Column times = metadata.getTimeInSeconds();
+        if (times != null) {
+            writer.addDoubles("time", Metadata.EPOCH_SECONDS, metadata.getDescription("time"), times.size(),
+                    times::getDouble);
+        }
+        for (final String keyword : KEYWORDS_TO_EXTRACT) {
+            final Object values = metadata.getData(keyword);
+            if (keyword.equals("lon") || keyword.equals("lat") || keyword.equals("time")
+                    || !(values instanceof Column)) {
+                continue;
+            }
+            final Column column = (Column) values;
+            if (column.isInteger()) {
+                writer.addIntegers(keyword, metadata.getUnit(keyword), metadata.getDescription(keyword),
+                        ColumnFile.Type.of(column.getElementType()), column.isUnsigned(), column.size(),
+                        column::getLong);
+            } else {
+                writer.addDoubles(keyword, metadata.getUnit(keyword), metadata.getDescription(keyword),
+                        column.size(), column::getDouble);
+            }
+        }
+        writer.write(channel, buffer);
+    }
+
+    /**
+     * Writes the GeoJson geometry. The longitudes are written between -180
+     * and 180 degrees, the float coordinates as floats.
      *
      * @param extVariable extracted metadata from the file
-     * @return the GeoJson geometry
-     */
-    private Geometry createGeometry(Metadata extVariable) {
-        final LineString geom = writer.createGeometry(LineString.class);
-        final Array longitudeVariable = extVariable.getData("lon");
-        final Array latitudeVariable = extVariable.getData("lat");
-        final double[] longitudes = (double[]) longitudeVariable.copyTo1DJavaArray();
-        final double[] latitudes = (double[]) latitudeVariable.copyTo1DJavaArray();
-        final double[][] coordinates = new double[longitudes.length][];
-        for (int i = 0; i < longitudes.length; i++) {
-            coordinates[i] = new double[]{longitudes[i], latitudes[i]};
+     * @param json GeoJson being written
+     * @throws IOException When the GeoJson cannot be written
+     */
+    private void writeGeometry(final Metadata extVariable, final JsonStreamWriter json) throws IOException {
+        final Column longitudes = extVariable.getData("lon");
+        final Column latitudes = extVariable.getData("lat");
+        json.beginObject();
+        json.name("type").value("LineString");
+        json.name("coordinates").beginArray();
+        for (int i = 0; i < longitudes.size(); i++) {
+            final double longitude = longitudes.getDouble(i);
+            json.beginInlineArray();
+            if (longitudes.isFloat()) {
+                json.value((float) ((longitude > 180) ? longitude - 360 : longitude));
+            } else {
+                json.value((longitude > 180) ? longitude - 360 : longitude);
+            }
+            if (latitudes.isFloat()) {
+                json.value(latitudes.getFloat(i));
+            } else {
+                json.value(latitudes.getDouble(i));
+            }
+            json.endArray();
         }
-        geom.setPoints(coordinates);
-        return geom;
+        json.endArray();
+        json.endObject();
     }
 
     /**
-     * Displays a progress bar.
+     * Displays a progress bar. The progress and the remaining time are
+     * computed on the sizes of the files given by the listings, the time of a
+     * file depending on its size, or on the number of files when the sizes are
+     * unknown.
      *
      * @param startTime start time
      * @param isFinishedToCount
-     * @param remain number of remaining URI to process
+     * @param remain number of processed URI
      * @param total total number of URI to process
+     * @param doneBytes size of the processed URI
+     * @param totalBytes total size of the URI to process
      */
-    public static void progressPercentage(long startTime, boolean isFinishedToCount, int remain, int total) {
+    public static void progressPercentage(long startTime, boolean isFinishedToCount, int remain, int total,
+            long doneBytes, long totalBytes) {
         if (isFinishedToCount) {
+            final boolean isSized = totalBytes > 0 && doneBytes > 0;
+            final double ratio = isSized ? Math.min(1.0, (double) doneBytes / totalBytes) : (double) remain / total;
             final int maxBareSize = 10; // 10unit for 100%
-            final int remainProcent = ((100 * remain) / total) / maxBareSize;
+            final int remainProcent = (int) (ratio * 100) / maxBareSize;
             final char defaultChar = '-';
             final String icon = "*";
             final String bare = new String(new char[maxBareSize]).replace('\0', defaultChar) + "]";
@@ -345,14 +662,24 @@ public class Processor implements Runnable {
             final String bareRemain = bare.substring(remainProcent, bare.length());
             final long currentTime = System.currentTimeMillis();
 
-            final long diffTimePerFile = (currentTime - startTime) / remain;
-            final long estimatedTimeToFinish = (total - remain) * diffTimePerFile;
+            final long estimatedTimeToFinish = (long) ((currentTime - startTime) * (1 - ratio) / ratio);
             final float estimatedTimeToFinishInMn = estimatedTimeToFinish / 60000.0f;
             final String time = String.format("%.2f", estimatedTimeToFinishInMn);
-            System.out.print("\r" + bareDone + bareRemain + " " + remainProcent * 10 + "%" + "(" + remain + "/" + total + ")  - Still " + time + " mn");
+            final String left = isSized ? String.format(", %.1f MB left", (totalBytes - doneBytes) / 1048576.0) : "";
+            System.out.print("\r" + bareDone + bareRemain + " " + remainProcent * 10 + "%" + "(" + remain + "/" + total + left + ")  - Still " + time + " mn");
             if (remain == total) {
                 System.out.print("\n");
             }
         }
     }
+
+    /**
+     * Returns the size of a file given by the listing.
+     *
+     * @param uri file
+     * @return the size or 0 when it is unknown
+     */
+    private static long getIndexedSize(final String uri) {
+        return Math.max(0, FileSizeIndex.getInstance().getSize(uri));
+    }
 }
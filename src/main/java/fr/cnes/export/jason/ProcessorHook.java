@@ -18,6 +18,7 @@
  ******************************************************************************/
 package fr.cnes.export.jason;
 
+import fr.cnes.export.source.FtpConnectionPool;
 import java.util.Queue;
 import org.apache.log4j.Logger;
 
@@ -41,5 +42,6 @@ public class ProcessorHook extends Thread {
         if(!this.dataQueue.isEmpty()) {
             LOGGER.info("interrupt received, killing program"); 
         }         
+        FtpConnectionPool.getInstance().close();
     }    
 }
@@ -0,0 +1,173 @@
+/**
+ * ****************************************************************************
+ * Copyright 2017 CNES - CENTRE NATIONAL d'ETUDES SPATIALES
+ *
+ * This file is part of Regards.
+ *
+ * Regards is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Regards is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Regards.  If not, see <http://www.gnu.org/licenses/>.
+ * ****************************************************************************
+ */
+package fr.cnes.export.jason;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.apache.log4j.Logger;
+
+/**
+ * Delayed retries of the files that could not be fetched.
+ *
+ * A failed file is parked in a delay queue instead of blocking its worker :
+ * the worker moves on to the next file and the file is given back by
+ * {@link #poll} once its delay has elapsed. The delay doubles at each attempt,
+ * up to a maximum, and a random jitter spreads the retries of the files that
+ * failed together. After the last attempt, the file is put in the dead letters.
+ */
+public class RetryScheduler {
+
+    private static final Logger LOGGER = Logger.getLogger(RetryScheduler.class.getName());
+
+    private final int maxAttempts;
+    private final long initialDelay;
+    private final long maxDelay;
+    private final DelayQueue<Retry> retries = new DelayQueue<>();
+    private final List<String> deadLetters = new ArrayList<>();
+
+    /**
+     * Creates a scheduler.
+     *
+     * @param maxAttempts maximum number of attempts of a file
+     * @param initialDelay delay (in ms) before the first retry
+     * @param maxDelay maximum delay (in ms) between two attempts
+     */
+    public RetryScheduler(final int maxAttempts, final long initialDelay, final long maxDelay) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("maxAttempts must be greater than 0");
+        }
+        this.maxAttempts = maxAttempts;
+        this.initialDelay = initialDelay;
+        this.maxDelay = Math.max(initialDelay, maxDelay);
+    }
+
+    /**
+     * Schedules a new attempt of a file that failed.
+     *
+     * @param item file that failed
+     * @param cause failure
+     * @return True when the file is scheduled, False when it has no attempt
+     * left and is put in the dead letters
+     */
+    public boolean schedule(final ProcessingItem item, final Exception cause) {
+        final int attempts = item.incrementAttempts();
+        if (attempts >= this.maxAttempts) {
+            LOGGER.error(String.format("Giving up %s after %s attempts", item.getUri(), attempts), cause);
+            synchronized (this.deadLetters) {
+                this.deadLetters.add(item.getUri());
+            }
+            return false;
+        }
+        final long delay = computeDelay(attempts);
+        LOGGER.info(String.format("Problem when loading %s (%s), retry %s/%s in %s ms", item.getUri(),
+                cause.getMessage(), attempts, this.maxAttempts - 1, delay));
+        this.retries.put(new Retry(item, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay)));
+        return true;
+    }
+
+    /**
+     * Returns a file whose delay has elapsed, waiting at most the timeout.
+     *
+     * @param timeout maximum time to wait
+     * @param unit unit of the timeout
+     * @return the file to fetch again or null when no delay has elapsed
+     * @throws InterruptedException
+     */
+    public ProcessingItem poll(final long timeout, final TimeUnit unit) throws InterruptedException {
+        final Retry retry = this.retries.poll(timeout, unit);
+        return (retry == null) ? null : retry.item;
+    }
+
+    /**
+     * Tests whether files are waiting for a retry.
+     *
+     * @return True when no file is waiting
+     */
+    public boolean isEmpty() {
+        return this.retries.isEmpty();
+    }
+
+    /**
+     * Returns the files that failed at each attempt.
+     *
+     * @return the dead letters
+     */
+    public List<String> getDeadLetters() {
+        synchronized (this.deadLetters) {
+            return new ArrayList<>(this.deadLetters);
+        }
+    }
+
+    /**
+     * Returns the files still waiting for a retry.
+     *
+     * @return the files
+     */
+    public List<String> getPendingFiles() {
+        final List<String> files = new ArrayList<>();
+        this.retries.stream().forEach((retry) -> {
+            files.add(retry.item.getUri());
+        });
+        return files;
+    }
+
+    /**
+     * Computes the delay of an attempt : the exponential delay, capped, of
+     * which a random half is kept.
+     *
+     * @param attempts number of failed attempts
+     * @return the delay in ms
+     */
+    private long computeDelay(final int attempts) {
+        final long exponentialDelay = (attempts > 30) ? this.maxDelay
+                : Math.min(this.maxDelay, this.initialDelay << (attempts - 1));
+        final long half = exponentialDelay / 2;
+        return half + ThreadLocalRandom.current().nextLong(half + 1);
+    }
+
+    /**
+     * File waiting for its retry.
+     */
+    private static class Retry implements Delayed {
+
+        private final ProcessingItem item;
+        private final long dueTime;
+
+        Retry(final ProcessingItem item, final long dueTime) {
+            this.item = item;
+            this.dueTime = dueTime;
+        }
+
+        @Override
+        public long getDelay(final TimeUnit unit) {
+            return unit.convert(this.dueTime - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(final Delayed other) {
+            return Long.compare(this.dueTime, ((Retry) other).dueTime);
+        }
+    }
+}
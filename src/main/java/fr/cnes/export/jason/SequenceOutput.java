@@ -0,0 +1,436 @@
+ /******************************************************************************
+ * Copyright 2017 CNES - CENTRE NATIONAL d'ETUDES SPATIALES
+ *
+ * This file is part of Regards.
+ *
+ * Regards is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Regards is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Regards.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package fr.cnes.export.jason;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32;
+import org.apache.log4j.Logger;
+
+/**
+ * Rolling newline-delimited GeoJSON output (GeoJSONSeq) : each pass is
+ * appended as one feature line to the current file, which is rotated once it
+ * reaches a number of features or a size.
+ *
+ * The current file and its index are written as .part files, then published
+ * by an atomic rename of the index followed by the file, so that a published
+ * file is always complete. The index of a file has a line per pass giving the
+ * offset, the length of the feature line, newline included, and the URI of
+ * the pass, separated by tabs, so that a single pass can be read by seeking.
+ *
+ * The passes of a file are recorded in the journal once the file is published.
+ * When the output is opened, the passes of the published indexes missing from
+ * the journal, after a crash during the recording, are recorded, and the .part
+ * files left by an interrupted run or a failed rotation are removed, their
+ * passes being processed again.
+ */
+public class SequenceOutput implements OutputSink {
+
+    /**
+     * Extension of the sequence files.
+     */
+    public static final String EXTENSION = ".geojsonl";
+
+    /**
+     * Extension appended to a sequence file to name its index.
+     */
+    public static final String INDEX_EXTENSION = ".idx";
+
+    /**
+     * Name of the sequence files, followed by the shard suffix, a dash and
+     * their number.
+     */
+    public static final String PREFIX = "passes";
+
+    private static final String PART_SUFFIX = ".part";
+
+    private static final char SEPARATOR = '\t';
+
+    private static final int COPY_BUFFER_SIZE = 65536;
+
+    /**
+     * Logger.
+     */
+    private static final Logger LOGGER = Logger.getLogger(SequenceOutput.class.getName());
+
+    private final File directory;
+    private final String prefix;
+    private final long maxBytes;
+    private final int maxFeatures;
+    private final ProcessedJournal journal;
+
+    /**
+     * URIs of the passes in the published files, loaded from their indexes.
+     */
+    private final Set<String> indexedUris = new HashSet<>();
+
+    /**
+     * Number of the next file.
+     */
+    private int number = 0;
+
+    private FileChannel data;
+    private FileChannel index;
+    private final CRC32 checksum = new CRC32();
+    private long size;
+    private final List<String> uris = new ArrayList<>();
+
+    /**
+     * Opens the output : records the published passes missing from the
+     * journal, removes the .part files of an interrupted run and numbers the
+     * next file after the published ones.
+     *
+     * @param directory output directory
+     * @param prefix name of the files, such as {@link #PREFIX}
+     * @param maxBytes size from which a file is rotated
+     * @param maxFeatures number of features from which a file is rotated
+     * @param journal journal of the processed files or null
+     * @throws IOException When the output directory or an index cannot be
+     * read or the journal written
+     */
+    public SequenceOutput(final File directory, final String prefix, final long maxBytes,
+            final int maxFeatures, final ProcessedJournal journal) throws IOException {
+        this.directory = directory;
+        this.prefix = prefix;
+        this.maxBytes = maxBytes;
+        this.maxFeatures = maxFeatures;
+        this.journal = journal;
+        final File[] files = directory.listFiles();
+        if (files == null) {
+            throw new IOException("Cannot list " + directory);
+        }
+        for (final File file : files) {
+            final String name = file.getName();
+            final int fileNumber = parseNumber(name);
+            if (fileNumber < 0) {
+                continue;
+            }
+            if (name.endsWith(PART_SUFFIX)) {
+                LOGGER.warn("Removing the incomplete file " + file);
+                Files.delete(file.toPath());
+            } else if (name.endsWith(EXTENSION + INDEX_EXTENSION)) {
+                final File dataFile = new File(directory, name.substring(0, name.length() - INDEX_EXTENSION.length()));
+                if (!dataFile.exists()) {
+                    LOGGER.warn("Removing the index " + file + " without file");
+                    Files.delete(file.toPath());
+                } else {
+                    loadIndex(file, dataFile);
+                }
+            } else if (name.endsWith(EXTENSION)) {
+                this.number = Math.max(this.number, fileNumber + 1);
+            }
+        }
+        LOGGER.info("Passes are appended to " + getFile(this.number) + " and the following files");
+    }
+
+    @Override
+    public boolean isLineDelimited() {
+        return true;
+    }
+
+    /**
+     * Tests if a pass is in a published file.
+     *
+     * @param uri file of the pass
+     * @return True when the pass is in the index of a published file
+     */
+    @Override
+    public boolean contains(final String uri) {
+        return this.indexedUris.contains(uri);
+    }
+
+    @Override
+    public void write(final String uri, final DocumentBuffer document, final long size, final long checksum)
+            throws IOException {
+        append(uri, document);
+    }
+
+    /**
+     * Reads the feature line of a pass from a published file, by seeking to
+     * the offset given by its index.
+     *
+     * @param file sequence file
+     * @param uri file of the pass
+     * @return the feature line without its newline or null when the pass is
+     * not in the file
+     * @throws IOException When the file or its index cannot be read
+     */
+    public static String readFeature(final File file, final String uri) throws IOException {
+        final File indexFile = new File(file.getPath() + INDEX_EXTENSION);
+        try (BufferedReader reader = Files.newBufferedReader(indexFile.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final String[] fields = line.split(String.valueOf(SEPARATOR), 3);
+                if (fields.length == 3 && fields[2].equals(uri)) {
+                    final ByteBuffer feature = ByteBuffer.allocate(Integer.parseInt(fields[1]));
+                    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                        long position = Long.parseLong(fields[0]);
+                        while (feature.hasRemaining()) {
+                            final int count = channel.read(feature, position);
+                            if (count == -1) {
+                                throw new IOException(file + " is truncated");
+                            }
+                            position += count;
+                        }
+                    }
+                    return new String(feature.array(), 0, feature.capacity() - 1, StandardCharsets.UTF_8);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Appends a feature line to the current file and rotates the file when it
+     * is full. The file is rotated before the append when the line would make
+     * it exceed the maximum size.
+     *
+     * @param uri file of the pass
+     * @param feature feature line, ended by a newline
+     * @throws IOException When the file cannot be written or rotated
+     */
+    public synchronized void append(final String uri, final DocumentBuffer feature) throws IOException {
+        if (this.data != null && !this.uris.isEmpty() && this.size + feature.size() > this.maxBytes) {
+            rotate();
+        }
+        if (this.data == null) {
+            open();
+        }
+        final long offset = this.size;
+        final long indexOffset = this.index.position();
+        try {
+            feature.writeTo(this.data);
+            final String line = new StringBuilder().append(offset).append(SEPARATOR)
+                    .append(feature.size()).append(SEPARATOR).append(uri).append('\n').toString();
+            final ByteBuffer indexLine = ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8));
+            while (indexLine.hasRemaining()) {
+                this.index.write(indexLine);
+            }
+            feature.updateChecksum(this.checksum);
+        } catch (IOException ex) {
+            // the partial lines are removed and the checksum is computed again on the complete ones
+            this.data.truncate(offset);
+            this.data.position(offset);
+            this.index.truncate(indexOffset);
+            this.index.position(indexOffset);
+            this.checksum.reset();
+            update(this.checksum, getPart(getFile(this.number)));
+            throw ex;
+        }
+        this.size += feature.size();
+        this.uris.add(uri);
+        if (this.uris.size() >= this.maxFeatures || this.size >= this.maxBytes) {
+            rotate();
+        }
+    }
+
+    /**
+     * Publishes the current file, or removes it when it is empty.
+     *
+     * @throws IOException When the current file cannot be published
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (this.data == null) {
+            return;
+        }
+        if (this.uris.isEmpty()) {
+            this.data.close();
+            this.index.close();
+            this.data = null;
+            this.index = null;
+            Files.delete(getPart(getFile(this.number)).toPath());
+            Files.delete(getPart(getIndex(this.number)).toPath());
+        } else {
+            rotate();
+        }
+    }
+
+    /**
+     * Returns the sequence file of a number.
+     *
+     * @param fileNumber number of the file
+     * @return the file
+     */
+    private File getFile(final int fileNumber) {
+        return new File(this.directory, String.format("%s-%06d%s", this.prefix, fileNumber, EXTENSION));
+    }
+
+    private File getIndex(final int fileNumber) {
+        return new File(getFile(fileNumber).getPath() + INDEX_EXTENSION);
+    }
+
+    private static File getPart(final File file) {
+        return new File(file.getPath() + PART_SUFFIX);
+    }
+
+    /**
+     * Returns the number of a file of this output.
+     *
+     * @param name name of a file of the output directory
+     * @return the number or -1 when the file is not a file of this output
+     */
+    private int parseNumber(final String name) {
+        final String start = this.prefix + "-";
+        if (!name.startsWith(start)) {
+            return -1;
+        }
+        final int end = name.indexOf('.', start.length());
+        try {
+            return (end == -1) ? -1 : Integer.parseInt(name.substring(start.length(), end));
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    /**
+     * Opens the .part files of the current number.
+     */
+    private void open() throws IOException {
+        this.data = FileChannel.open(getPart(getFile(this.number)).toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            this.index = FileChannel.open(getPart(getIndex(this.number)).toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        } catch (IOException ex) {
+            this.data.close();
+            this.data = null;
+            throw ex;
+        }
+        this.checksum.reset();
+        this.size = 0;
+    }
+
+    /**
+     * Forces the current file and its index to the disk, renames the index
+     * then the file and records their passes in the journal.
+     *
+     * The number of the file is not reused and its passes are forgotten even
+     * when the rotation fails : the .part files left are removed by the next
+     * run, which processes their passes again.
+     */
+    private void rotate() throws IOException {
+        final File file = getFile(this.number);
+        final File indexFile = getIndex(this.number);
+        final List<String> passes = new ArrayList<>(this.uris);
+        final long fileSize = this.size;
+        this.number++;
+        this.uris.clear();
+        try {
+            try {
+                this.index.force(true);
+                this.data.force(true);
+            } finally {
+                this.index.close();
+                this.data.close();
+                this.index = null;
+                this.data = null;
+            }
+            Files.move(getPart(indexFile).toPath(), indexFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Files.move(getPart(file).toPath(), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            LOGGER.error("Cannot publish " + file + ", its " + passes.size()
+                    + " passes will be processed again by the next run", ex);
+            throw ex;
+        }
+        final long fileChecksum = this.checksum.getValue();
+        LOGGER.info(file.getName() + " written with " + passes.size() + " passes (" + fileSize + " bytes)");
+        if (this.journal != null) {
+            for (final String uri : passes) {
+                this.journal.record(uri, file, fileSize, fileChecksum);
+            }
+        }
+    }
+
+    /**
+     * Loads the URIs of an index and records in the journal the ones it does
+     * not contain, the run having stopped after the publication of the file.
+     *
+     * @param indexFile index of a published file
+     * @param file published file
+     * @throws IOException When the index cannot be read or the journal written
+     */
+    private void loadIndex(final File indexFile, final File file) throws IOException {
+        final List<String> unrecorded = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(indexFile.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final int separator = line.indexOf(SEPARATOR, line.indexOf(SEPARATOR) + 1);
+                if (separator > 0) {
+                    final String uri = line.substring(separator + 1);
+                    this.indexedUris.add(uri);
+                    if (this.journal != null && !this.journal.contains(uri)) {
+                        unrecorded.add(uri);
+                    }
+                }
+            }
+        }
+        if (!unrecorded.isEmpty()) {
+            final long fileChecksum = checksum(file);
+            for (final String uri : unrecorded) {
+                this.journal.record(uri, file, file.length(), fileChecksum);
+            }
+            LOGGER.info(unrecorded.size() + " passes of " + file.getName() + " added to the journal");
+        }
+    }
+
+    /**
+     * Computes the CRC32 of a file.
+     *
+     * @param file file
+     * @return the CRC32
+     * @throws IOException When the file cannot be read
+     */
+    private static long checksum(final File file) throws IOException {
+        final CRC32 crc = new CRC32();
+        update(crc, file);
+        return crc.getValue();
+    }
+
+    /**
+     * Updates a CRC32 with the bytes of a file.
+     *
+     * @param crc CRC32
+     * @param file file
+     * @throws IOException When the file cannot be read
+     */
+    private static void update(final CRC32 crc, final File file) throws IOException {
+        try (InputStream is = Files.newInputStream(file.toPath())) {
+            final byte[] buffer = new byte[COPY_BUFFER_SIZE];
+            int count;
+            while ((count = is.read(buffer)) != -1) {
+                crc.update(buffer, 0, count);
+            }
+        }
+    }
+}
@@ -0,0 +1,171 @@
+ /******************************************************************************
+ * Copyright 2017 CNES - CENTRE NATIONAL d'ETUDES SPATIALES
+ *
+ * This file is part of Regards.
+ *
+ * Regards is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Regards is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Regards.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package fr.cnes.export.jason;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationTargetException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import org.apache.log4j.Logger;
+
+/**
+ * Sink streaming the features as newline-delimited GeoJSON to the standard
+ * output or to a socket, such as an ingest service.
+ *
+ * The feature lines of the writer threads are written one at a time, so that
+ * the lines are never interleaved. The streamed files are not recorded in the
+ * journal : a new run streams them again.
+ */
+public class StreamSink implements OutputSink {
+
+    /**
+     * Prefix of the address of a Unix domain socket.
+     */
+    public static final String UNIX_PREFIX = "unix:";
+
+    /**
+     * Logger.
+     */
+    private static final Logger LOGGER = Logger.getLogger(StreamSink.class.getName());
+
+    /**
+     * Channel receiving the lines.
+     */
+    private final WritableByteChannel channel;
+
+    /**
+     * Name of the target, for the logs.
+     */
+    private final String name;
+
+    /**
+     * Number of streamed lines.
+     */
+    private long nbLines = 0;
+
+    /**
+     * Creates a sink.
+     *
+     * @param channel channel receiving the lines
+     * @param name name of the target
+     */
+    public StreamSink(final WritableByteChannel channel, final String name) {
+        this.channel = channel;
+        this.name = name;
+    }
+
+    /**
+     * Creates a sink writing to the standard output. The messages printed on
+     * the standard output, such as the progress, are sent to the standard
+     * error instead.
+     *
+     * @return the sink
+     */
+    public static StreamSink toStandardOutput() {
+        final FileOutputStream stdout = new FileOutputStream(FileDescriptor.out);
+        System.setOut(new PrintStream(new FileOutputStream(FileDescriptor.err), true));
+        return new StreamSink(stdout.getChannel(), "stdout");
+    }
+
+    /**
+     * Creates a sink connected to a socket : host:port for TCP or
+     * unix:path for a Unix domain socket, which requires JDK 16 or later.
+     *
+     * @param address address of the socket
+     * @return the sink
+     * @throws IOException When the socket cannot be connected
+     */
+    public static StreamSink connect(final String address) throws IOException {
+        final SocketChannel socket;
+        if (address.startsWith(UNIX_PREFIX)) {
+            socket = openUnixSocket(address.substring(UNIX_PREFIX.length()));
+        } else {
+            final int separator = address.lastIndexOf(':');
+            if (separator == -1) {
+                throw new IllegalArgumentException("The socket address must be host:port or unix:path : " + address);
+            }
+            socket = SocketChannel.open(new InetSocketAddress(address.substring(0, separator),
+                    Integer.parseInt(address.substring(separator + 1))));
+        }
+        LOGGER.info("Features are streamed to " + address);
+        return new StreamSink(socket, address);
+    }
+
+    @Override
+    public boolean isLineDelimited() {
+        return true;
+    }
+
+    @Override
+    public boolean contains(final String uri) {
+        return false;
+    }
+
+    @Override
+    public synchronized void write(final String uri, final DocumentBuffer document, final long size,
+            final long checksum) throws IOException {
+        document.writeTo(this.channel);
+        this.nbLines++;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        LOGGER.info(this.nbLines + " features streamed to " + this.name);
+        this.channel.close();
+    }
+
+    /**
+     * Opens a Unix domain socket. The project is compiled for Java 8, so the
+     * socket is opened by reflection.
+     *
+     * @param path path of the socket
+     * @return the connected socket
+     * @throws IOException When the socket cannot be connected or the JDK has
+     * no Unix domain sockets
+     */
+    private static SocketChannel openUnixSocket(final String path) throws IOException {
+        final SocketChannel socket;
+        final SocketAddress address;
+        try {
+            final ProtocolFamily unix = StandardProtocolFamily.valueOf("UNIX");
+            socket = (SocketChannel) SocketChannel.class.getMethod("open", ProtocolFamily.class).invoke(null, unix);
+            address = (SocketAddress) Class.forName("java.net.UnixDomainSocketAddress")
+                    .getMethod("of", String.class).invoke(null, path);
+        } catch (IllegalArgumentException | ReflectiveOperationException ex) {
+            if (ex instanceof InvocationTargetException && ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException("Unix domain sockets require JDK 16 or later", ex);
+        }
+        try {
+            socket.connect(address);
+        } catch (IOException ex) {
+            socket.close();
+            throw ex;
+        }
+        return socket;
+    }
+}
@@ -0,0 +1,223 @@
+ /******************************************************************************
+ * Copyright 2017 CNES - CENTRE NATIONAL d'ETUDES SPATIALES
+ *
+ * This file is part of Regards.
+ *
+ * Regards is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Regards is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Regards.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package fr.cnes.export.jason;
+
+import java.time.LocalDate;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Decoder of a time variable whose units are "unit since date" in the
+ * gregorian calendar.
+ *
+ * The values are converted arithmetically from the origin, without creating a
+ * calendar object per value. The ISO-8601 dates are written from the text of
+ * the day, which is kept while the values stay in the same day, followed by
+ * the time of the day.
+ */
+public class TimeDecoder {
+
+    private static final Pattern UNITS = Pattern.compile(
+            "\\s*(\\w+)\\s+since\\s+(\\d{1,4})-(\\d{1,2})-(\\d{1,2})"
+            + "(?:[T ](\\d{1,2}):(\\d{1,2})(?::(\\d{1,2})(?:\\.(\\d+))?)?)?"
+            + "\\s*(?:Z|UTC|GMT|[+-]00(?::?00)?)?\\s*", Pattern.CASE_INSENSITIVE);
+
+    private static final long MILLIS_PER_DAY = 86400000L;
+
+    /**
+     * First year of the gregorian calendar, before which the calendars of
+     * NetCdf differ.
+     */
+    private static final int GREGORIAN_YEAR = 1583;
+
+    private final long originMillis;
+    private final double millisPerUnit;
+
+    private TimeDecoder(final long originMillis, final double millisPerUnit) {
+        this.originMillis = originMillis;
+        this.millisPerUnit = millisPerUnit;
+    }
+
+    /**
+     * Creates the decoder of a time variable.
+     *
+     * @param units units attribute of the variable
+     * @param calendar calendar attribute of the variable or null
+     * @return the decoder or null when the units or the calendar are not
+     * supported
+     */
+    public static TimeDecoder create(final String units, final String calendar) {
+        if (units == null || calendar != null && !"gregorian".equalsIgnoreCase(calendar)
+                && !"standard".equalsIgnoreCase(calendar) && !"proleptic_gregorian".equalsIgnoreCase(calendar)) {
+            return null;
+        }
+        final Matcher matcher = UNITS.matcher(units);
+        if (!matcher.matches()) {
+            return null;
+        }
+        final double millisPerUnit = getMillisPerUnit(matcher.group(1).toLowerCase(Locale.ENGLISH));
+        final int year = Integer.parseInt(matcher.group(2));
+        if (Double.isNaN(millisPerUnit) || year < GREGORIAN_YEAR) {
+            return null;
+        }
+        final long day;
+        try {
+            day = LocalDate.of(year, Integer.parseInt(matcher.group(3)), Integer.parseInt(matcher.group(4)))
+                    .toEpochDay();
+        } catch (java.time.DateTimeException ex) {
+            return null;
+        }
+        long millis = day * MILLIS_PER_DAY;
+        if (matcher.group(5) != null) {
+            millis += Integer.parseInt(matcher.group(5)) * 3600000L + Integer.parseInt(matcher.group(6)) * 60000L;
+        }
+        if (matcher.group(7) != null) {
+            millis += Integer.parseInt(matcher.group(7)) * 1000L;
+        }
+        if (matcher.group(8) != null) {
+            millis += Math.round(Double.parseDouble("0." + matcher.group(8)) * 1000);
+        }
+        return new TimeDecoder(millis, millisPerUnit);
+    }
+
+    /**
+     * Returns the number of milliseconds of a unit.
+     *
+     * @param unit unit of the time variable
+     * @return the number of milliseconds or NaN when the unit is unknown
+     */
+    private static double getMillisPerUnit(final String unit) {
+        switch (unit) {
+            case "milliseconds":
+            case "millisecond":
+            case "msecs":
+            case "msec":
+            case "ms":
+                return 1;
+            case "seconds":
+            case "second":
+            case "secs":
+            case "sec":
+            case "s":
+                return 1000;
+            case "minutes":
+            case "minute":
+            case "mins":
+            case "min":
+                return 60000;
+            case "hours":
+            case "hour":
+            case "hrs":
+            case "hr":
+            case "h":
+                return 3600000;
+            case "days":
+            case "day":
+            case "d":
+                return MILLIS_PER_DAY;
+            default:
+                return Double.NaN;
+        }
+    }
+
+    /**
+     * Converts a value to milliseconds since 1970-01-01T00:00:00Z.
+     *
+     * @param value value of the time variable
+     * @return the number of milliseconds
+     */
+    public long toEpochMillis(final double value) {
+        return this.originMillis + Math.round(value * this.millisPerUnit);
+    }
+
+    /**
+     * Converts the values to seconds since 1970-01-01T00:00:00Z.
+     *
+     * @param values values of the time variable
+     * @param seconds array receiving the seconds, NaN for a missing value
+     */
+    public void toEpochSeconds(final Column values, final double[] seconds) {
+        for (int i = 0; i < seconds.length; i++) {
+            final double value = values.getDouble(i);
+            seconds[i] = Double.isNaN(value) ? Double.NaN : toEpochMillis(value) / 1000.0;
+        }
+    }
+
+    /**
+     * Converts the values to ISO-8601 dates such as 2008-07-04T12:00:01Z or
+     * 2008-07-04T12:00:01.250Z.
+     *
+     * @param values values of the time variable
+     * @return the dates, null for a missing value
+     */
+    public String[] toIsoStrings(final Column values) {
+        final String[] dates = new String[values.size()];
+        final char[] text = new char[24];
+        long currentDay = Long.MIN_VALUE;
+        boolean isShortYear = false;
+        for (int i = 0; i < dates.length; i++) {
+            final double value = values.getDouble(i);
+            if (Double.isNaN(value)) {
+                continue;
+            }
+            final long millis = toEpochMillis(value);
+            final long day = Math.floorDiv(millis, MILLIS_PER_DAY);
+            if (day != currentDay) {
+                currentDay = day;
+                final LocalDate date = LocalDate.ofEpochDay(day);
+                isShortYear = date.getYear() >= 0 && date.getYear() <= 9999;
+                writeDigits(text, 0, date.getYear(), 4);
+                text[4] = '-';
+                writeDigits(text, 5, date.getMonthValue(), 2);
+                text[7] = '-';
+                writeDigits(text, 8, date.getDayOfMonth(), 2);
+                text[10] = 'T';
+            }
+            if (!isShortYear) {
+                dates[i] = java.time.Instant.ofEpochMilli(millis).toString();
+                continue;
+            }
+            final int millisOfDay = (int) (millis - day * MILLIS_PER_DAY);
+            final int seconds = millisOfDay / 1000;
+            writeDigits(text, 11, seconds / 3600, 2);
+            text[13] = ':';
+            writeDigits(text, 14, seconds / 60 % 60, 2);
+            text[16] = ':';
+            writeDigits(text, 17, seconds % 60, 2);
+            int length = 19;
+            if (millisOfDay % 1000 != 0) {
+                text[19] = '.';
+                writeDigits(text, 20, millisOfDay % 1000, 3);
+                length = 23;
+            }
+            text[length] = 'Z';
+            dates[i] = new String(text, 0, length + 1);
+        }
+        return dates;
+    }
+
+    private static void writeDigits(final char[] text, final int offset, final int value, final int nbDigits) {
+        int remain = value;
+        for (int i = offset + nbDigits - 1; i >= offset; i--) {
+            text[i] = (char) ('0' + remain % 10);
+            remain /= 10;
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/**
+ * ****************************************************************************
+ * Copyright 2017 CNES - CENTRE NATIONAL d'ETUDES SPATIALES
+ *
+ * This file is part of Regards.
+ *
+ * Regards is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Regards is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Regards.  If not, see <http://www.gnu.org/licenses/>.
+ * ****************************************************************************
+ */
+package fr.cnes.export.jason;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import org.apache.log4j.Logger;
+
+/**
+ * Access to the virtual threads of JDK 21 and later.
+ *
+ * The project is compiled for Java 8, so the virtual threads are created by
+ * reflection. On an older JDK, {@link #isAvailable()} returns False and the
+ * caller keeps its platform threads.
+ */
+public final class VirtualThreads {
+
+    private static final Logger LOGGER = Logger.getLogger(VirtualThreads.class.getName());
+
+    /**
+     * First JDK where the virtual threads are not a preview feature.
+     */
+    private static final int MIN_JAVA_VERSION = 21;
+
+    /**
+     * Thread.ofVirtual() or null when the JDK has no virtual threads.
+     */
+    private static final Method OF_VIRTUAL = findOfVirtual();
+
+    private VirtualThreads() {
+    }
+
+    /**
+     * Tests whether the JDK supports the virtual threads.
+     *
+     * @return True on JDK 21 and later otherwise False
+     */
+    public static boolean isAvailable() {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * Creates an executor starting a new virtual thread for each task.
+     *
+     * @param name prefix of the thread names
+     * @return the executor
+     * @throws UnsupportedOperationException When the JDK has no virtual threads
+     */
+    public static ExecutorService newThreadPerTaskExecutor(final String name) {
+        if (!isAvailable()) {
+            throw new UnsupportedOperationException("Virtual threads require JDK 21 or later");
+        }
+        try {
+            final Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = OF_VIRTUAL.invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, name + "-", 1L);
+            final ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+                    .invoke(null, factory);
+        } catch (ClassNotFoundException | NoSuchMethodException | IllegalAccessException
+                | InvocationTargetException ex) {
+            throw new UnsupportedOperationException("Cannot create the virtual threads", ex);
+        }
+    }
+
+    private static Method findOfVirtual() {
+        final String version = System.getProperty("java.specification.version", "1.8");
+        if (version.startsWith("1.") || Integer.parseInt(version.split("\\.")[0]) < MIN_JAVA_VERSION) {
+            LOGGER.debug("No virtual threads in Java " + version);
+            return null;
+        }
+        try {
+            return Thread.class.getMethod("ofVirtual");
+        } catch (NoSuchMethodException ex) {
+            LOGGER.debug("No virtual threads in Java " + version);
+            return null;
+        }
+    }
+}
@@ -54,4 +54,214 @@ public class Consts {
      * Displays the Geojson in a pretty way.
      */
     public static final String PRETTY_DISPLAY = "Starter.pretty_display";
+
+    /**
+     * Maximum number of directories listed at the same time during the indexation.
+     */
+    public static final String CRAWLER_THREADS = "Starter.crawler_threads";
+
+    /**
+     * Maximum number of FTP connections opened on a same server.
+     */
+    public static final String FTP_MAX_CONNECTIONS_PER_HOST = "Starter.ftp_max_connections_per_host";
+
+    /**
+     * Idle time in ms after which a pooled FTP connection is checked before being reused.
+     */
+    public static final String FTP_KEEP_ALIVE = "Starter.ftp_keep_alive";
+
+    /**
+     * Connection and read timeout in ms of the FTP connections.
+     */
+    public static final String FTP_TIMEOUT = "Starter.ftp_timeout";
+
+    /**
+     * Download mode of the NetCdf files : spool, ranges or memory.
+     */
+    public static final String DOWNLOAD_MODE = "Starter.download_mode";
+
+    /**
+     * The directory where the NetCdf files are downloaded in spool mode.
+     */
+    public static final String SPOOL_DIRECTORY = "Starter.spool_directory";
+
+    /**
+     * Keeps the downloaded NetCdf files once processed.
+     */
+    public static final String SPOOL_KEEP_FILES = "Starter.spool_keep_files";
+
+    /**
+     * Number of threads downloading the NetCdf files.
+     */
+    public static final String FETCH_THREADS = "Starter.fetch_threads";
+
+    /**
+     * Number of threads extracting the variables from the NetCdf files.
+     */
+    public static final String EXTRACT_THREADS = "Starter.extract_threads";
+
+    /**
+     * Number of threads encoding the GeoJson documents.
+     */
+    public static final String ENCODE_THREADS = "Starter.encode_threads";
+
+    /**
+     * Number of threads writing the GeoJson files.
+     */
+    public static final String WRITE_THREADS = "Starter.write_threads";
+
+    /**
+     * Capacity of the queues between the processing stages.
+     */
+    public static final String STAGE_QUEUE_SIZE = "Starter.stage_queue_size";
+
+    /**
+     * File where the directory listings are saved for the incremental crawl.
+     */
+    public static final String LISTING_MANIFEST = "Starter.listing_manifest";
+
+    /**
+     * Number of runs of the incremental crawl between two full rescans of the tree.
+     */
+    public static final String LISTING_FULL_RESCAN = "Starter.listing_full_rescan";
+
+    /**
+     * Journal of the processed files.
+     */
+    public static final String JOURNAL = "Starter.journal";
+
+    /**
+     * Verifies the output files of the journal at startup.
+     */
+    public static final String JOURNAL_VERIFY = "Starter.journal_verify";
+
+    /**
+     * Lists the FTP directories with MLSD when the server supports it.
+     */
+    public static final String FTP_USE_MLSD = "Starter.ftp_use_mlsd";
+
+    /**
+     * Maximum number of bytes between two variables downloaded at once in ranges mode.
+     */
+    public static final String RANGE_MERGE_GAP = "Starter.range_merge_gap";
+
+    /**
+     * Cycles to crawl, as ranges such as 100-120,130 or 300-.
+     */
+    public static final String FILTER_CYCLES = "Starter.filter_cycles";
+
+    /**
+     * Passes to crawl, as ranges such as 1,3,10-20.
+     */
+    public static final String FILTER_PASSES = "Starter.filter_passes";
+
+    /**
+     * Start of the time window of the files to crawl, as yyyy-MM-dd or yyyy-MM-ddTHH:mm:ss.
+     */
+    public static final String FILTER_START = "Starter.filter_start";
+
+    /**
+     * End of the time window of the files to crawl, as yyyy-MM-dd or yyyy-MM-ddTHH:mm:ss.
+     */
+    public static final String FILTER_END = "Starter.filter_end";
+
+    /**
+     * Glob, or regular expression prefixed by regex:, on the names of the files to crawl.
+     */
+    public static final String FILTER_NAME = "Starter.filter_name";
+
+    /**
+     * Maximum number of indexed files waiting to be processed.
+     */
+    public static final String FILE_QUEUE_SIZE = "Starter.file_queue_size";
+
+    /**
+     * Number of threads decoding and encoding the NetCdf files. By default, the number of cores.
+     */
+    public static final String CPU_THREADS = "Starter.cpu_threads";
+
+    /**
+     * Maximum number of attempts to fetch a NetCdf file.
+     */
+    public static final String RETRY_MAX_ATTEMPTS = "Starter.retry_max_attempts";
+
+    /**
+     * Delay (in ms) before the first retry of a NetCdf file that could not be fetched.
+     */
+    public static final String RETRY_INITIAL_DELAY = "Starter.retry_initial_delay";
+
+    /**
+     * Maximum delay (in ms) between two attempts to fetch a NetCdf file.
+     */
+    public static final String RETRY_MAX_DELAY = "Starter.retry_max_delay";
+
+    /**
+     * Maximum number of downloads in flight on virtual threads (JDK 21+), 0 to use the fetch threads.
+     */
+    public static final String VIRTUAL_FETCHES = "Starter.virtual_fetches";
+
+    /**
+     * Part of the files processed by this node, as i/N.
+     */
+    public static final String SHARD = "Starter.shard";
+
+    /**
+     * Order in which the files are fetched : crawl or largest_first.
+     */
+    public static final String SCHEDULING = "Starter.scheduling";
+
+    /**
+     * Format of the time variable : iso for ISO-8601 dates or epoch for seconds since 1970-01-01T00:00:00Z.
+     */
+    public static final String TIME_FORMAT = "Starter.time_format";
+
+    /**
+     * Encoding of the variables having a mapping : strings for their semantic meanings or dictionary for their codes and a lookup table.
+     */
+    public static final String CATEGORICAL_ENCODING = "Starter.categorical_encoding";
+
+    /**
+     * Compression of the GeoJSON files : none or gzip.
+     */
+    public static final String OUTPUT_COMPRESSION = "Starter.output_compression";
+
+    /**
+     * Number of threads compressing the blocks of the GeoJSON files.
+     */
+    public static final String COMPRESSION_THREADS = "Starter.compression_threads";
+
+    /**
+     * True to write a binary columnar file next to each GeoJSON file.
+     */
+    public static final String COLUMNAR_SIDECAR = "Starter.columnar_sidecar";
+
+    /**
+     * Output mode : files for a GeoJSON file per file, sequence for rolling newline-delimited GeoJSON files, stdout or socket to stream newline-delimited GeoJSON.
+     */
+    public static final String OUTPUT_MODE = "Starter.output_mode";
+
+    /**
+     * Size in bytes from which a rolling file of the sequence mode is rotated.
+     */
+    public static final String SEQUENCE_MAX_BYTES = "Starter.sequence_max_bytes";
+
+    /**
+     * Number of features from which a rolling file of the sequence mode is rotated.
+     */
+    public static final String SEQUENCE_MAX_FEATURES = "Starter.sequence_max_features";
+
+    /**
+     * Address of the socket of the socket output mode : host:port or unix:path.
+     */
+    public static final String SINK_ADDRESS = "Starter.sink_address";
+
+    /**
+     * Interval in seconds between two logs of the depth of the pipeline queues, 0 to disable them.
+     */
+    public static final String QUEUE_REPORT_INTERVAL = "Starter.queue_report_interval";
+
+    /**
+     * Number of bytes of an encoded document kept in memory, beyond which it is spilled to the spool directory.
+     */
+    public static final String DOCUMENT_MEMORY_LIMIT = "Starter.document_memory_limit";
 }
@@ -244,6 +244,15 @@ public class Settings {
         } 
     }
 
+    /**
+     * Sets the value of a key, overriding the configuration file.
+     * @param key key to set
+     * @param value value of the key
+     */
+    public void setValue(final String key, final String value) {
+        map.put(key, value);
+    }
+
     /**
      * Sets a custom properties file.
      * @param path Path to the properties file
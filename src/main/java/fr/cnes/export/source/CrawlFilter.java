@@ -0,0 +1,271 @@
+ /******************************************************************************
+ * Copyright 2017 CNES - CENTRE NATIONAL d'ETUDES SPATIALES
+ *
+ * This file is part of Regards.
+ *
+ * Regards is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Regards is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Regards.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package fr.cnes.export.source;
+
+import fr.cnes.export.settings.Consts;
+import fr.cnes.export.settings.Settings;
+import java.nio.file.FileSystems;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Selection of the files to crawl from their names.
+ *
+ * The AVISO products are stored in cycle directories (cycle_042) and their
+ * names contain the cycle, the pass and the start and end times of the
+ * measurements (JA1_GPN_2PeP042_017_20030122_101432_20030122_111045.nc). The
+ * filter is evaluated by the crawler on the listings : the cycle directories
+ * outside the cycle ranges are not listed and the files that do not match are
+ * not queued.
+ *
+ * The cycle, pass and time criteria are ignored for the names that do not
+ * follow the AVISO naming.
+ *
+ * When the processing is sharded, a cycle directory belongs to a single shard,
+ * so that each node only lists its own cycle directories. The files outside of
+ * a cycle directory are assigned to the shards one by one.
+ */
+public class CrawlFilter {
+
+    /**
+     * Filter accepting everything.
+     */
+    public static final CrawlFilter ACCEPT_ALL = new CrawlFilter(null, null, null, null, null, null);
+
+    private static final Pattern CYCLE_DIRECTORY = Pattern.compile("cycle_(\\d+)");
+
+    private static final Pattern CYCLE_PATH = Pattern.compile("/(cycle_\\d+)(?=/)");
+
+    private static final Pattern PRODUCT_NAME = Pattern.compile(
+            "P(\\d+)_(\\d+)_(\\d{8})_(\\d{6})_(\\d{8})_(\\d{6})");
+
+    private final List<long[]> cycles;
+    private final List<long[]> passes;
+    private final long start;
+    private final long end;
+    private final PathMatcher nameMatcher;
+    private final Shard shard;
+
+    /**
+     * Creates a filter. A null criterion accepts everything.
+     *
+     * @param cycles cycle ranges such as "100-120,130" or "300-"
+     * @param passes pass ranges such as "1,3,10-20"
+     * @param start start of the time window as yyyy-MM-dd or
+     * yyyy-MM-ddTHH:mm:ss (UTC)
+     * @param end end of the time window as yyyy-MM-dd or yyyy-MM-ddTHH:mm:ss
+     * (UTC)
+     * @param name glob on the file names, or regular expression when prefixed
+     * by "regex:"
+     * @param shard part of the files processed by this node or null for all
+     * the files
+     * @throws IllegalArgumentException When a criterion cannot be parsed
+     */
+    public CrawlFilter(final String cycles, final String passes, final String start, final String end,
+            final String name, final Shard shard) {
+        this.shard = shard;
+        this.cycles = parseRanges(cycles);
+        this.passes = parseRanges(passes);
+        this.start = (start == null) ? Long.MIN_VALUE : parseTime(start, "000000");
+        this.end = (end == null) ? Long.MAX_VALUE : parseTime(end, "235959");
+        if (name == null) {
+            this.nameMatcher = null;
+        } else if (name.startsWith("regex:") || name.startsWith("glob:")) {
+            this.nameMatcher = FileSystems.getDefault().getPathMatcher(name);
+        } else {
+            this.nameMatcher = FileSystems.getDefault().getPathMatcher("glob:" + name);
+        }
+    }
+
+    /**
+     * Creates the filter from the configuration file.
+     *
+     * @return the filter
+     * @throws IllegalArgumentException When a criterion cannot be parsed
+     */
+    public static CrawlFilter createFromSettings() {
+        final Settings settings = Settings.getInstance();
+        return new CrawlFilter(
+                getValue(settings, Consts.FILTER_CYCLES),
+                getValue(settings, Consts.FILTER_PASSES),
+                getValue(settings, Consts.FILTER_START),
+                getValue(settings, Consts.FILTER_END),
+                getValue(settings, Consts.FILTER_NAME),
+                settings.hasValue(Consts.SHARD) ? Shard.parse(settings.getString(Consts.SHARD)) : null);
+    }
+
+    /**
+     * Tests whether a directory must be listed.
+     *
+     * @param name name of the directory
+     * @return False for a cycle directory outside the cycle ranges or the
+     * shard of this node otherwise True
+     */
+    public boolean acceptDirectory(final String name) {
+        if (this.cycles == null && this.shard == null) {
+            return true;
+        }
+        final Matcher matcher = CYCLE_DIRECTORY.matcher(name);
+        if (!matcher.matches()) {
+            return true;
+        }
+        return (this.cycles == null || isInRanges(this.cycles, Long.parseLong(matcher.group(1))))
+                && (this.shard == null || this.shard.contains(name));
+    }
+
+    /**
+     * Tests whether a file must be queued.
+     *
+     * @param name name of the file
+     * @return True when the file matches every criterion
+     */
+    public boolean acceptFile(final String name) {
+        if (this.nameMatcher != null && !this.nameMatcher.matches(Paths.get(name))) {
+            return false;
+        }
+        if (this.cycles == null && this.passes == null && this.start == Long.MIN_VALUE
+                && this.end == Long.MAX_VALUE) {
+            return true;
+        }
+        final Matcher matcher = PRODUCT_NAME.matcher(name);
+        if (!matcher.find()) {
+            return true;
+        }
+        final long fileStart = Long.parseLong(matcher.group(3) + matcher.group(4));
+        final long fileEnd = Long.parseLong(matcher.group(5) + matcher.group(6));
+        return (this.cycles == null || isInRanges(this.cycles, Long.parseLong(matcher.group(1))))
+                && (this.passes == null || isInRanges(this.passes, Long.parseLong(matcher.group(2))))
+                && fileEnd >= this.start && fileStart <= this.end;
+    }
+
+    /**
+     * Tests whether a file belongs to the shard of this node. A file of a
+     * cycle directory belongs to the shard of its directory, which is not
+     * listed by the other nodes. The other files are listed, and recorded in
+     * the listing manifest, by every node but only queued by the node of their
+     * shard.
+     *
+     * @param fileUri file
+     * @return True when the file is processed by this node otherwise False
+     */
+    public boolean isInShard(final String fileUri) {
+        if (this.shard == null) {
+            return true;
+        }
+        final Matcher matcher = CYCLE_PATH.matcher(fileUri);
+        boolean isInCycle = false;
+        while (matcher.find()) {
+            if (!this.shard.contains(matcher.group(1))) {
+                return false;
+            }
+            isInCycle = true;
+        }
+        return isInCycle || this.shard.contains(fileUri);
+    }
+
+    /**
+     * @return the shard processed by this node or null for all the files
+     */
+    public Shard getShard() {
+        return this.shard;
+    }
+
+    /**
+     * Tests whether the filter rejects some files.
+     *
+     * @return True when at least one criterion is set
+     */
+    public boolean isActive() {
+        return this.cycles != null || this.passes != null || this.nameMatcher != null
+                || this.start != Long.MIN_VALUE || this.end != Long.MAX_VALUE;
+    }
+
+    /**
+     * Parses ranges such as "1,3,10-20,300-".
+     *
+     * @param ranges ranges
+     * @return the list of {min, max} or null when ranges is null
+     */
+    private static List<long[]> parseRanges(final String ranges) {
+        if (ranges == null) {
+            return null;
+        }
+        final List<long[]> result = new ArrayList<>();
+        for (final String range : ranges.split(",")) {
+            final String value = range.trim();
+            if (value.isEmpty()) {
+                continue;
+            }
+            final int dash = value.indexOf('-');
+            try {
+                if (dash < 0) {
+                    final long number = Long.parseLong(value);
+                    result.add(new long[]{number, number});
+                } else {
+                    final long min = (dash == 0) ? 0 : Long.parseLong(value.substring(0, dash).trim());
+                    final long max = (dash == value.length() - 1) ? Long.MAX_VALUE
+                            : Long.parseLong(value.substring(dash + 1).trim());
+                    result.add(new long[]{min, max});
+                }
+            } catch (NumberFormatException ex) {
+                throw new IllegalArgumentException("Invalid range " + value + " in " + ranges, ex);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Converts a date as yyyy-MM-dd or yyyy-MM-ddTHH:mm:ss in the
+     * yyyyMMddHHmmss number used by the AVISO names.
+     *
+     * @param time date
+     * @param defaultTime time used when the date has no time, as HHmmss
+     * @return the date as a number
+     */
+    private static long parseTime(final String time, final String defaultTime) {
+        final String digits = time.replaceAll("[-:TZ ]", "");
+        try {
+            if (digits.length() == 8) {
+                return Long.parseLong(digits + defaultTime);
+            } else if (digits.length() == 14) {
+                return Long.parseLong(digits);
+            }
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Invalid date " + time, ex);
+        }
+        throw new IllegalArgumentException("Invalid date " + time + ", expected yyyy-MM-dd or yyyy-MM-ddTHH:mm:ss");
+    }
+
+    private static String getValue(final Settings settings, final String key) {
+        return settings.hasValue(key) ? settings.getString(key).trim() : null;
+    }
+
+    private static boolean isInRanges(final List<long[]> ranges, final long value) {
+        for (final long[] range : ranges) {
+            if (value >= range[0] && value <= range[1]) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -26,6 +26,8 @@ public interface Directory {
     
     public String[] getNextRecord();
     
+    public DirectoryEntry getNextEntry();
+    
     public boolean isDirectory();
     
     public String getSourceDirectory();
@@ -0,0 +1,93 @@
+ /******************************************************************************
+ * Copyright 2017 CNES - CENTRE NATIONAL d'ETUDES SPATIALES
+ *
+ * This file is part of Regards.
+ *
+ * Regards is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Regards is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Regards.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package fr.cnes.export.source;
+
+/**
+ * Typed record of a directory listing.
+ *
+ * The parsers reuse the same instance for all the records of a listing : the
+ * values must be copied before the next record is read.
+ */
+public class DirectoryEntry {
+
+    /**
+     * Type of a record.
+     */
+    public enum Type {
+        FILE,
+        DIRECTORY,
+        LINK,
+        OTHER
+    }
+
+    private Type type;
+    private long size;
+    private String modified;
+    private String name;
+
+    /**
+     * @return the type
+     */
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * @return the size in bytes or -1 when unknown
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * @return the modification date as written by the server
+     */
+    public String getModified() {
+        return modified;
+    }
+
+    /**
+     * @return the name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return True when the record is a directory
+     */
+    public boolean isDirectory() {
+        return type == Type.DIRECTORY;
+    }
+
+    /**
+     * Sets the values of the record.
+     *
+     * @param type type
+     * @param size size in bytes or -1 when unknown
+     * @param modified modification date
+     * @param name name
+     */
+    void set(final Type type, final long size, final String modified, final String name) {
+        this.type = type;
+        this.size = size;
+        this.modified = modified;
+        this.name = name;
+    }
+}
@@ -0,0 +1,79 @@
+ /******************************************************************************
+ * Copyright 2017 CNES - CENTRE NATIONAL d'ETUDES SPATIALES
+ *
+ * This file is part of Regards.
+ *
+ * Regards is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Regards is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Regards.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package fr.cnes.export.source;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Sizes of the files as announced by the directory listings.
+ *
+ * The crawler records the size of each queued file so that the downloads can
+ * be checked and resumed without asking the server again.
+ */
+public class FileSizeIndex {
+
+    private final Map<String, Long> sizes = new ConcurrentHashMap<>();
+
+    /**
+     * private constructor
+     */
+    private FileSizeIndex() {
+    }
+
+    /**
+     * Holder
+     */
+    private static class FileSizeIndexHolder {
+
+        private static final FileSizeIndex INSTANCE = new FileSizeIndex();
+    }
+
+    /**
+     * Access to unique INSTANCE of FileSizeIndex
+     *
+     * @return the index
+     */
+    public static FileSizeIndex getInstance() {
+        return FileSizeIndexHolder.INSTANCE;
+    }
+
+    /**
+     * Records the size of a file. An unknown size is ignored.
+     *
+     * @param uri file
+     * @param size size in bytes or -1 when unknown
+     */
+    public void put(final String uri, final long size) {
+        if (size >= 0) {
+            this.sizes.put(uri, size);
+        }
+    }
+
+    /**
+     * Returns the size of a file.
+     *
+     * @param uri file
+     * @return the size in bytes or -1 when unknown
+     */
+    public long getSize(final String uri) {
+        final Long size = this.sizes.get(uri);
+        return (size == null) ? -1 : size;
+    }
+}
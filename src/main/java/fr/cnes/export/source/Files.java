@@ -35,21 +35,27 @@ import org.restlet.resource.ResourceException;
 public class Files implements IFiles {
 
     private final String url;   
+    private final CrawlFilter filter;
     private final List<BrowseDirectory> deepBrowse = new ArrayList<>();    
     private int currentDeep = 0;
     
     private static final Logger LOGGER = Logger.getLogger(Files.class.getName());
 
-    private Files(String url) throws URISyntaxException, IOException {
+    private Files(String url, CrawlFilter filter) throws URISyntaxException, IOException {
         Engine.setLogLevel(java.util.logging.Level.OFF);
         Engine.setRestletLogLevel(java.util.logging.Level.OFF);
         this.url = url;               
+        this.filter = filter;
         this.deepBrowse.add(new BrowseDirectory());
     }
     
     public static IFiles openDirectory(String url) throws Exception {
+        return openDirectory(url, CrawlFilter.ACCEPT_ALL);
+    }
+
+    public static IFiles openDirectory(String url, CrawlFilter filter) throws Exception {
         try {
-            return new Files(url);
+            return new Files(url, filter);
         } catch (URISyntaxException | IOException ex) {
             LOGGER.log(Level.FATAL, null, ex);
             throw new Exception(ex);
@@ -72,6 +78,11 @@ public class Files implements IFiles {
         return (record == null) ? null : record[record.length - 1];
     }
 
+    private boolean isAccepted(Directory directory, String name) {
+        return directory.isDirectory() ? this.filter.acceptDirectory(name)
+                : this.filter.acceptFile(name) && this.filter.isInShard(directory.getSourceDirectory() + name);
+    }
+
     private void readDirectory(String fragment) throws URISyntaxException, IOException, ResourceException {
         if(this.deepBrowse.size() < currentDeep+1) {
             this.deepBrowse.add(new BrowseDirectory());
@@ -87,6 +98,9 @@ public class Files implements IFiles {
                 break;
             case RUNNING:
                 String[] nextRecord = browse.getDirectory().getNextRecord();
+                while (nextRecord != null && !isAccepted(browse.getDirectory(), getName(nextRecord))) {
+                    nextRecord = browse.getDirectory().getNextRecord();
+                }
                 if(nextRecord == null) {
                     browse.setName(null);
                     browse.setStatus(BrowseDirectoryStatus.END);
@@ -99,6 +113,7 @@ public class Files implements IFiles {
                 } else {
                     String fileName = getName(nextRecord);
                     browse.setName(browse.getDirectory().getSourceDirectory()+fileName);
+                    FileSizeIndex.getInstance().put(browse.getName(), Long.parseLong(nextRecord[FtpDirectoryParser.SIZE]));
                 }
                 break;
             case END:  
@@ -0,0 +1,406 @@
+ /******************************************************************************
+ * Copyright 2017 CNES - CENTRE NATIONAL d'ETUDES SPATIALES
+ *
+ * This file is part of Regards.
+ *
+ * Regards is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Regards is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Regards.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package fr.cnes.export.source;
+
+import java.io.BufferedReader;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.apache.log4j.Logger;
+
+/**
+ * Minimal FTP client that keeps its control connection open between
+ * transfers. The data connections are opened in passive mode and the files are
+ * transferred in binary mode.
+ *
+ * A connection is not thread safe : it is used by one thread at a time through
+ * {@link FtpConnectionPool}.
+ */
+public class FtpConnection {
+
+    private static final Pattern PASV_PATTERN = Pattern.compile("(\\d+),(\\d+),(\\d+),(\\d+),(\\d+),(\\d+)");
+
+    private static final Logger LOGGER = Logger.getLogger(FtpConnection.class.getName());
+
+    private final String host;
+    private final int timeout;
+    private final Socket control;
+    private final BufferedReader reader;
+    private final Writer writer;
+    private long lastUsed = System.currentTimeMillis();
+    private boolean broken = false;
+    private String features = null;
+
+    /**
+     * Opens the control connection and reads the welcome message.
+     *
+     * @param host FTP server
+     * @param port FTP port
+     * @param timeout connection and read timeout in ms
+     * @throws IOException When the server cannot be reached
+     */
+    public FtpConnection(final String host, final int port, final int timeout) throws IOException {
+        this.host = host;
+        this.timeout = timeout;
+        this.control = new Socket();
+        this.control.connect(new InetSocketAddress(host, port), timeout);
+        this.control.setSoTimeout(timeout);
+        this.control.setKeepAlive(true);
+        this.reader = new BufferedReader(new InputStreamReader(this.control.getInputStream(), StandardCharsets.ISO_8859_1));
+        this.writer = new OutputStreamWriter(this.control.getOutputStream(), StandardCharsets.ISO_8859_1);
+        expect(readReply(), 220);
+    }
+
+    /**
+     * Logs in and switches to the binary mode.
+     *
+     * @param user user name
+     * @param password password
+     * @throws IOException When the login is refused
+     */
+    public void login(final String user, final String password) throws IOException {
+        Reply reply = sendCommand("USER " + user);
+        if (reply.code == 331) {
+            reply = sendCommand("PASS " + password);
+        }
+        expect(reply, 230);
+        expect(sendCommand("TYPE I"), 200);
+    }
+
+    /**
+     * Sends a LIST command on a directory.
+     *
+     * @param path directory path
+     * @return the listing stream, which must be closed to complete the command
+     * @throws IOException When the listing cannot be opened
+     */
+    public InputStream list(final String path) throws IOException {
+        return openTransfer("LIST " + path);
+    }
+
+    /**
+     * Sends a MLSD command on a directory.
+     *
+     * @param path directory path
+     * @return the listing stream, which must be closed to complete the command
+     * @throws IOException When the listing cannot be opened
+     */
+    public InputStream mlsd(final String path) throws IOException {
+        return openTransfer("MLSD " + path);
+    }
+
+    /**
+     * Tests if the server supports the MLSD command. The features of the
+     * server are asked once per connection.
+     *
+     * @return True when the server announces the MLST feature
+     * @throws IOException When the control connection fails
+     */
+    public boolean supportsMlsd() throws IOException {
+        return getFeatures().contains("\n MLST");
+    }
+
+    /**
+     * Tests if the server can restart a transfer at an offset.
+     *
+     * @return True when the server announces the REST STREAM feature
+     * @throws IOException When the control connection fails
+     */
+    public boolean supportsRestart() throws IOException {
+        return getFeatures().contains("\n REST STREAM");
+    }
+
+    /**
+     * Returns the features announced by the server. They are asked once per
+     * connection.
+     *
+     * @return the reply of the FEAT command or an empty string
+     * @throws IOException When the control connection fails
+     */
+    private String getFeatures() throws IOException {
+        if (this.features == null) {
+            final Reply reply = sendCommand("FEAT");
+            this.features = (reply.code == 211) ? reply.text : "";
+        }
+        return this.features;
+    }
+
+    /**
+     * Sends a RETR command on a file.
+     *
+     * @param path file path
+     * @param offset number of bytes to skip at the beginning of the file
+     * @return the file stream, which must be closed to complete the command
+     * @throws IOException When the file cannot be opened
+     */
+    public InputStream retrieve(final String path, final long offset) throws IOException {
+        if (offset > 0) {
+            expect(sendCommand("REST " + offset), 350);
+        }
+        return openTransfer("RETR " + path);
+    }
+
+    /**
+     * Returns the size of a file or -1 when the server does not support SIZE.
+     *
+     * @param path file path
+     * @return the size of the file in bytes
+     * @throws IOException When the control connection fails
+     */
+    public long size(final String path) throws IOException {
+        final Reply reply = sendCommand("SIZE " + path);
+        return (reply.code == 213) ? Long.parseLong(reply.text.substring(4).trim()) : -1;
+    }
+
+    /**
+     * Tests the control connection with a NOOP command.
+     *
+     * @return True when the server answers otherwise False
+     */
+    public boolean isAlive() {
+        if (this.broken || this.control.isClosed()) {
+            return false;
+        }
+        try {
+            return sendCommand("NOOP").code == 200;
+        } catch (IOException ex) {
+            LOGGER.debug("Connection to " + this.host + " is dead", ex);
+            return false;
+        }
+    }
+
+    /**
+     * Tests if the connection is in an unknown state and cannot be reused.
+     *
+     * @return True when the connection cannot be reused
+     */
+    public boolean isBroken() {
+        return this.broken || this.control.isClosed();
+    }
+
+    /**
+     * Returns the time of the last command.
+     *
+     * @return the time in ms
+     */
+    public long getLastUsed() {
+        return this.lastUsed;
+    }
+
+    /**
+     * Logs out and closes the control connection.
+     */
+    public void close() {
+        try {
+            if (!isBroken()) {
+                sendCommand("QUIT");
+            }
+        } catch (IOException ex) {
+            LOGGER.debug("Cannot quit " + this.host, ex);
+        } finally {
+            this.broken = true;
+            try {
+                this.control.close();
+            } catch (IOException ex) {
+                LOGGER.debug("Cannot close " + this.host, ex);
+            }
+        }
+    }
+
+    /**
+     * Opens a passive data connection and sends the command on it.
+     *
+     * @param command command using the data connection
+     * @return the data stream
+     * @throws IOException When the command is refused
+     */
+    private InputStream openTransfer(final String command) throws IOException {
+        final Reply pasv = sendCommand("PASV");
+        expect(pasv, 227);
+        final Matcher m = PASV_PATTERN.matcher(pasv.text);
+        if (!m.find()) {
+            this.broken = true;
+            throw new IOException("Unexpected PASV reply : " + pasv.text);
+        }
+        final int dataPort = Integer.parseInt(m.group(5)) * 256 + Integer.parseInt(m.group(6));
+        final Socket data = new Socket();
+        try {
+            // the control host is used in place of the announced address, which is often wrong behind a NAT
+            data.connect(new InetSocketAddress(this.host, dataPort), this.timeout);
+            data.setSoTimeout(this.timeout);
+            final Reply reply = sendCommand(command);
+            if (reply.code != 150 && reply.code != 125) {
+                throw new IOException(command + " refused : " + reply.text);
+            }
+        } catch (IOException ex) {
+            data.close();
+            throw ex;
+        }
+        return new TransferInputStream(data);
+    }
+
+    /**
+     * Sends a command and reads its reply.
+     *
+     * @param command command
+     * @return the reply
+     * @throws IOException When the control connection fails
+     */
+    private Reply sendCommand(final String command) throws IOException {
+        LOGGER.trace("> " + (command.startsWith("PASS ") ? "PASS ****" : command));
+        try {
+            this.writer.write(command);
+            this.writer.write("\r\n");
+            this.writer.flush();
+            return readReply();
+        } catch (IOException ex) {
+            this.broken = true;
+            throw ex;
+        }
+    }
+
+    /**
+     * Reads a reply, which may span several lines.
+     *
+     * @return the reply
+     * @throws IOException When the control connection fails
+     */
+    private Reply readReply() throws IOException {
+        String line = this.reader.readLine();
+        if (line == null || line.length() < 3) {
+            this.broken = true;
+            throw new IOException("Connection closed by " + this.host);
+        }
+        final String code = line.substring(0, 3);
+        final StringBuilder text = new StringBuilder(line);
+        if (line.length() > 3 && line.charAt(3) == '-') {
+            final String end = code + " ";
+            do {
+                line = this.reader.readLine();
+                if (line == null) {
+                    this.broken = true;
+                    throw new IOException("Connection closed by " + this.host);
+                }
+                text.append('\n').append(line);
+            } while (!line.startsWith(end));
+        }
+        this.lastUsed = System.currentTimeMillis();
+        LOGGER.trace("< " + text);
+        return new Reply(Integer.parseInt(code), text.toString());
+    }
+
+    /**
+     * Checks the reply code.
+     *
+     * @param reply reply
+     * @param code expected code
+     * @throws IOException When the code is not the expected one
+     */
+    private void expect(final Reply reply, final int code) throws IOException {
+        if (reply.code != code) {
+            throw new IOException(this.host + " : " + reply.text);
+        }
+    }
+
+    /**
+     * Reply of the server.
+     */
+    private static class Reply {
+
+        private final int code;
+        private final String text;
+
+        Reply(final int code, final String text) {
+            this.code = code;
+            this.text = text;
+        }
+    }
+
+    /**
+     * Data stream that reads the completion reply of the transfer when it is
+     * closed.
+     *
+     * A transfer read up to its end must be confirmed by a 226 or 250 reply,
+     * otherwise the data connection was cut and the bytes read are truncated.
+     * A stream closed before its end is a transfer aborted by the caller, such
+     * as a range read, which the server answers by 426 or 451.
+     */
+    private class TransferInputStream extends FilterInputStream {
+
+        private final Socket data;
+        private boolean closed = false;
+        private boolean isEndReached = false;
+
+        TransferInputStream(final Socket data) throws IOException {
+            super(data.getInputStream());
+            this.data = data;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int value = super.read();
+            this.isEndReached = value == -1;
+            return value;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            final int count = super.read(b, off, len);
+            this.isEndReached = count == -1;
+            return count;
+        }
+
+        /**
+         * Closes the data connection and reads the completion reply.
+         *
+         * @throws IOException When the transfer was read up to its end but
+         * the server does not confirm its completion
+         */
+        @Override
+        public void close() throws IOException {
+            if (this.closed) {
+                return;
+            }
+            this.closed = true;
+            try {
+                this.data.close();
+            } finally {
+                final Reply reply = readReply();
+                if (reply.code != 226 && reply.code != 250) {
+                    if (this.isEndReached) {
+                        broken = true;
+                        throw new IOException("Transfer not completed by " + host + " : " + reply.text);
+                    }
+                    // an aborted transfer is answered by 426 or 451,
+                    // any other reply leaves the server in an unknown state
+                    broken = reply.code != 426 && reply.code != 451;
+                    LOGGER.debug("Transfer aborted : " + reply.text);
+                }
+            }
+        }
+    }
+}
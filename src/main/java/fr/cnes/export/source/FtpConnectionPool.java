@@ -0,0 +1,219 @@
+ /******************************************************************************
+ * Copyright 2017 CNES - CENTRE NATIONAL d'ETUDES SPATIALES
+ *
+ * This file is part of Regards.
+ *
+ * Regards is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Regards is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Regards.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package fr.cnes.export.source;
+
+import fr.cnes.export.settings.Consts;
+import fr.cnes.export.settings.Settings;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import org.apache.log4j.Logger;
+
+/**
+ * Pool of FTP connections shared by the listing of the directories and the
+ * download of the files.
+ *
+ * The number of connections opened on a same server is limited. The released
+ * connections are kept logged in and are checked with a NOOP command when they
+ * have been idle longer than the keep-alive delay, so that the login is done
+ * once per connection and not once per directory or file.
+ */
+public class FtpConnectionPool {
+
+    private static final int DEFAULT_FTP_PORT = 21;
+
+    private static final Logger LOGGER = Logger.getLogger(FtpConnectionPool.class.getName());
+
+    private final Map<String, HostPool> pools = new ConcurrentHashMap<>();
+    private final int maxConnectionsPerHost;
+    private final long keepAlive;
+    private final int timeout;
+
+    /**
+     * Creates a pool.
+     *
+     * @param maxConnectionsPerHost maximum number of connections on a server
+     * @param keepAlive idle time in ms after which a connection is checked
+     * before being reused
+     * @param timeout connection and read timeout in ms
+     */
+    public FtpConnectionPool(final int maxConnectionsPerHost, final long keepAlive, final int timeout) {
+        if (maxConnectionsPerHost < 1) {
+            throw new IllegalArgumentException("maxConnectionsPerHost must be greater than 0");
+        }
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+        this.keepAlive = keepAlive;
+        this.timeout = timeout;
+    }
+
+    /**
+     * Holder
+     */
+    private static class FtpConnectionPoolHolder {
+
+        private static final FtpConnectionPool INSTANCE = createFromSettings();
+
+        private static FtpConnectionPool createFromSettings() {
+            final Settings settings = Settings.getInstance();
+            return new FtpConnectionPool(
+                    settings.getInt(Consts.FTP_MAX_CONNECTIONS_PER_HOST, "8"),
+                    settings.getLong(Consts.FTP_KEEP_ALIVE, "30000"),
+                    settings.getInt(Consts.FTP_TIMEOUT, "200000"));
+        }
+    }
+
+    /**
+     * Access to the pool configured by the configuration file.
+     *
+     * @return the shared pool
+     */
+    public static FtpConnectionPool getInstance() {
+        return FtpConnectionPoolHolder.INSTANCE;
+    }
+
+    /**
+     * Borrows a logged in connection to the server of the URI. The caller
+     * waits when the maximum number of connections on this server is reached.
+     * The connection must be given back with {@link #release}.
+     *
+     * @param uri URI on the FTP server
+     * @return the connection
+     * @throws IOException When no connection can be opened
+     */
+    public FtpConnection borrow(final URI uri) throws IOException {
+        final HostPool pool = getHostPool(uri);
+        try {
+            pool.permits.acquire();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting a connection to " + uri.getHost());
+        }
+        try {
+            FtpConnection connection;
+            while ((connection = pool.idle.pollFirst()) != null) {
+                final boolean isIdleTooLong = System.currentTimeMillis() - connection.getLastUsed() > this.keepAlive;
+                if (!connection.isBroken() && (!isIdleTooLong || connection.isAlive())) {
+                    return connection;
+                }
+                LOGGER.debug("Discarding a dead connection to " + uri.getHost());
+                connection.close();
+            }
+            return connect(uri);
+        } catch (IOException | RuntimeException ex) {
+            pool.permits.release();
+            throw ex;
+        }
+    }
+
+    /**
+     * Gives back a connection to the pool. A broken connection is closed.
+     *
+     * @param uri URI used to borrow the connection
+     * @param connection connection
+     */
+    public void release(final URI uri, final FtpConnection connection) {
+        final HostPool pool = getHostPool(uri);
+        if (connection.isBroken()) {
+            connection.close();
+        } else {
+            pool.idle.offerFirst(connection);
+        }
+        pool.permits.release();
+    }
+
+    /**
+     * Closes a connection that failed and frees its place in the pool.
+     *
+     * @param uri URI used to borrow the connection
+     * @param connection connection
+     */
+    public void invalidate(final URI uri, final FtpConnection connection) {
+        connection.close();
+        getHostPool(uri).permits.release();
+    }
+
+    /**
+     * Closes the idle connections.
+     */
+    public void close() {
+        this.pools.values().stream().forEach((pool) -> {
+            FtpConnection connection;
+            while ((connection = pool.idle.pollFirst()) != null) {
+                connection.close();
+            }
+        });
+    }
+
+    /**
+     * Opens and logs in a new connection. Anonymous login is used when the URI
+     * has no user information.
+     *
+     * @param uri URI on the FTP server
+     * @return the connection
+     * @throws IOException When the connection or the login fails
+     */
+    private FtpConnection connect(final URI uri) throws IOException {
+        LOGGER.debug("Opening a new connection to " + uri.getHost());
+        final int port = (uri.getPort() == -1) ? DEFAULT_FTP_PORT : uri.getPort();
+        final FtpConnection connection = new FtpConnection(uri.getHost(), port, this.timeout);
+        final String userInfo = uri.getUserInfo();
+        String user = "anonymous";
+        String password = "anonymous@";
+        if (userInfo != null) {
+            final int separator = userInfo.indexOf(':');
+            user = (separator == -1) ? userInfo : userInfo.substring(0, separator);
+            password = (separator == -1) ? "" : userInfo.substring(separator + 1);
+        }
+        try {
+            connection.login(user, password);
+        } catch (IOException ex) {
+            connection.close();
+            throw ex;
+        }
+        return connection;
+    }
+
+    /**
+     * Returns the pool of the server of the URI.
+     *
+     * @param uri URI on the FTP server
+     * @return the pool of the server
+     */
+    private HostPool getHostPool(final URI uri) {
+        final String key = uri.getUserInfo() + "@" + uri.getHost() + ":" + uri.getPort();
+        return this.pools.computeIfAbsent(key, (k) -> new HostPool(this.maxConnectionsPerHost));
+    }
+
+    /**
+     * Connections of a server.
+     */
+    private static class HostPool {
+
+        private final Semaphore permits;
+        private final LinkedBlockingDeque<FtpConnection> idle = new LinkedBlockingDeque<>();
+
+        HostPool(final int maxConnections) {
+            this.permits = new Semaphore(maxConnections, true);
+        }
+    }
+}
@@ -20,14 +20,18 @@
  */
 package fr.cnes.export.source;
 
+import fr.cnes.export.settings.Consts;
+import fr.cnes.export.settings.Settings;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.Reader;
 import java.net.URI;
 import java.net.URISyntaxException;
-import org.restlet.Client;
-import org.restlet.Context;
-import org.restlet.data.Protocol;
-import org.restlet.representation.Representation;
-import org.restlet.resource.ClientResource;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import org.apache.log4j.Logger;
 import org.restlet.resource.ResourceException;
 
 /**
@@ -36,22 +40,110 @@ import org.restlet.resource.ResourceException;
  */
 public class FtpDirectory implements Directory {
 
-    private final ClientResource directory;
-    private final FtpDirectoryParser ftp;
+    private static final int RETRY_ATTEMPTS = 20;
+    private static final long RETRY_DELAY = 10000;
+    private static final int INITIAL_CAPACITY = 64;
+
+    private static final Logger LOGGER = Logger.getLogger(FtpDirectory.class.getName());
+
     private final String url;
+    private final DirectoryEntry entry = new DirectoryEntry();
+    private final String[] cols = new String[5];
+    private DirectoryEntry.Type[] types = new DirectoryEntry.Type[INITIAL_CAPACITY];
+    private long[] sizes = new long[INITIAL_CAPACITY];
+    private String[] dates = new String[INITIAL_CAPACITY];
+    private String[] names = new String[INITIAL_CAPACITY];
+    private int count = 0;
+    private int position = 0;
 
     public FtpDirectory(String url) throws URISyntaxException, IOException, ResourceException {
         this.url = url;
-        Context context = new Context();
-        context.getParameters().add("readTimeout", "200000");
-        Client client = new Client(context, Protocol.FTP);
-        directory = new ClientResource(new URI(url));
-        directory.setNext(client);
-        directory.setRetryAttempts(20);
-        directory.setRetryOnError(true);
-        directory.setRetryDelay(10000);        
-        Representation rep = directory.get();
-        ftp = new FtpDirectoryParser(rep.getReader());
+        readListing(new URI(url));
+    }
+
+    /**
+     * Reads the listing of the directory with a pooled connection. The data
+     * stream is parsed as it is received and the records are kept in arrays,
+     * so that the connection is given back to the pool before the records are
+     * browsed. MLSD is used when the server supports it, unless it is disabled
+     * in the configuration file. A failure to obtain a connection is retried
+     * as a failure of the listing.
+     *
+     * @param uri directory
+     * @throws IOException When the listing fails after all the attempts
+     */
+    private void readListing(final URI uri) throws IOException {
+        final FtpConnectionPool pool = FtpConnectionPool.getInstance();
+        final boolean isMlsdAllowed = Boolean.parseBoolean(Settings.getInstance().getString(Consts.FTP_USE_MLSD, "true"));
+        IOException error = null;
+        for (int attempt = 1; attempt <= RETRY_ATTEMPTS; attempt++) {
+            FtpConnection connection = null;
+            try {
+                connection = pool.borrow(uri);
+                final boolean isMlsd = isMlsdAllowed && connection.supportsMlsd();
+                readAll(isMlsd ? connection.mlsd(uri.getPath()) : connection.list(uri.getPath()),
+                        isMlsd ? FtpDirectoryParser.Format.MLSD : FtpDirectoryParser.Format.LIST);
+                pool.release(uri, connection);
+                return;
+            } catch (IOException ex) {
+                // the connection, the login or the check of an idle connection may fail as well as the listing
+                if (connection != null) {
+                    pool.invalidate(uri, connection);
+                }
+                if (Thread.currentThread().isInterrupted()) {
+                    throw ex;
+                }
+                error = ex;
+                LOGGER.info(String.format("Cannot list %s (attempt %s/%s)", uri, attempt, RETRY_ATTEMPTS), ex);
+            }
+            try {
+                Thread.sleep(RETRY_DELAY);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while listing " + uri);
+            }
+        }
+        throw error;
+    }
+
+    /**
+     * Parses a listing stream up to its end and keeps its records. The
+     * records of a failed attempt are dropped.
+     *
+     * @param is listing stream, closed to complete the command
+     * @param format format of the listing
+     * @throws IOException When the listing cannot be read or is not completed
+     * by the server
+     */
+    private void readAll(final InputStream is, final FtpDirectoryParser.Format format) throws IOException {
+        this.count = 0;
+        try (Reader reader = new InputStreamReader(is, StandardCharsets.ISO_8859_1)) {
+            final FtpDirectoryParser parser = new FtpDirectoryParser(reader, format);
+            DirectoryEntry record;
+            while ((record = parser.readEntry()) != null) {
+                add(record);
+            }
+        }
+    }
+
+    /**
+     * Keeps a record.
+     *
+     * @param record record of the listing
+     */
+    private void add(final DirectoryEntry record) {
+        if (this.count == this.names.length) {
+            final int capacity = this.count * 2;
+            this.types = Arrays.copyOf(this.types, capacity);
+            this.sizes = Arrays.copyOf(this.sizes, capacity);
+            this.dates = Arrays.copyOf(this.dates, capacity);
+            this.names = Arrays.copyOf(this.names, capacity);
+        }
+        this.types[this.count] = record.getType();
+        this.sizes[this.count] = record.getSize();
+        this.dates[this.count] = record.getModified();
+        this.names[this.count] = record.getName();
+        this.count++;
     }
 
     @Override
@@ -59,25 +151,64 @@ public class FtpDirectory implements Directory {
         return this.url;
     }
 
+    /**
+     * Returns the next record as columns (permissions, links, size, date and
+     * name). The permissions are d for a directory and - otherwise, the links
+     * are always 1. The returned array is reused by the next call.
+     *
+     * @return the next record or null at the end of the listing
+     */
     @Override
     public String[] getNextRecord() {
-        return ftp.getNextLine();
+        final DirectoryEntry next = getNextEntry();
+        if (next == null) {
+            return null;
+        }
+        this.cols[FtpDirectoryParser.PERMISSIONS] = next.isDirectory() ? "d" : "-";
+        this.cols[FtpDirectoryParser.LINKS] = "1";
+        this.cols[FtpDirectoryParser.SIZE] = String.valueOf(next.getSize());
+        this.cols[FtpDirectoryParser.DATE] = next.getModified();
+        this.cols[FtpDirectoryParser.NAME] = next.getName();
+        return this.cols;
+    }
+
+    /**
+     * Returns the next record. The returned instance is reused by the next
+     * call.
+     *
+     * @return the next record or null at the end of the listing
+     */
+    @Override
+    public DirectoryEntry getNextEntry() {
+        if (this.position == this.count) {
+            return null;
+        }
+        final int i = this.position++;
+        this.entry.set(this.types[i], this.sizes[i], this.dates[i], this.names[i]);
+        return this.entry;
     }
 
     @Override
     public boolean isDirectory() {
-        return ftp.isDirectory();
+        if (this.position == 0) {
+            throw new IllegalStateException("No record has been read");
+        }
+        return this.entry.isDirectory();
     }
 
     @Override
     public int getTotalRecords() {
-        return ftp.getTotalLine();
+        return this.count;
     }
 
     @Override
     public void close() {
-        ftp.close();
-        directory.release();
+        this.types = null;
+        this.sizes = null;
+        this.dates = null;
+        this.names = null;
+        this.count = 0;
+        this.position = 0;
     }
 
 }
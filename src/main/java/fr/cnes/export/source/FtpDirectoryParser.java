@@ -18,85 +18,417 @@
  ******************************************************************************/
 package fr.cnes.export.source;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.Reader;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 
 /**
+ * Parses the listing of a FTP directory, either in the Unix LIST format or in
+ * the machine-readable MLSD format.
+ *
+ * The listing is read in a reused char buffer and tokenized by hand, so that
+ * no regular expression nor intermediate line is allocated : only the name and
+ * the date of each record are created as strings. The "total" line and the
+ * "." and ".." records are skipped wherever they are.
  *
  * @author Jean-Christophe Malapert (jean-christophe.malapert@cnes.fr)
  */
 public class FtpDirectoryParser {
 
-    private static final String PATTERN_REGEXP = "(\\S+)\\s+(\\S+)\\s+\\S+\\s+\\S+\\s+\\S+\\s+(\\S+\\s+\\S+\\s+\\S+)\\s+(\\S+)";
-    private static final Pattern PATTERN = Pattern.compile(PATTERN_REGEXP);
+    /**
+     * Format of the listing.
+     */
+    public enum Format {
+        LIST,
+        MLSD
+    }
+
+    /**
+     * Index of the permissions in a record.
+     */
+    public static final int PERMISSIONS = 0;
+
+    /**
+     * Index of the number of links in a record.
+     */
+    public static final int LINKS = 1;
+
+    /**
+     * Index of the size in a record.
+     */
+    public static final int SIZE = 2;
+
+    /**
+     * Index of the date in a record.
+     */
+    public static final int DATE = 3;
+
+    /**
+     * Index of the name in a record.
+     */
+    public static final int NAME = 4;
+
+    /**
+     * Number of fields before the name in the LIST format.
+     */
+    private static final int LIST_FIELDS = 8;
+
+    /**
+     * Type of a symbolic link in the MLSD format, followed by the target.
+     */
+    private static final String SLINK_TYPE = "OS.unix=slink";
 
-    private final BufferedReader br;
-    private final String[] cols = new String[4]; 
-    private int totalLine = 0;
-    
     private static final Logger LOGGER = Logger.getLogger(FtpDirectoryParser.class.getName());
 
-    public FtpDirectoryParser(final Reader reader) throws IOException {
-        this.br = new BufferedReader(reader); 
-        String line = this.br.readLine(); // total       
-        this.totalLine = Integer.valueOf(line.split(" ")[1]);
-        this.totalLine--;  
-        line = this.br.readLine(); // .
-        this.totalLine--;  
-        line = this.br.readLine(); // ..
-        this.totalLine--;         
-    }
-    
+    private final Reader reader;
+    private final Format format;
+    private final char[] buffer = new char[8192];
+    private int position = 0;
+    private int limit = 0;
+    private char[] line = new char[256];
+    private int lineLength = 0;
+    private final int[] fieldStart = new int[LIST_FIELDS + 1];
+    private final int[] fieldEnd = new int[LIST_FIELDS + 1];
+    private final DirectoryEntry entry = new DirectoryEntry();
+    private final String[] cols = new String[5];
+    private boolean hasEntry = false;
+    private int totalLine = 0;
+
+    /**
+     * Creates a parser for the LIST format.
+     *
+     * @param reader listing
+     */
+    public FtpDirectoryParser(final Reader reader) {
+        this(reader, Format.LIST);
+    }
+
+    /**
+     * Creates a parser.
+     *
+     * @param reader listing
+     * @param format format of the listing
+     */
+    public FtpDirectoryParser(final Reader reader, final Format format) {
+        this.reader = reader;
+        this.format = format;
+    }
+
+    /**
+     * Returns the number of records read so far.
+     *
+     * @return the number of records
+     */
     public int getTotalLine() {
         return this.totalLine;
     }
 
-    public String[] getNextLine() {
-        String readLine = null;
+    /**
+     * Returns the next record. The returned instance is reused by the next
+     * call.
+     *
+     * @return the next record or null at the end of the listing
+     */
+    public DirectoryEntry getNextEntry() {
         try {
-            readLine = this.br.readLine();
+            return readEntry();
         } catch (IOException ex) {
-            LOGGER.log(Level.FATAL, null, ex);           
+            LOGGER.log(Level.FATAL, null, ex);
         }
-        return (readLine != null) ? parseLine(readLine) : null;
+        return null;
     }
 
-    private String[] parseLine(final String line) {
-        Matcher m = PATTERN.matcher(line);
-        boolean b = m.matches();
-        if (b) {
-            for (int i = 1; i <= m.groupCount(); i++) {
-                 cols[i-1] = m.group(i);
+    /**
+     * Reads the next record. The returned instance is reused by the next
+     * call.
+     *
+     * @return the next record or null at the end of the listing
+     * @throws IOException When the listing cannot be read
+     */
+    public DirectoryEntry readEntry() throws IOException {
+        this.hasEntry = false;
+        while (readLine()) {
+            final boolean isParsed = (this.format == Format.MLSD) ? parseMlsdLine() : parseListLine();
+            if (isParsed) {
+                this.hasEntry = true;
+                this.totalLine++;
+                return this.entry;
             }
-        }         
-        return b ? cols : null;
+        }
+        return null;
     }
-    
+
+    /**
+     * Returns the next record as columns (permissions, links, size, date and
+     * name). The returned array is reused by the next call.
+     *
+     * @return the next record or null at the end of the listing
+     */
+    public String[] getNextLine() {
+        final DirectoryEntry next = getNextEntry();
+        if (next == null) {
+            return null;
+        }
+        if (this.format == Format.LIST) {
+            this.cols[PERMISSIONS] = field(0);
+            this.cols[LINKS] = field(1);
+        } else {
+            this.cols[PERMISSIONS] = next.isDirectory() ? "d" : "-";
+            this.cols[LINKS] = "1";
+        }
+        this.cols[SIZE] = String.valueOf(next.getSize());
+        this.cols[DATE] = next.getModified();
+        this.cols[NAME] = next.getName();
+        return this.cols;
+    }
+
     public boolean isDirectory() {
-        if(cols == null) {
-            throw new RuntimeException();
+        if (!this.hasEntry) {
+            throw new IllegalStateException("No record has been read");
         }
-        return cols[0].startsWith("d");
+        return this.entry.isDirectory();
     }
-    
+
     public boolean isFile() {
-        if(cols == null) {
-            throw new RuntimeException();
-        } 
-        return !cols[0].startsWith("d");
-    }    
-    
+        if (!this.hasEntry) {
+            throw new IllegalStateException("No record has been read");
+        }
+        return !this.entry.isDirectory();
+    }
+
     public void close() {
         try {
-            this.br.close();
+            this.reader.close();
         } catch (IOException ex) {
             LOGGER.log(Level.FATAL, null, ex);
         }
     }
 
+    /**
+     * Reads the next line in the line buffer, without the end of line.
+     *
+     * @return False at the end of the listing
+     * @throws IOException When the listing cannot be read
+     */
+    private boolean readLine() throws IOException {
+        this.lineLength = 0;
+        boolean hasChar = false;
+        while (true) {
+            if (this.position == this.limit) {
+                this.limit = this.reader.read(this.buffer, 0, this.buffer.length);
+                this.position = 0;
+                if (this.limit <= 0) {
+                    this.limit = 0;
+                    return hasChar;
+                }
+            }
+            final char c = this.buffer[this.position++];
+            hasChar = true;
+            if (c == '\n') {
+                if (this.lineLength > 0 && this.line[this.lineLength - 1] == '\r') {
+                    this.lineLength--;
+                }
+                return true;
+            }
+            if (this.lineLength == this.line.length) {
+                final char[] newLine = new char[this.line.length * 2];
+                System.arraycopy(this.line, 0, newLine, 0, this.lineLength);
+                this.line = newLine;
+            }
+            this.line[this.lineLength++] = c;
+        }
+    }
+
+    /**
+     * Parses a line of the Unix LIST format :
+     * permissions links owner group size month day time|year name.
+     *
+     * @return False when the line is not a record
+     */
+    private boolean parseListLine() {
+        int i = 0;
+        for (int field = 0; field < LIST_FIELDS; field++) {
+            while (i < this.lineLength && isBlank(this.line[i])) {
+                i++;
+            }
+            this.fieldStart[field] = i;
+            while (i < this.lineLength && !isBlank(this.line[i])) {
+                i++;
+            }
+            this.fieldEnd[field] = i;
+            if (this.fieldStart[field] == i) {
+                // total line or unknown format
+                return false;
+            }
+        }
+        while (i < this.lineLength && isBlank(this.line[i])) {
+            i++;
+        }
+        int nameEnd = this.lineLength;
+        if (i == nameEnd) {
+            return false;
+        }
+        final DirectoryEntry.Type type;
+        switch (this.line[0]) {
+            case 'd':
+                type = DirectoryEntry.Type.DIRECTORY;
+                break;
+            case 'l':
+                type = DirectoryEntry.Type.LINK;
+                nameEnd = indexOfArrow(i, nameEnd);
+                break;
+            case '-':
+                type = DirectoryEntry.Type.FILE;
+                break;
+            default:
+                type = DirectoryEntry.Type.OTHER;
+                break;
+        }
+        if (isDotEntry(i, nameEnd)) {
+            return false;
+        }
+        this.entry.set(type, parseSize(this.fieldStart[4], this.fieldEnd[4]),
+                new String(this.line, this.fieldStart[5], this.fieldEnd[7] - this.fieldStart[5]),
+                new String(this.line, i, nameEnd - i));
+        return true;
+    }
+
+    /**
+     * Parses a line of the MLSD format : fact=value;...; name.
+     *
+     * @return False when the line is not a record
+     */
+    private boolean parseMlsdLine() {
+        int nameStart = 0;
+        while (nameStart < this.lineLength && this.line[nameStart] != ' ') {
+            nameStart++;
+        }
+        if (nameStart >= this.lineLength - 1) {
+            return false;
+        }
+        DirectoryEntry.Type type = DirectoryEntry.Type.OTHER;
+        long size = -1;
+        String modified = "";
+        int factStart = 0;
+        while (factStart < nameStart) {
+            int factEnd = factStart;
+            while (factEnd < nameStart && this.line[factEnd] != ';') {
+                factEnd++;
+            }
+            int equal = factStart;
+            while (equal < factEnd && this.line[equal] != '=') {
+                equal++;
+            }
+            if (equal < factEnd) {
+                if (isFact(factStart, equal, "type")) {
+                    if (isFact(equal + 1, factEnd, "file")) {
+                        type = DirectoryEntry.Type.FILE;
+                    } else if (isFact(equal + 1, factEnd, "dir")) {
+                        type = DirectoryEntry.Type.DIRECTORY;
+                    } else if (isFact(equal + 1, factEnd, "cdir") || isFact(equal + 1, factEnd, "pdir")) {
+                        return false;
+                    } else if (factEnd - equal > SLINK_TYPE.length()
+                            && isFact(equal + 1, equal + 1 + SLINK_TYPE.length(), SLINK_TYPE)) {
+                        type = DirectoryEntry.Type.LINK;
+                    }
+                } else if (isFact(factStart, equal, "size") || isFact(factStart, equal, "sizd")) {
+                    size = parseSize(equal + 1, factEnd);
+                } else if (isFact(factStart, equal, "modify")) {
+                    modified = new String(this.line, equal + 1, factEnd - equal - 1);
+                }
+            }
+            factStart = factEnd + 1;
+        }
+        if (isDotEntry(nameStart + 1, this.lineLength)) {
+            return false;
+        }
+        this.entry.set(type, size, modified, new String(this.line, nameStart + 1, this.lineLength - nameStart - 1));
+        return true;
+    }
+
+    /**
+     * Returns a field of the current LIST line.
+     *
+     * @param field field index
+     * @return the field
+     */
+    private String field(final int field) {
+        return new String(this.line, this.fieldStart[field], this.fieldEnd[field] - this.fieldStart[field]);
+    }
+
+    /**
+     * Parses a size.
+     *
+     * @param start first char
+     * @param end char after the last one
+     * @return the size or -1 when it is not a number
+     */
+    private long parseSize(final int start, final int end) {
+        if (start == end) {
+            return -1;
+        }
+        long size = 0;
+        for (int i = start; i < end; i++) {
+            final char c = this.line[i];
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            size = size * 10 + (c - '0');
+        }
+        return size;
+    }
+
+    /**
+     * Tests case-insensitively if a part of the line is equal to a value.
+     *
+     * @param start first char
+     * @param end char after the last one
+     * @param value value
+     * @return True when the part is equal to the value
+     */
+    private boolean isFact(final int start, final int end, final String value) {
+        if (end - start != value.length()) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            if (Character.toLowerCase(this.line[start + i]) != Character.toLowerCase(value.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Tests if the name is "." or "..".
+     *
+     * @param start first char of the name
+     * @param end char after the last one
+     * @return True for "." or ".."
+     */
+    private boolean isDotEntry(final int start, final int end) {
+        final int length = end - start;
+        return (length == 1 && this.line[start] == '.')
+                || (length == 2 && this.line[start] == '.' && this.line[start + 1] == '.');
+    }
+
+    /**
+     * Returns the position of the " -> " of a link or the end of the name.
+     *
+     * @param start first char of the name
+     * @param end char after the last one
+     * @return the end of the link name
+     */
+    private int indexOfArrow(final int start, final int end) {
+        for (int i = start; i + 3 < end; i++) {
+            if (this.line[i] == ' ' && this.line[i + 1] == '-' && this.line[i + 2] == '>' && this.line[i + 3] == ' ') {
+                return i;
+            }
+        }
+        return end;
+    }
+
+    private static boolean isBlank(final char c) {
+        return c == ' ' || c == '\t';
+    }
 }
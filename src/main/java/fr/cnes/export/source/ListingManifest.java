@@ -0,0 +1,343 @@
+ /******************************************************************************
+ * Copyright 2017 CNES - CENTRE NATIONAL d'ETUDES SPATIALES
+ *
+ * This file is part of Regards.
+ *
+ * Regards is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Regards is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Regards.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package fr.cnes.export.source;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.log4j.Logger;
+
+/**
+ * Directory listings saved between two runs.
+ *
+ * The manifest holds the name, the type, the size and the date of each record
+ * of the listed directories. During the crawl, the directories are listed
+ * again and their listings are compared with the ones of the previous run :
+ * only the new files and the files whose size or date has changed are queued.
+ *
+ * The date of a directory does not change when a file is modified in place
+ * or when one of its subdirectories changes, and the dates of the LIST format
+ * have a precision of a minute, or of a day for the old entries. So a
+ * subdirectory is not listed again only when it had no subdirectory in the
+ * previous run and its record, with a MLSD date precise to the second, has
+ * not changed. A file modified in place in such a directory, or a file
+ * modified in place within the same minute of a LIST date and with the same
+ * size, is found by the next full rescan, which lists every directory once
+ * every fullRescanInterval runs.
+ *
+ * The new listings are kept apart from the previous ones and written by
+ * {@link #save()} at the end of the run, so that an interrupted run is
+ * crawled again entirely.
+ */
+public class ListingManifest {
+
+    private static final char SEPARATOR = '\t';
+
+    /**
+     * Header of the line holding the number of runs since the last full
+     * rescan.
+     */
+    private static final String RUNS_HEADER = "#runs_since_full_rescan";
+
+    /**
+     * Length of a MLSD date precise to the second : YYYYMMDDHHMMSS.
+     */
+    private static final int SECOND_DATE_LENGTH = 14;
+
+    private static final Logger LOGGER = Logger.getLogger(ListingManifest.class.getName());
+
+    private final File file;
+    private final Map<String, Map<String, Record>> previous = new ConcurrentHashMap<>();
+    private final Map<String, Map<String, Record>> current = new ConcurrentHashMap<>();
+
+    /**
+     * Number of runs since the last full rescan, as loaded.
+     */
+    private int loadedRuns = 0;
+
+    /**
+     * Number of runs since the last full rescan, as saved.
+     */
+    private int runsSinceFullRescan;
+
+    /**
+     * True when every directory is listed during this run.
+     */
+    private final boolean isFullRescan;
+
+    /**
+     * Creates a manifest and loads the listings of the previous run when the
+     * file exists. The unchanged leaf directories are never listed again.
+     *
+     * @param file manifest file
+     * @throws IOException When the manifest cannot be read
+     */
+    public ListingManifest(final File file) throws IOException {
+        this(file, 0);
+    }
+
+    /**
+     * Creates a manifest and loads the listings of the previous run when the
+     * file exists.
+     *
+     * @param file manifest file
+     * @param fullRescanInterval number of runs between two full rescans : 1
+     * lists every directory at each run and 0 never does a full rescan
+     * @throws IOException When the manifest cannot be read
+     */
+    public ListingManifest(final File file, final int fullRescanInterval) throws IOException {
+        this.file = file;
+        if (file.exists()) {
+            load();
+        }
+        this.isFullRescan = fullRescanInterval == 1
+                || (fullRescanInterval > 1 && this.loadedRuns + 1 >= fullRescanInterval);
+        this.runsSinceFullRescan = this.isFullRescan ? 0 : this.loadedRuns + 1;
+        if (this.isFullRescan && !this.previous.isEmpty()) {
+            LOGGER.info("Full rescan : all the directories are listed");
+        }
+    }
+
+    /**
+     * Records a listed entry and tells if it has changed since the previous
+     * run.
+     *
+     * @param directoryUrl listed directory, ending by a slash
+     * @param name name of the entry
+     * @param isDirectory True when the entry is a directory
+     * @param size size of the entry
+     * @param date date of the entry
+     * @return True when the entry is new or modified otherwise False
+     */
+    public boolean record(final String directoryUrl, final String name, final boolean isDirectory,
+            final String size, final String date) {
+        final Record record = new Record(isDirectory ? 'd' : 'f', size, date);
+        this.current.computeIfAbsent(directoryUrl, (k) -> new ConcurrentHashMap<>()).put(name, record);
+        final Map<String, Record> previousListing = this.previous.get(directoryUrl);
+        final Record previousRecord = (previousListing == null) ? null : previousListing.get(name);
+        return !record.equals(previousRecord);
+    }
+
+    /**
+     * Tests if a subdirectory can be skipped without being listed : out of a
+     * full rescan, its record must be unchanged, with a date precise to the
+     * second, and it must have had no subdirectory in the previous run.
+     *
+     * @param directoryUrl subdirectory, ending by a slash
+     * @param hasChanged True when the record of the subdirectory has changed
+     * @param date date of the subdirectory in the listing of its parent
+     * @return True when the subdirectory can be skipped otherwise False
+     */
+    public boolean isUnchangedLeaf(final String directoryUrl, final boolean hasChanged, final String date) {
+        if (this.isFullRescan || hasChanged || !isPreciseToTheSecond(date)) {
+            return false;
+        }
+        final Map<String, Record> previousListing = this.previous.get(directoryUrl);
+        return previousListing != null
+                && previousListing.values().stream().noneMatch((record) -> record.type == 'd');
+    }
+
+    /**
+     * Keeps the listings of the previous run for an unchanged directory and
+     * all its subdirectories.
+     *
+     * @param directoryUrl directory that is not listed again
+     */
+    public void keepUnchanged(final String directoryUrl) {
+        this.previous.entrySet().stream()
+                .filter((entry) -> entry.getKey().startsWith(directoryUrl))
+                .forEach((entry) -> this.current.put(entry.getKey(), new ConcurrentHashMap<>(entry.getValue())));
+    }
+
+    /**
+     * Forgets a file, which will be queued again by the next run. The records
+     * of its parent directories are forgotten as well so that they are listed
+     * again.
+     *
+     * @param fileUrl file
+     */
+    public void forget(final String fileUrl) {
+        String entry = fileUrl;
+        while (entry.length() > 1) {
+            final int end = entry.endsWith("/") ? entry.length() - 1 : entry.length();
+            final int separator = entry.lastIndexOf('/', end - 1);
+            if (separator == -1) {
+                break;
+            }
+            final String directoryUrl = entry.substring(0, separator + 1);
+            final Map<String, Record> listing = this.current.get(directoryUrl);
+            if (listing == null || listing.remove(entry.substring(separator + 1, end)) == null) {
+                break;
+            }
+            entry = directoryUrl;
+        }
+    }
+
+    /**
+     * Merges the manifests written by the nodes of a sharded processing in
+     * this manifest, which is saved. A record is kept only when it is in all
+     * the manifests : an entry forgotten by one node, because some of its
+     * files failed, is listed again by the next run.
+     *
+     * @param shardManifests manifests of the shards
+     * @throws IOException When a manifest cannot be read or this manifest
+     * written
+     */
+    public void merge(final List<File> shardManifests) throws IOException {
+        this.current.clear();
+        this.runsSinceFullRescan = 0;
+        boolean isFirst = true;
+        for (final File shardManifest : shardManifests) {
+            final ListingManifest shard = new ListingManifest(shardManifest);
+            this.runsSinceFullRescan = Math.max(this.runsSinceFullRescan, shard.loadedRuns);
+            if (isFirst) {
+                shard.previous.forEach((directoryUrl, listing) -> {
+                    this.current.put(directoryUrl, new ConcurrentHashMap<>(listing));
+                });
+                isFirst = false;
+            } else {
+                this.current.entrySet().removeIf((listing) -> {
+                    final Map<String, Record> shardListing = shard.previous.get(listing.getKey());
+                    if (shardListing == null) {
+                        return true;
+                    }
+                    listing.getValue().entrySet().removeIf((entry) -> {
+                        return !entry.getValue().equals(shardListing.get(entry.getKey()));
+                    });
+                    return false;
+                });
+            }
+        }
+        save();
+    }
+
+    /**
+     * Writes the listings of this run. The file is replaced atomically.
+     *
+     * @throws IOException When the manifest cannot be written
+     */
+    public void save() throws IOException {
+        final File tmpFile = new File(this.file.getPath() + ".tmp");
+        try (BufferedWriter writer = java.nio.file.Files.newBufferedWriter(tmpFile.toPath(), StandardCharsets.UTF_8)) {
+            writer.append(RUNS_HEADER).append(SEPARATOR).append(String.valueOf(this.runsSinceFullRescan));
+            writer.newLine();
+            for (final Map.Entry<String, Map<String, Record>> listing : this.current.entrySet()) {
+                for (final Map.Entry<String, Record> entry : listing.getValue().entrySet()) {
+                    final Record record = entry.getValue();
+                    writer.append(listing.getKey()).append(SEPARATOR)
+                            .append(entry.getKey()).append(SEPARATOR)
+                            .append(record.type).append(SEPARATOR)
+                            .append(record.size).append(SEPARATOR)
+                            .append(record.date);
+                    writer.newLine();
+                }
+            }
+        }
+        java.nio.file.Files.move(tmpFile.toPath(), this.file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        LOGGER.info("Listing manifest saved in " + this.file);
+    }
+
+    /**
+     * Loads the listings of the previous run.
+     *
+     * @throws IOException When the manifest cannot be read
+     */
+    private void load() throws IOException {
+        int nbRecords = 0;
+        try (BufferedReader reader = java.nio.file.Files.newBufferedReader(this.file.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final String[] fields = line.split(String.valueOf(SEPARATOR), -1);
+                if (fields.length == 2 && RUNS_HEADER.equals(fields[0])) {
+                    try {
+                        this.loadedRuns = Integer.parseInt(fields[1]);
+                    } catch (NumberFormatException ex) {
+                        LOGGER.warn("Ignoring the invalid manifest line " + line);
+                    }
+                    continue;
+                }
+                if (fields.length != 5 || fields[2].length() != 1) {
+                    LOGGER.warn("Ignoring the invalid manifest line " + line);
+                    continue;
+                }
+                this.previous.computeIfAbsent(fields[0], (k) -> new ConcurrentHashMap<>())
+                        .put(fields[1], new Record(fields[2].charAt(0), fields[3], fields[4]));
+                nbRecords++;
+            }
+        }
+        LOGGER.info(nbRecords + " records loaded from the listing manifest " + this.file);
+    }
+
+    /**
+     * Tests if a date is a MLSD date precise to the second, YYYYMMDDHHMMSS
+     * optionally followed by fractions of a second. The dates of the LIST
+     * format are precise to the minute or to the day.
+     *
+     * @param date date of a record
+     * @return True when the date is precise to the second otherwise False
+     */
+    private static boolean isPreciseToTheSecond(final String date) {
+        if (date == null || date.length() < SECOND_DATE_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < SECOND_DATE_LENGTH; i++) {
+            if (!Character.isDigit(date.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Record of a listing.
+     */
+    private static class Record {
+
+        private final char type;
+        private final String size;
+        private final String date;
+
+        Record(final char type, final String size, final String date) {
+            this.type = type;
+            this.size = size;
+            this.date = date;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (!(obj instanceof Record)) {
+                return false;
+            }
+            final Record other = (Record) obj;
+            return this.type == other.type && this.size.equals(other.size) && this.date.equals(other.date);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * this.type + this.size.hashCode()) + this.date.hashCode();
+        }
+    }
+}
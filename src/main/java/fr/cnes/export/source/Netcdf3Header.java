@@ -0,0 +1,358 @@
+ /******************************************************************************
+ * Copyright 2017 CNES - CENTRE NATIONAL d'ETUDES SPATIALES
+ *
+ * This file is part of Regards.
+ *
+ * Regards is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Regards is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Regards.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package fr.cnes.export.source;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Layout of the variables of a NetCDF-3 file (classic or 64-bit offset
+ * format), read from its header.
+ *
+ * It gives the byte ranges where the values of some variables are stored, so
+ * that only these ranges can be downloaded, and reads the raw values of a
+ * variable in a given buffer.
+ */
+public class Netcdf3Header {
+
+    private static final int NC_DIMENSION = 0x0A;
+    private static final int NC_VARIABLE = 0x0B;
+    private static final int NC_ATTRIBUTE = 0x0C;
+    private static final int STREAMING = -1;
+
+    /**
+     * Number of bytes first read to parse a header. It is doubled until the
+     * header is complete.
+     */
+    private static final int HEADER_CHUNK = 16384;
+
+    private final long headerSize;
+    private final long numRecs;
+    private final long recSize;
+    private final Map<String, VariableLayout> variables;
+
+    private Netcdf3Header(final long headerSize, final long numRecs, final long recSize,
+            final Map<String, VariableLayout> variables) {
+        this.headerSize = headerSize;
+        this.numRecs = numRecs;
+        this.recSize = recSize;
+        this.variables = variables;
+    }
+
+    /**
+     * Parses the header.
+     *
+     * @param header first bytes of the file
+     * @return the layout of the file
+     * @throws IOException When the file is not a NetCDF-3 file
+     * @throws java.nio.BufferUnderflowException When the header is longer than
+     * the given bytes
+     */
+    public static Netcdf3Header parse(final ByteBuffer header) throws IOException {
+        final ByteBuffer buffer = header.duplicate().order(ByteOrder.BIG_ENDIAN);
+        if (buffer.get() != 'C' || buffer.get() != 'D' || buffer.get() != 'F') {
+            throw new IOException("Not a NetCDF-3 file");
+        }
+        final int version = buffer.get();
+        if (version != 1 && version != 2) {
+            throw new IOException("Unsupported NetCDF-3 version " + version);
+        }
+        final int numRecs = buffer.getInt();
+        if (numRecs == STREAMING) {
+            throw new IOException("NetCDF-3 file in streaming mode");
+        }
+
+        final List<Long> dimensions = new ArrayList<>();
+        int nelems = readListHeader(buffer, NC_DIMENSION);
+        for (int i = 0; i < nelems; i++) {
+            skipName(buffer);
+            dimensions.add(buffer.getInt() & 0xFFFFFFFFL);
+        }
+        skipAttributes(buffer);
+
+        final Map<String, VariableLayout> layouts = new HashMap<>();
+        nelems = readListHeader(buffer, NC_VARIABLE);
+        long recordSize = 0;
+        int nbRecordVariables = 0;
+        for (int i = 0; i < nelems; i++) {
+            final String name = readName(buffer);
+            final int ndims = buffer.getInt();
+            boolean isRecord = false;
+            long nbValues = 1;
+            for (int d = 0; d < ndims; d++) {
+                final long length = dimensions.get(buffer.getInt());
+                if (d == 0 && length == 0) {
+                    isRecord = true;
+                } else {
+                    nbValues *= length;
+                }
+            }
+            skipAttributes(buffer);
+            final long size = nbValues * typeSize(buffer.getInt());
+            buffer.getInt(); // vsize, recomputed as it overflows for large variables
+            final long begin = (version == 1) ? buffer.getInt() & 0xFFFFFFFFL : buffer.getLong();
+            layouts.put(name, new VariableLayout(isRecord, begin, size));
+            if (isRecord) {
+                recordSize += pad(size);
+                nbRecordVariables++;
+            }
+        }
+        if (nbRecordVariables == 1) {
+            // a single record variable is not padded
+            for (final VariableLayout layout : layouts.values()) {
+                if (layout.isRecord) {
+                    recordSize = layout.size;
+                }
+            }
+        }
+        return new Netcdf3Header(buffer.position(), numRecs & 0xFFFFFFFFL, recordSize, layouts);
+    }
+
+    /**
+     * Reads the header of a NetCDF-3 file.
+     *
+     * @param channel file
+     * @return the layout of the file
+     * @throws IOException When the file cannot be read or is not a NetCDF-3
+     * file
+     */
+    public static Netcdf3Header read(final FileChannel channel) throws IOException {
+        int length = HEADER_CHUNK;
+        while (true) {
+            final ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(length, channel.size()));
+            while (buffer.hasRemaining() && channel.read(buffer, buffer.position()) > 0) {
+                // reads the beginning of the file
+            }
+            buffer.flip();
+            try {
+                return parse(buffer);
+            } catch (BufferUnderflowException ex) {
+                if (buffer.limit() < length) {
+                    throw new IOException("Truncated NetCDF-3 header");
+                }
+                length *= 2;
+            }
+        }
+    }
+
+    /**
+     * Returns the size of the header.
+     *
+     * @return the size in bytes
+     */
+    public long getHeaderSize() {
+        return this.headerSize;
+    }
+
+    /**
+     * Returns the size of the file computed from the layout of the variables.
+     *
+     * @return the size in bytes
+     */
+    public long getFileSize() {
+        long end = this.headerSize;
+        for (final VariableLayout layout : this.variables.values()) {
+            if (layout.isRecord && this.numRecs == 0) {
+                continue;
+            }
+            final long variableEnd = layout.isRecord
+                    ? layout.begin + (this.numRecs - 1) * this.recSize + layout.size
+                    : layout.begin + layout.size;
+            end = Math.max(end, variableEnd);
+        }
+        return end;
+    }
+
+    /**
+     * Returns the byte ranges of the values of the variables. The ranges are
+     * sorted and the ranges separated by less than maxGap bytes are merged.
+     * The unknown variables are ignored.
+     *
+     * @param names variables
+     * @param maxGap maximum number of bytes between two merged ranges
+     * @return the ranges as {start, end} with end excluded
+     */
+    public List<long[]> getRanges(final Collection<String> names, final long maxGap) {
+        final List<long[]> ranges = new ArrayList<>();
+        for (final String name : names) {
+            final VariableLayout layout = this.variables.get(name);
+            if (layout == null || layout.size == 0) {
+                continue;
+            }
+            if (layout.isRecord) {
+                for (long record = 0; record < this.numRecs; record++) {
+                    final long start = layout.begin + record * this.recSize;
+                    ranges.add(new long[]{start, start + layout.size});
+                }
+            } else {
+                ranges.add(new long[]{layout.begin, layout.begin + layout.size});
+            }
+        }
+        ranges.sort((a, b) -> Long.compare(a[0], b[0]));
+        final List<long[]> merged = new ArrayList<>();
+        for (final long[] range : ranges) {
+            final long[] last = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+            if (last != null && range[0] - last[1] <= maxGap) {
+                last[1] = Math.max(last[1], range[1]);
+            } else {
+                merged.add(range);
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * Tests whether the file has a variable.
+     *
+     * @param name variable
+     * @return True when the variable exists otherwise False
+     */
+    public boolean contains(final String name) {
+        return this.variables.containsKey(name);
+    }
+
+    /**
+     * Returns the number of bytes of the values of a variable.
+     *
+     * @param name variable
+     * @return the number of bytes, of all the records for a record variable
+     */
+    public long getByteSize(final String name) {
+        final VariableLayout layout = this.variables.get(name);
+        return layout.isRecord ? layout.size * this.numRecs : layout.size;
+    }
+
+    /**
+     * Reads the raw values of a variable, in big-endian order.
+     *
+     * @param channel file
+     * @param name variable
+     * @param destination buffer receiving the values from its position, with
+     * at least {@link #getByteSize} bytes remaining
+     * @throws IOException When the file cannot be read or is truncated
+     */
+    public void readValues(final FileChannel channel, final String name, final ByteBuffer destination)
+            throws IOException {
+        final VariableLayout layout = this.variables.get(name);
+        final long nbRecords = layout.isRecord ? this.numRecs : 1;
+        final int limit = destination.limit();
+        try {
+            for (long record = 0; record < nbRecords; record++) {
+                long position = layout.begin + record * this.recSize;
+                destination.limit(destination.position() + (int) layout.size);
+                while (destination.hasRemaining()) {
+                    final int count = channel.read(destination, position);
+                    if (count < 0) {
+                        throw new IOException("Truncated values of the variable " + name);
+                    }
+                    position += count;
+                }
+            }
+        } finally {
+            destination.limit(limit);
+        }
+    }
+
+    private static int readListHeader(final ByteBuffer buffer, final int expectedTag) throws IOException {
+        final int tag = buffer.getInt();
+        final int nelems = buffer.getInt();
+        if (tag == 0 && nelems == 0) {
+            return 0;
+        }
+        if (tag != expectedTag) {
+            throw new IOException("Unexpected tag " + tag + " in the NetCDF-3 header");
+        }
+        return nelems;
+    }
+
+    private static void skipAttributes(final ByteBuffer buffer) throws IOException {
+        final int nelems = readListHeader(buffer, NC_ATTRIBUTE);
+        for (int i = 0; i < nelems; i++) {
+            skipName(buffer);
+            final int type = buffer.getInt();
+            final long nbValues = buffer.getInt() & 0xFFFFFFFFL;
+            skip(buffer, pad(nbValues * typeSize(type)));
+        }
+    }
+
+    private static String readName(final ByteBuffer buffer) {
+        final int length = buffer.getInt();
+        final byte[] name = new byte[length];
+        buffer.get(name);
+        skip(buffer, pad(length) - length);
+        return new String(name, StandardCharsets.UTF_8);
+    }
+
+    private static void skipName(final ByteBuffer buffer) {
+        skip(buffer, pad(buffer.getInt()));
+    }
+
+    private static void skip(final ByteBuffer buffer, final long count) {
+        if (count > buffer.remaining()) {
+            throw new java.nio.BufferUnderflowException();
+        }
+        buffer.position(buffer.position() + (int) count);
+    }
+
+    private static long pad(final long size) {
+        return (size + 3) & ~3L;
+    }
+
+    private static int typeSize(final int type) throws IOException {
+        switch (type) {
+            case 1: // byte
+            case 2: // char
+                return 1;
+            case 3: // short
+                return 2;
+            case 4: // int
+            case 5: // float
+                return 4;
+            case 6: // double
+                return 8;
+            default:
+                throw new IOException("Unknown NetCDF-3 type " + type);
+        }
+    }
+
+    /**
+     * Location of the values of a variable.
+     */
+    private static class VariableLayout {
+
+        private final boolean isRecord;
+        private final long begin;
+        private final long size;
+
+        VariableLayout(final boolean isRecord, final long begin, final long size) {
+            this.isRecord = isRecord;
+            this.begin = begin;
+            this.size = size;
+        }
+    }
+}
@@ -0,0 +1,230 @@
+ /******************************************************************************
+ * Copyright 2017 CNES - CENTRE NATIONAL d'ETUDES SPATIALES
+ *
+ * This file is part of Regards.
+ *
+ * Regards is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Regards is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Regards.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package fr.cnes.export.source;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.restlet.engine.Engine;
+import org.restlet.resource.ResourceException;
+
+/**
+ * Crawls a FTP tree by listing several directories at the same time.
+ *
+ * Each directory is listed by a task of a bounded pool. Subdirectories are
+ * submitted as new tasks while files are pushed in a queue as soon as they are
+ * found, so that {@link #nextFile()} returns the first files before the end of
+ * the crawl. When a {@link ListingManifest} is given, the unchanged files and
+ * the unchanged leaf subdirectories are skipped.
+ */
+public class ParallelFiles implements IFiles {
+
+    /**
+     * Marker pushed in the queue when all directories have been listed.
+     */
+    private static final String END_OF_CRAWL = new String("END_OF_CRAWL");
+
+    /**
+     * Maximum number of files waiting to be read by {@link #nextFile()}. The
+     * listings wait for room in the queue when the files are not consumed.
+     */
+    private static final int QUEUE_CAPACITY = 1024;
+
+    private static final Logger LOGGER = Logger.getLogger(ParallelFiles.class.getName());
+
+    private final ListingManifest manifest;
+    private final CrawlFilter filter;
+    private final ExecutorService listingPool;
+    private final BlockingQueue<String> files = new LinkedBlockingQueue<>(QUEUE_CAPACITY);
+    private final AtomicInteger pendingDirectories = new AtomicInteger(0);
+    private volatile boolean isOver = false;
+
+    private ParallelFiles(final String url, final int maxConcurrentListings, final ListingManifest manifest,
+            final CrawlFilter filter) {
+        this.manifest = manifest;
+        this.filter = filter;
+        Engine.setLogLevel(java.util.logging.Level.OFF);
+        Engine.setRestletLogLevel(java.util.logging.Level.OFF);
+        final AtomicInteger threadNumber = new AtomicInteger(0);
+        this.listingPool = Executors.newFixedThreadPool(maxConcurrentListings, (Runnable r) -> {
+            final Thread t = new Thread(r, "crawler-" + threadNumber.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        submitDirectory(url);
+    }
+
+    /**
+     * Opens a FTP tree that is crawled with at most maxConcurrentListings
+     * directories listed at the same time.
+     *
+     * @param url root directory
+     * @param maxConcurrentListings maximum number of concurrent listings
+     * @return the file iterator
+     */
+    public static IFiles openDirectory(final String url, final int maxConcurrentListings) {
+        return openDirectory(url, maxConcurrentListings, null);
+    }
+
+    /**
+     * Opens a FTP tree that is crawled incrementally : the files that have not
+     * changed since the listings of the manifest are skipped, as well as the
+     * subdirectories the manifest considers as unchanged leaves.
+     *
+     * @param url root directory
+     * @param maxConcurrentListings maximum number of concurrent listings
+     * @param manifest listings of the previous run or null to crawl everything
+     * @return the file iterator
+     */
+    public static IFiles openDirectory(final String url, final int maxConcurrentListings,
+            final ListingManifest manifest) {
+        return openDirectory(url, maxConcurrentListings, manifest, CrawlFilter.ACCEPT_ALL);
+    }
+
+    /**
+     * Opens a FTP tree that is crawled incrementally and filtered : the
+     * directories and the files rejected by the filter are neither listed nor
+     * queued, and they are not recorded in the manifest.
+     *
+     * @param url root directory
+     * @param maxConcurrentListings maximum number of concurrent listings
+     * @param manifest listings of the previous run or null to crawl everything
+     * @param filter selection of the directories and files
+     * @return the file iterator
+     */
+    public static IFiles openDirectory(final String url, final int maxConcurrentListings,
+            final ListingManifest manifest, final CrawlFilter filter) {
+        if (maxConcurrentListings < 1) {
+            throw new IllegalArgumentException("maxConcurrentListings must be greater than 0");
+        }
+        return new ParallelFiles(url, maxConcurrentListings, manifest, filter);
+    }
+
+    @Override
+    public String nextFile() {
+        if (this.isOver) {
+            return null;
+        }
+        String file;
+        try {
+            file = this.files.take();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            file = END_OF_CRAWL;
+        }
+        if (file == END_OF_CRAWL) {
+            this.isOver = true;
+            file = null;
+        }
+        LOGGER.log(Level.INFO, String.format("Indexing file %s", file == null ? "is over" : file));
+        return file;
+    }
+
+    /**
+     * Submits the listing of a directory to the pool.
+     *
+     * @param directoryUrl directory to list, ending by a slash
+     */
+    private void submitDirectory(final String directoryUrl) {
+        this.pendingDirectories.incrementAndGet();
+        this.listingPool.execute(() -> listDirectory(directoryUrl));
+    }
+
+    /**
+     * Lists a directory. The end of the crawl is signaled once the last
+     * pending directory is listed.
+     *
+     * @param directoryUrl directory to list
+     */
+    private void listDirectory(final String directoryUrl) {
+        LOGGER.log(Level.INFO, String.format("Start reading directory %s", directoryUrl));
+        Directory directory = null;
+        try {
+            directory = new FtpDirectory(directoryUrl);
+            DirectoryEntry entry;
+            boolean isFiltered = false;
+            while ((entry = directory.getNextEntry()) != null) {
+                final String name = entry.getName();
+                final boolean isDirectory = entry.isDirectory();
+                if (isDirectory ? !this.filter.acceptDirectory(name) : !this.filter.acceptFile(name)) {
+                    isFiltered = true;
+                    continue;
+                }
+                final boolean hasChanged = this.manifest == null || this.manifest.record(directoryUrl,
+                        name, isDirectory, String.valueOf(entry.getSize()), entry.getModified());
+                final String subdirectoryUrl = directoryUrl + name + "/";
+                if (isDirectory && this.manifest != null
+                        && this.manifest.isUnchangedLeaf(subdirectoryUrl, hasChanged, entry.getModified())) {
+                    LOGGER.debug(String.format("Skip unchanged directory %s", subdirectoryUrl));
+                    this.manifest.keepUnchanged(subdirectoryUrl);
+                } else if (isDirectory) {
+                    submitDirectory(subdirectoryUrl);
+                } else if (hasChanged) {
+                    final String file = directory.getSourceDirectory() + name;
+                    if (this.filter.isInShard(file)) {
+                        FileSizeIndex.getInstance().put(file, entry.getSize());
+                        this.files.put(file);
+                    }
+                }
+            }
+            if (isFiltered && this.manifest != null) {
+                // the directory is incomplete in the manifest : the next run lists it again
+                this.manifest.forget(directoryUrl);
+            }
+        } catch (URISyntaxException | IOException | ResourceException ex) {
+            LOGGER.log(Level.FATAL, String.format("Cannot read directory %s", directoryUrl), ex);
+            if (this.manifest != null) {
+                this.manifest.forget(directoryUrl);
+            }
+        } catch (InterruptedException ex) {
+            LOGGER.log(Level.WARN, String.format("Reading of directory %s interrupted", directoryUrl));
+            Thread.currentThread().interrupt();
+            if (this.manifest != null) {
+                this.manifest.forget(directoryUrl);
+            }
+        } finally {
+            if (directory != null) {
+                directory.close();
+            }
+            LOGGER.log(Level.INFO, String.format("Finish reading directory %s", directoryUrl));
+            if (this.pendingDirectories.decrementAndGet() == 0) {
+                this.listingPool.shutdown();
+                signalEndOfCrawl();
+            }
+        }
+    }
+
+    /**
+     * Pushes the end of the crawl, waiting for room in the queue.
+     */
+    private void signalEndOfCrawl() {
+        try {
+            this.files.put(END_OF_CRAWL);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            this.isOver = true;
+        }
+    }
+}
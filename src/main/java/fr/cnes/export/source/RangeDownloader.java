@@ -0,0 +1,291 @@
+ /******************************************************************************
+ * Copyright 2017 CNES - CENTRE NATIONAL d'ETUDES SPATIALES
+ *
+ * This file is part of Regards.
+ *
+ * Regards is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Regards is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Regards.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package fr.cnes.export.source;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import org.apache.log4j.Logger;
+
+/**
+ * Downloads only the variables to extract from NetCDF-3 files.
+ *
+ * The header is downloaded first to compute the byte ranges of the variables.
+ * The ranges are then downloaded, with REST on FTP or Range on HTTP, and
+ * written at their offset in a sparse copy of the file, which is read by
+ * netCDF-java as the complete file. The files that are not NetCDF-3 files or
+ * whose server cannot restart a transfer are downloaded entirely.
+ */
+public class RangeDownloader extends SpoolDownloader {
+
+    /**
+     * Suffix of the sparse copies.
+     */
+    public static final String SPARSE_SUFFIX = ".sparse";
+
+    /**
+     * Number of bytes downloaded to read the header. It is doubled until the
+     * header is complete.
+     */
+    private static final int HEADER_CHUNK = 16384;
+
+    /**
+     * Maximum size of a header.
+     */
+    private static final int MAX_HEADER_SIZE = 4 * 1024 * 1024;
+
+    private static final Logger LOGGER = Logger.getLogger(RangeDownloader.class.getName());
+
+    private final List<String> variables;
+    private final long maxGap;
+    private final FtpConnectionPool pool;
+    private final ThreadLocal<FtpConnection> currentConnection = new ThreadLocal<>();
+
+    /**
+     * Creates a downloader.
+     *
+     * @param spoolDirectory directory where the files are downloaded
+     * @param keepFiles True to keep the entirely downloaded files otherwise
+     * False. The sparse copies are always deleted.
+     * @param pool pool used for the FTP downloads
+     * @param variables variables to download
+     * @param maxGap maximum number of bytes between two ranges downloaded at
+     * once
+     */
+    public RangeDownloader(final File spoolDirectory, final boolean keepFiles, final FtpConnectionPool pool,
+            final List<String> variables, final long maxGap) {
+        super(spoolDirectory, keepFiles, pool);
+        this.pool = pool;
+        this.variables = variables;
+        this.maxGap = maxGap;
+    }
+
+    /**
+     * Downloads the header and the variables of a NetCDF-3 file in a sparse
+     * copy. Other files are downloaded entirely.
+     *
+     * @param uri location of the file
+     * @return the local file
+     * @throws URISyntaxException
+     * @throws IOException When the download fails
+     */
+    @Override
+    public File download(final String uri) throws URISyntaxException, IOException {
+        final URI location = new URI(uri);
+        final String scheme = location.getScheme();
+        if (!"ftp".equalsIgnoreCase(scheme) && !"http".equalsIgnoreCase(scheme) && !"https".equalsIgnoreCase(scheme)) {
+            return super.download(uri);
+        }
+        final Netcdf3Header header;
+        final byte[] headerBytes;
+        try {
+            headerBytes = readHeader(location);
+            header = Netcdf3Header.parse(ByteBuffer.wrap(headerBytes));
+        } catch (RangeNotSupportedException ex) {
+            LOGGER.debug(ex.getMessage() + ", downloading the whole file");
+            return super.download(uri);
+        }
+        final String fileName = uri.substring(uri.lastIndexOf('/') + 1);
+        final File sparseFile = new File(getSpoolDirectory(), fileName + SPARSE_SUFFIX);
+        final List<long[]> ranges = header.getRanges(this.variables, this.maxGap);
+        long downloaded = header.getHeaderSize();
+        try (FileChannel channel = FileChannel.open(sparseFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.SPARSE)) {
+            channel.write(ByteBuffer.wrap(headerBytes, 0, (int) header.getHeaderSize()), 0);
+            for (final long[] range : ranges) {
+                readRange(location, range[0], range[1] - range[0], channel);
+                downloaded += range[1] - range[0];
+            }
+            final long fileSize = header.getFileSize();
+            if (channel.size() < fileSize) {
+                // the end of the file is written so that its size is the size of the complete file
+                channel.write(ByteBuffer.allocate(1), fileSize - 1);
+            }
+        } catch (RangeNotSupportedException ex) {
+            sparseFile.delete();
+            LOGGER.debug(ex.getMessage() + ", downloading the whole file");
+            return super.download(uri);
+        } catch (IOException | RuntimeException ex) {
+            sparseFile.delete();
+            throw ex;
+        }
+        LOGGER.debug(String.format("%s : %s bytes downloaded in %s range(s) instead of %s",
+                uri, downloaded, ranges.size(), header.getFileSize()));
+        return sparseFile;
+    }
+
+    /**
+     * Releases a downloaded file. The sparse copies are always deleted.
+     *
+     * @param file file returned by {@link #download}
+     */
+    @Override
+    public void release(final File file) {
+        if (file.getName().endsWith(SPARSE_SUFFIX)) {
+            if (!file.delete()) {
+                LOGGER.warn("Cannot delete the spool file " + file);
+            }
+        } else {
+            super.release(file);
+        }
+    }
+
+    /**
+     * Downloads the header, doubling the downloaded size until the header is
+     * complete.
+     *
+     * @param location file
+     * @return the first bytes of the file, containing the whole header
+     * @throws IOException When the download fails or the file is not a
+     * NetCDF-3 file
+     */
+    private byte[] readHeader(final URI location) throws IOException {
+        final long fileSize = FileSizeIndex.getInstance().getSize(location.toString());
+        int length = HEADER_CHUNK;
+        while (true) {
+            final int chunk = (fileSize >= 0) ? (int) Math.min(length, fileSize) : length;
+            final ByteBuffer buffer = ByteBuffer.allocate(chunk);
+            readRange(location, 0, chunk, buffer);
+            buffer.flip();
+            try {
+                Netcdf3Header.parse(buffer);
+                return buffer.array();
+            } catch (BufferUnderflowException ex) {
+                if (chunk < length || length >= MAX_HEADER_SIZE || buffer.limit() < chunk) {
+                    throw new RangeNotSupportedException("Incomplete NetCDF-3 header in " + location);
+                }
+                length *= 2;
+            } catch (IOException ex) {
+                throw new RangeNotSupportedException(ex.getMessage() + " : " + location);
+            }
+        }
+    }
+
+    /**
+     * Downloads a range in a buffer.
+     *
+     * @param location file
+     * @param offset first byte
+     * @param length number of bytes
+     * @param buffer destination
+     * @throws IOException When the download fails
+     */
+    private void readRange(final URI location, final long offset, final long length, final ByteBuffer buffer)
+            throws IOException {
+        try (InputStream is = openRange(location, offset, length)) {
+            final ReadableByteChannel source = Channels.newChannel(is);
+            while (buffer.hasRemaining() && source.read(buffer) != -1) {
+                // reads until the buffer is full
+            }
+        } finally {
+            closeRange(location);
+        }
+    }
+
+    /**
+     * Downloads a range at the same offset in a file.
+     *
+     * @param location file
+     * @param offset first byte
+     * @param length number of bytes
+     * @param channel destination
+     * @throws IOException When the download fails or is incomplete
+     */
+    private void readRange(final URI location, final long offset, final long length, final FileChannel channel)
+            throws IOException {
+        try (InputStream is = openRange(location, offset, length)) {
+            final ReadableByteChannel source = Channels.newChannel(is);
+            long position = offset;
+            final long end = offset + length;
+            long count;
+            while (position < end && (count = channel.transferFrom(source, position, end - position)) > 0) {
+                position += count;
+            }
+            if (position < end) {
+                throw new IOException(String.format("Incomplete range %s-%s of %s", offset, end, location));
+            }
+        } finally {
+            closeRange(location);
+        }
+    }
+
+    /**
+     * Opens a stream starting at an offset. On FTP, the connection is kept
+     * until {@link #closeRange} is called.
+     *
+     * @param location file
+     * @param offset first byte
+     * @param length number of bytes
+     * @return the stream, which may go beyond the range
+     * @throws IOException When the server cannot restart a transfer or the
+     * download fails
+     */
+    private InputStream openRange(final URI location, final long offset, final long length) throws IOException {
+        if ("ftp".equalsIgnoreCase(location.getScheme())) {
+            final FtpConnection connection = this.pool.borrow(location);
+            this.currentConnection.set(connection);
+            if (offset > 0 && !connection.supportsRestart()) {
+                throw new RangeNotSupportedException(location.getHost() + " cannot restart a transfer");
+            }
+            return connection.retrieve(location.getPath(), offset);
+        }
+        final HttpURLConnection connection = (HttpURLConnection) location.toURL().openConnection();
+        connection.setRequestProperty("Range", "bytes=" + offset + "-" + (offset + length - 1));
+        if (connection.getResponseCode() != HttpURLConnection.HTTP_PARTIAL) {
+            connection.disconnect();
+            throw new RangeNotSupportedException(location.getHost() + " ignores the Range header");
+        }
+        return connection.getInputStream();
+    }
+
+    /**
+     * Gives back the FTP connection used by the last range.
+     *
+     * @param location file
+     */
+    private void closeRange(final URI location) {
+        final FtpConnection connection = this.currentConnection.get();
+        if (connection != null) {
+            this.currentConnection.remove();
+            this.pool.release(location, connection);
+        }
+    }
+
+    /**
+     * Raised when the file cannot be downloaded by ranges.
+     */
+    private static class RangeNotSupportedException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        RangeNotSupportedException(final String message) {
+            super(message);
+        }
+    }
+}
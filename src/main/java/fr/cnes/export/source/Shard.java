@@ -0,0 +1,170 @@
+ /******************************************************************************
+ * Copyright 2017 CNES - CENTRE NATIONAL d'ETUDES SPATIALES
+ *
+ * This file is part of Regards.
+ *
+ * Regards is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Regards is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Regards.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package fr.cnes.export.source;
+
+/**
+ * Part of the files processed by a node when the processing is spread over
+ * several nodes.
+ *
+ * The files are assigned to the shards by a jump consistent hash of their
+ * path, or of their cycle directory as decided by {@link CrawlFilter}, so that the nodes select disjoint subsets of files without any
+ * coordination, and that few files move from a shard to another when the
+ * number of shards changes. The path is hashed without the scheme and the
+ * authority of the URI, so that the nodes may use different credentials.
+ */
+public class Shard {
+
+    private final int index;
+    private final int count;
+
+    /**
+     * Creates a shard.
+     *
+     * @param index number of the shard, from 1 to count
+     * @param count number of shards
+     * @throws IllegalArgumentException When the index is not in [1, count]
+     */
+    public Shard(final int index, final int count) {
+        if (count < 1 || index < 1 || index > count) {
+            throw new IllegalArgumentException(String.format("Invalid shard %s/%s, expected i/N with 1 <= i <= N",
+                    index, count));
+        }
+        this.index = index;
+        this.count = count;
+    }
+
+    /**
+     * Parses a shard written as i/N.
+     *
+     * @param shard shard
+     * @return the shard
+     * @throws IllegalArgumentException When the shard cannot be parsed
+     */
+    public static Shard parse(final String shard) {
+        final int separator = shard.indexOf('/');
+        if (separator == -1) {
+            throw new IllegalArgumentException("Invalid shard " + shard + ", expected i/N");
+        }
+        try {
+            return new Shard(Integer.parseInt(shard.substring(0, separator).trim()),
+                    Integer.parseInt(shard.substring(separator + 1).trim()));
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Invalid shard " + shard + ", expected i/N", ex);
+        }
+    }
+
+    /**
+     * @return the number of the shard, from 1 to {@link #getCount()}
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * @return the number of shards
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Tests whether a file or a directory belongs to this shard.
+     *
+     * @param fileUri URI or path of a file or a directory
+     * @return True when it is processed by this shard otherwise False
+     */
+    public boolean contains(final String fileUri) {
+        return bucket(hash(pathOf(fileUri)), this.count) == this.index - 1;
+    }
+
+    /**
+     * Returns the suffix appended to the files written by the node of this
+     * shard, such as the journal and the listing manifest.
+     *
+     * @return the suffix, as .shard-i-of-N
+     */
+    public String getSuffix() {
+        return getSuffix(this.index, this.count);
+    }
+
+    /**
+     * Returns the suffix appended to the files written by the node of a shard.
+     *
+     * @param index number of the shard
+     * @param count number of shards
+     * @return the suffix, as .shard-i-of-N
+     */
+    public static String getSuffix(final int index, final int count) {
+        return ".shard-" + index + "-of-" + count;
+    }
+
+    @Override
+    public String toString() {
+        return this.index + "/" + this.count;
+    }
+
+    /**
+     * Removes the scheme and the authority of an URI.
+     *
+     * @param uri URI
+     * @return the path
+     */
+    private static String pathOf(final String uri) {
+        final int scheme = uri.indexOf("://");
+        if (scheme == -1) {
+            return uri;
+        }
+        final int path = uri.indexOf('/', scheme + 3);
+        return (path == -1) ? "" : uri.substring(path);
+    }
+
+    /**
+     * Computes a 64-bit FNV-1a hash.
+     *
+     * @param value value
+     * @return the hash
+     */
+    private static long hash(final String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * Jump consistent hash (Lamping and Veach).
+     *
+     * @param key hash of the file
+     * @param buckets number of buckets
+     * @return the bucket, from 0 to buckets - 1
+     */
+    private static int bucket(final long key, final int buckets) {
+        long k = key;
+        long b = -1;
+        long j = 0;
+        while (j < buckets) {
+            b = j;
+            k = k * 2862933555777941757L + 1;
+            j = (long) ((b + 1) * ((double) (1L << 31) / (double) ((k >>> 33) + 1)));
+        }
+        return (int) b;
+    }
+}
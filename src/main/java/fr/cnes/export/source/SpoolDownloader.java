@@ -0,0 +1,237 @@
+ /******************************************************************************
+ * Copyright 2017 CNES - CENTRE NATIONAL d'ETUDES SPATIALES
+ *
+ * This file is part of Regards.
+ *
+ * Regards is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Regards is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Regards.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package fr.cnes.export.source;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URLConnection;
+import java.net.URISyntaxException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import org.apache.log4j.Logger;
+
+/**
+ * Downloads files in a spool directory.
+ *
+ * The bytes are transferred from the network channel to the file channel, so
+ * that the heap used by a download does not depend on the size of the file.
+ * The file is written with a ".part" suffix and renamed once its completion is
+ * confirmed : the FTP server answered the transfer by a completion reply or the
+ * HTTP response was received up to its announced length, and the size matches
+ * the size of the listing when it is known. An interrupted download keeps its
+ * ".part" file and the next attempt resumes it at its current length, with a
+ * REST command on FTP or a Range header on HTTP.
+ */
+public class SpoolDownloader {
+
+    /**
+     * Suffix of the files being downloaded.
+     */
+    public static final String PART_SUFFIX = ".part";
+
+    /**
+     * Maximum number of bytes transferred by a transferFrom call.
+     */
+    private static final long TRANSFER_CHUNK = 8L * 1024 * 1024;
+
+    private static final Logger LOGGER = Logger.getLogger(SpoolDownloader.class.getName());
+
+    private final File spoolDirectory;
+    private final boolean keepFiles;
+    private final FtpConnectionPool pool;
+
+    /**
+     * Creates a downloader.
+     *
+     * @param spoolDirectory directory where the files are downloaded
+     * @param keepFiles True to keep the files once processed otherwise False
+     * @param pool pool used for the FTP downloads
+     */
+    public SpoolDownloader(final File spoolDirectory, final boolean keepFiles, final FtpConnectionPool pool) {
+        this.spoolDirectory = spoolDirectory;
+        this.keepFiles = keepFiles;
+        this.pool = pool;
+        if (!spoolDirectory.exists() && !spoolDirectory.mkdirs()) {
+            LOGGER.error("Cannot create the spool directory " + spoolDirectory);
+        }
+    }
+
+    /**
+     * Returns the directory where the files are downloaded.
+     *
+     * @return the spool directory
+     */
+    protected File getSpoolDirectory() {
+        return this.spoolDirectory;
+    }
+
+    /**
+     * Downloads a file in the spool directory. A local file is used in place.
+     *
+     * @param uri location of the file
+     * @return the local file
+     * @throws URISyntaxException
+     * @throws IOException When the download fails
+     */
+    public File download(final String uri) throws URISyntaxException, IOException {
+        final URI location = new URI(uri);
+        if ("file".equalsIgnoreCase(location.getScheme())) {
+            return new File(location);
+        }
+        final String fileName = uri.substring(uri.lastIndexOf('/') + 1);
+        final File spoolFile = new File(this.spoolDirectory, fileName);
+        if (this.keepFiles && spoolFile.exists()) {
+            LOGGER.debug(spoolFile + " already in the spool directory");
+            return spoolFile;
+        }
+        final File partFile = new File(this.spoolDirectory, fileName + PART_SUFFIX);
+        final long expectedSize = FileSizeIndex.getInstance().getSize(uri);
+        long offset = partFile.length();
+        if (expectedSize >= 0 && offset > expectedSize) {
+            LOGGER.info(String.format("%s is larger than the listing size, restarting the download", partFile));
+            offset = 0;
+        } else if (offset > 0 && offset != expectedSize) {
+            LOGGER.info(String.format("Resuming the download of %s at byte %s", uri, offset));
+        }
+        final long size;
+        if (expectedSize >= 0 && offset == expectedSize) {
+            LOGGER.debug(partFile + " is already complete");
+            size = offset;
+        } else if ("ftp".equalsIgnoreCase(location.getScheme())) {
+            size = downloadFromFtp(location, partFile, offset);
+        } else {
+            size = downloadFromUrl(location, partFile, offset);
+        }
+        if (expectedSize >= 0 && size != expectedSize) {
+            if (size > expectedSize) {
+                partFile.delete();
+            }
+            throw new IOException(String.format("Incomplete download of %s : %s bytes instead of %s",
+                    uri, size, expectedSize));
+        }
+        java.nio.file.Files.move(partFile.toPath(), spoolFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        return spoolFile;
+    }
+
+    /**
+     * Releases a downloaded file. The file is deleted unless the spool policy
+     * keeps it. A local file used in place is never deleted.
+     *
+     * @param file file returned by {@link #download}
+     */
+    public void release(final File file) {
+        if (this.keepFiles || !this.spoolDirectory.equals(file.getParentFile())) {
+            return;
+        }
+        if (!file.delete()) {
+            LOGGER.warn("Cannot delete the spool file " + file);
+        }
+    }
+
+    /**
+     * Downloads a file with a pooled connection. The download restarts from
+     * the beginning when the server cannot restart a transfer.
+     *
+     * @param location file on the FTP server
+     * @param partFile destination
+     * @param offset number of bytes already downloaded
+     * @return the size of the downloaded file
+     * @throws IOException When the download fails or the server does not
+     * confirm its completion
+     */
+    private long downloadFromFtp(final URI location, final File partFile, final long offset) throws IOException {
+        final FtpConnection connection = this.pool.borrow(location);
+        final long size;
+        try {
+            final long position = (offset > 0 && connection.supportsRestart()) ? offset : 0;
+            try (InputStream is = connection.retrieve(location.getPath(), position)) {
+                size = transfer(is, partFile, position);
+            }
+        } catch (IOException ex) {
+            this.pool.invalidate(location, connection);
+            throw ex;
+        }
+        this.pool.release(location, connection);
+        return size;
+    }
+
+    /**
+     * Downloads a file from an URL. The download restarts from the beginning
+     * when the server ignores the Range header. The download is complete only
+     * when the announced length is received or when the chunked encoding
+     * reached its last chunk.
+     *
+     * @param location file
+     * @param partFile destination
+     * @param offset number of bytes already downloaded
+     * @return the size of the downloaded file
+     * @throws IOException When the download fails or its completion cannot
+     * be confirmed
+     */
+    private static long downloadFromUrl(final URI location, final File partFile, final long offset) throws IOException {
+        final URLConnection connection = location.toURL().openConnection();
+        long position = 0;
+        if (offset > 0 && connection instanceof HttpURLConnection) {
+            connection.setRequestProperty("Range", "bytes=" + offset + "-");
+            if (((HttpURLConnection) connection).getResponseCode() == HttpURLConnection.HTTP_PARTIAL) {
+                position = offset;
+            }
+        }
+        final long size;
+        try (InputStream is = connection.getInputStream()) {
+            size = transfer(is, partFile, position);
+        }
+        final long length = connection.getContentLengthLong();
+        final boolean isChunked = "chunked".equalsIgnoreCase(connection.getHeaderField("Transfer-Encoding"));
+        if (length >= 0 ? size != position + length : !isChunked) {
+            throw new IOException(String.format("Incomplete download of %s : %s bytes received, %s announced",
+                    location, size - position, length));
+        }
+        return size;
+    }
+
+    /**
+     * Transfers a stream in a file through channels.
+     *
+     * @param is stream
+     * @param file destination
+     * @param position position in the file of the first transferred byte
+     * @return the size of the file
+     * @throws IOException When the transfer fails
+     */
+    private static long transfer(final InputStream is, final File file, final long position) throws IOException {
+        try (ReadableByteChannel source = Channels.newChannel(is);
+                FileChannel destination = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE)) {
+            destination.truncate(position);
+            long size = position;
+            long count;
+            while ((count = destination.transferFrom(source, size, TRANSFER_CHUNK)) > 0) {
+                size += count;
+            }
+            return size;
+        }
+    }
+}
@@ -0,0 +1,207 @@
+ /******************************************************************************
+ * Copyright 2017 CNES - CENTRE NATIONAL d'ETUDES SPATIALES
+ *
+ * This file is part of Regards.
+ *
+ * Regards is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Regards is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Regards.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package fr.cnes.export.source;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockftpserver.core.command.StaticReplyCommandHandler;
+import org.mockftpserver.stub.StubFtpServer;
+import org.mockftpserver.stub.command.ListCommandHandler;
+import org.mockftpserver.stub.command.RetrCommandHandler;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests the pool of FTP connections against an embedded FTP server : reuse of
+ * the released connections, limit of the connections per server, eviction of
+ * the broken connections and detection of the truncated transfers.
+ */
+public class FtpConnectionPoolTest {
+
+    private static final int TIMEOUT = 5000;
+
+    private static final String LISTING = "-rw-r--r--   1 ftp ftp 1024 Jan 01  2017 JA2_GPN_2PdP000_001.nc\r\n";
+
+    private StubFtpServer server;
+    private URI uri;
+
+    @Before
+    public void setUp() throws Exception {
+        this.server = new StubFtpServer();
+        this.server.setServerControlPort(0);
+        this.server.start();
+        while (!this.server.isStarted()) {
+            Thread.sleep(10);
+        }
+        this.uri = new URI("ftp://localhost:" + this.server.getServerControlPort() + "/data/JA2_GPN_2PdP000_001.nc");
+    }
+
+    @After
+    public void tearDown() {
+        this.server.stop();
+    }
+
+    @Test
+    public void testReleasedConnectionIsReused() throws Exception {
+        final FtpConnectionPool pool = new FtpConnectionPool(2, 60000, TIMEOUT);
+        final FtpConnection connection = pool.borrow(this.uri);
+        pool.release(this.uri, connection);
+        final FtpConnection reused = pool.borrow(this.uri);
+        assertSame(connection, reused);
+        pool.release(this.uri, reused);
+        pool.close();
+        assertTrue(connection.isBroken());
+    }
+
+    @Test
+    public void testBorrowWaitsForARelease() throws Exception {
+        final FtpConnectionPool pool = new FtpConnectionPool(1, 60000, TIMEOUT);
+        final FtpConnection connection = pool.borrow(this.uri);
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final Future<FtpConnection> waiting = executor.submit(() -> pool.borrow(this.uri));
+            try {
+                waiting.get(200, TimeUnit.MILLISECONDS);
+                fail("A second connection has been opened beyond the limit");
+            } catch (TimeoutException ex) {
+                // the only connection is borrowed
+            }
+            pool.release(this.uri, connection);
+            assertSame(connection, waiting.get(TIMEOUT, TimeUnit.MILLISECONDS));
+            pool.release(this.uri, connection);
+        } finally {
+            executor.shutdownNow();
+            pool.close();
+        }
+    }
+
+    @Test
+    public void testDeadIdleConnectionIsEvicted() throws Exception {
+        final FtpConnectionPool pool = new FtpConnectionPool(1, 0, TIMEOUT);
+        final FtpConnection connection = pool.borrow(this.uri);
+        pool.release(this.uri, connection);
+        this.server.setCommandHandler("NOOP", new StaticReplyCommandHandler(421, "Service not available"));
+        Thread.sleep(10);
+        final FtpConnection other = pool.borrow(this.uri);
+        assertNotSame(connection, other);
+        assertTrue(connection.isBroken());
+        pool.release(this.uri, other);
+        pool.close();
+    }
+
+    @Test
+    public void testCompletedTransfer() throws Exception {
+        final RetrCommandHandler retr = new RetrCommandHandler();
+        retr.setFileContents("complete content");
+        this.server.setCommandHandler("RETR", retr);
+        final FtpConnectionPool pool = new FtpConnectionPool(1, 60000, TIMEOUT);
+        final FtpConnection connection = pool.borrow(this.uri);
+        assertEquals("complete content", readAll(connection.retrieve(this.uri.getPath(), 0)));
+        assertFalse(connection.isBroken());
+        pool.release(this.uri, connection);
+        assertSame(connection, pool.borrow(this.uri));
+        pool.release(this.uri, connection);
+        pool.close();
+    }
+
+    @Test
+    public void testTruncatedTransferFails() throws Exception {
+        final RetrCommandHandler retr = new RetrCommandHandler();
+        retr.setFileContents("truncated");
+        retr.setFinalReplyCode(426);
+        this.server.setCommandHandler("RETR", retr);
+        final FtpConnectionPool pool = new FtpConnectionPool(1, 60000, TIMEOUT);
+        final FtpConnection connection = pool.borrow(this.uri);
+        try {
+            readAll(connection.retrieve(this.uri.getPath(), 0));
+            fail("A transfer ended by 426 has been read as complete");
+        } catch (IOException ex) {
+            // the data connection was cut
+        }
+        assertTrue(connection.isBroken());
+        pool.release(this.uri, connection);
+        final FtpConnection other = pool.borrow(this.uri);
+        assertNotSame(connection, other);
+        pool.release(this.uri, other);
+        pool.close();
+    }
+
+    @Test
+    public void testTruncatedListingFails() throws Exception {
+        final ListCommandHandler list = new ListCommandHandler();
+        list.setDirectoryListing(LISTING);
+        list.setFinalReplyCode(451);
+        this.server.setCommandHandler("LIST", list);
+        final FtpConnectionPool pool = new FtpConnectionPool(1, 60000, TIMEOUT);
+        final FtpConnection connection = pool.borrow(this.uri);
+        try {
+            readAll(connection.list("/data"));
+            fail("A listing ended by 451 has been read as complete");
+        } catch (IOException ex) {
+            // the data connection was cut
+        }
+        pool.invalidate(this.uri, connection);
+        pool.close();
+    }
+
+    @Test
+    public void testAbortedTransferKeepsTheConnection() throws Exception {
+        final RetrCommandHandler retr = new RetrCommandHandler();
+        retr.setFileContents("0123456789");
+        retr.setFinalReplyCode(426);
+        this.server.setCommandHandler("RETR", retr);
+        final FtpConnectionPool pool = new FtpConnectionPool(1, 60000, TIMEOUT);
+        final FtpConnection connection = pool.borrow(this.uri);
+        try (InputStream is = connection.retrieve(this.uri.getPath(), 0)) {
+            assertEquals('0', is.read());
+        }
+        assertFalse(connection.isBroken());
+        pool.release(this.uri, connection);
+        assertSame(connection, pool.borrow(this.uri));
+        pool.release(this.uri, connection);
+        pool.close();
+    }
+
+    private static String readAll(final InputStream stream) throws IOException {
+        final ByteArrayOutputStream content = new ByteArrayOutputStream();
+        try (InputStream is = stream) {
+            final byte[] buffer = new byte[8192];
+            int count;
+            while ((count = is.read(buffer)) != -1) {
+                content.write(buffer, 0, count);
+            }
+        }
+        return new String(content.toByteArray(), StandardCharsets.ISO_8859_1);
+    }
+}
@@ -0,0 +1,194 @@
+ /******************************************************************************
+ * Copyright 2017 CNES - CENTRE NATIONAL d'ETUDES SPATIALES
+ *
+ * This file is part of Regards.
+ *
+ * Regards is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Regards is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Regards.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package fr.cnes.export.source;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * JMH benchmark of the parsing of a large FTP listing : the hand-written
+ * tokenizer of {@link FtpDirectoryParser} on the LIST and MLSD formats against
+ * the regular expression parser it replaced. The GC profiler gives the bytes
+ * allocated per listing.
+ *
+ * Run it from the test classpath, the benchmark being generated by the JMH
+ * annotation processor during the test compilation :
+ * <pre>
+ * mvn test-compile exec:exec -Dexec.executable=java -Dexec.classpathScope=test \
+ *     -Dexec.args="-cp %classpath fr.cnes.export.source.FtpDirectoryParserBenchmark"
+ * </pre>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FtpDirectoryParserBenchmark {
+
+    /**
+     * Number of records of the listing.
+     */
+    @Param({"1000", "100000"})
+    public int records;
+
+    private String list;
+    private String mlsd;
+
+    @Setup
+    public void setUp() {
+        this.list = createList(this.records);
+        this.mlsd = createMlsd(this.records);
+    }
+
+    @Benchmark
+    public void regexList(final Blackhole blackhole) throws IOException {
+        final RegexParser parser = new RegexParser(new StringReader(this.list));
+        String[] record;
+        while ((record = parser.getNextLine()) != null) {
+            blackhole.consume(record[RegexParser.NAME]);
+        }
+    }
+
+    @Benchmark
+    public void tokenizerList(final Blackhole blackhole) throws IOException {
+        final FtpDirectoryParser parser = new FtpDirectoryParser(new StringReader(this.list),
+                FtpDirectoryParser.Format.LIST);
+        DirectoryEntry entry;
+        while ((entry = parser.readEntry()) != null) {
+            blackhole.consume(entry.getName());
+        }
+    }
+
+    @Benchmark
+    public void tokenizerMlsd(final Blackhole blackhole) throws IOException {
+        final FtpDirectoryParser parser = new FtpDirectoryParser(new StringReader(this.mlsd),
+                FtpDirectoryParser.Format.MLSD);
+        DirectoryEntry entry;
+        while ((entry = parser.readEntry()) != null) {
+            blackhole.consume(entry.getName());
+        }
+    }
+
+    /**
+     * Creates a LIST listing of NetCDF files, starting by the total line and
+     * the . and .. records as the regular expression parser expects.
+     *
+     * @param records number of records
+     * @return the listing
+     */
+    static String createList(final int records) {
+        final StringBuilder listing = new StringBuilder();
+        listing.append("total ").append(records + 2).append("\r\n");
+        listing.append("drwxr-xr-x   2 ftp      ftp          4096 Mar 12  2017 .\r\n");
+        listing.append("drwxr-xr-x  40 ftp      ftp          4096 Mar 12  2017 ..\r\n");
+        for (int i = 0; i < records; i++) {
+            listing.append("-rw-r--r--   1 ftp      ftp       ").append(2000000 + i)
+                    .append(" Mar 12  2017 ").append(getName(i)).append("\r\n");
+        }
+        return listing.toString();
+    }
+
+    /**
+     * Creates a MLSD listing of NetCDF files.
+     *
+     * @param records number of records
+     * @return the listing
+     */
+    static String createMlsd(final int records) {
+        final StringBuilder listing = new StringBuilder();
+        listing.append("type=cdir;modify=20170312101500;perm=flcdmpe; .\r\n");
+        listing.append("type=pdir;modify=20170312101500;perm=flcdmpe; ..\r\n");
+        for (int i = 0; i < records; i++) {
+            listing.append("type=file;size=").append(2000000 + i)
+                    .append(";modify=20170312101500;perm=adfr; ").append(getName(i)).append("\r\n");
+        }
+        return listing.toString();
+    }
+
+    private static String getName(final int i) {
+        return String.format("JA2_GPN_2PdP%03d_%03d_20170312_101500_20170312_111113.nc", i / 254, i % 254);
+    }
+
+    public static void main(final String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(FtpDirectoryParserBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+
+    /**
+     * Parser of the LIST format by a regular expression, as it was before the
+     * tokenizer : a Matcher and a String per line and per group.
+     */
+    static final class RegexParser {
+
+        static final int NAME = 3;
+
+        private static final Pattern PATTERN = Pattern.compile(
+                "(\\S+)\\s+(\\S+)\\s+\\S+\\s+\\S+\\s+\\S+\\s+(\\S+\\s+\\S+\\s+\\S+)\\s+(\\S+)");
+
+        private final BufferedReader reader;
+        private final String[] cols = new String[4];
+
+        RegexParser(final Reader reader) throws IOException {
+            this.reader = new BufferedReader(reader);
+            // total, . and ..
+            this.reader.readLine();
+            this.reader.readLine();
+            this.reader.readLine();
+        }
+
+        String[] getNextLine() throws IOException {
+            final String line = this.reader.readLine();
+            if (line == null) {
+                return null;
+            }
+            final Matcher m = PATTERN.matcher(line);
+            if (!m.matches()) {
+                return null;
+            }
+            for (int i = 1; i <= m.groupCount(); i++) {
+                this.cols[i - 1] = m.group(i);
+            }
+            return this.cols;
+        }
+    }
+}